@@ -24,3 +24,5 @@ LOCAL_PROGUARD_FLAGS := -include $(LOCAL_PATH)/proguard.flags
 LOCAL_PRIVILEGED_MODULE := true
 
 include $(BUILD_PACKAGE)
+
+include $(call all-makefiles-under,$(LOCAL_PATH))
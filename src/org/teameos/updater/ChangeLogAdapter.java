@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2015 The TeamEos Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package org.teameos.updater;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+import org.teameos.updater.utils.ChangeLogParser;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shows a plain text change log one line per row. Lines are parsed in pages
+ * off the main thread, the next page is read when the list scrolls close to
+ * the end of what was read so far, so long change logs open as fast as short
+ * ones. close() has to be called when the list goes away.
+ */
+public class ChangeLogAdapter extends BaseAdapter {
+    private static final String TAG = "ChangeLogAdapter";
+
+    private static final int PAGE_SIZE = 100;
+    // Rows left below the visible ones when the next page is read
+    private static final int PREFETCH_DISTANCE = 30;
+
+    private final LayoutInflater mInflater;
+    private final File mFile;
+    private final List<CharSequence> mLines = new ArrayList<CharSequence>();
+
+    private ChangeLogParser mParser;
+    private PageLoadTask mLoadTask;
+    private boolean mFinished = false;
+    private boolean mClosed = false;
+
+    public ChangeLogAdapter(Context context, File file) {
+        mInflater = LayoutInflater.from(context);
+        mFile = file;
+        loadNextPage();
+    }
+
+    /**
+     * Stop reading and release the file
+     */
+    public void close() {
+        mClosed = true;
+        if (mLoadTask != null) {
+            // The task closes the parser once it returns
+            mLoadTask.cancel(false);
+        } else {
+            closeParser();
+        }
+    }
+
+    @Override
+    public int getCount() {
+        return mLines.size();
+    }
+
+    @Override
+    public CharSequence getItem(int position) {
+        return mLines.get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    @Override
+    public boolean areAllItemsEnabled() {
+        return false;
+    }
+
+    @Override
+    public boolean isEnabled(int position) {
+        return false;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        TextView view = (TextView) convertView;
+        if (view == null) {
+            view = (TextView) mInflater.inflate(R.layout.change_log_item, parent, false);
+        }
+        view.setText(mLines.get(position));
+
+        if (position >= mLines.size() - PREFETCH_DISTANCE) {
+            loadNextPage();
+        }
+        return view;
+    }
+
+    private void loadNextPage() {
+        if (mLoadTask != null || mFinished || mClosed) {
+            return;
+        }
+        mLoadTask = new PageLoadTask();
+        mLoadTask.execute();
+    }
+
+    private void closeParser() {
+        if (mParser != null) {
+            try {
+                mParser.close();
+            } catch (IOException e) {
+                // ignored, can't do anything anyway
+            }
+            mParser = null;
+        }
+    }
+
+    private class PageLoadTask extends AsyncTask<Void, Void, List<CharSequence>> {
+        @Override
+        protected List<CharSequence> doInBackground(Void... params) {
+            try {
+                if (mParser == null) {
+                    mParser = new ChangeLogParser(mFile);
+                }
+                return mParser.readPage(PAGE_SIZE);
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to read " + mFile, e);
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(List<CharSequence> lines) {
+            mLoadTask = null;
+            if (lines == null || lines.size() < PAGE_SIZE) {
+                mFinished = true;
+                closeParser();
+            }
+            if (lines != null && !lines.isEmpty()) {
+                mLines.addAll(lines);
+                notifyDataSetChanged();
+            }
+        }
+
+        @Override
+        protected void onCancelled(List<CharSequence> lines) {
+            mLoadTask = null;
+            closeParser();
+        }
+    }
+}
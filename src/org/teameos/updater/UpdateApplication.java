@@ -13,10 +13,13 @@ import android.app.Activity;
 import android.app.Application;
 import android.os.Bundle;
 
+import org.teameos.updater.misc.UpdateCatalog;
+
 public class UpdateApplication extends Application implements
         Application.ActivityLifecycleCallbacks {
 
     private boolean mMainActivityActive;
+    private UpdateCatalog mCatalog;
 
     @Override
     public void onCreate() {
@@ -61,4 +64,14 @@ public class UpdateApplication extends Application implements
     public boolean isMainActivityActive() {
         return mMainActivityActive;
     }
+
+    /**
+     * The update list shared by all components, read from disk on first use
+     */
+    public synchronized UpdateCatalog getCatalog() {
+        if (mCatalog == null) {
+            mCatalog = new UpdateCatalog(this);
+        }
+        return mCatalog;
+    }
 }
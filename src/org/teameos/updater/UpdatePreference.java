@@ -21,6 +21,7 @@ import android.view.View.OnClickListener;
 import android.view.View.OnLongClickListener;
 import android.webkit.WebView;
 import android.widget.ImageView;
+import android.widget.ListView;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 import android.widget.Toast;
@@ -29,7 +30,9 @@ import org.teameos.updater.R;
 
 import java.io.File;
 
+import org.teameos.updater.misc.ChangeLogCache;
 import org.teameos.updater.misc.UpdateInfo;
+import org.teameos.updater.utils.ChangeLogParser;
 
 public class UpdatePreference extends Preference implements OnClickListener, OnLongClickListener {
     private static final float DISABLED_ALPHA = 0.4f;
@@ -46,6 +49,7 @@ public class UpdatePreference extends Preference implements OnClickListener, OnL
     }
 
     public interface OnReadyListener {
+        // The views of the row were bound
         void onReady(UpdatePreference pref);
     }
 
@@ -133,7 +137,7 @@ public class UpdatePreference extends Preference implements OnClickListener, OnL
     @Override
     public void onClick(View v) {
         final Context context = getContext();
-        final File changeLog = mUpdateInfo.getChangeLogFile(context);
+        final File changeLog = ChangeLogCache.get(context, mUpdateInfo);
 
         if (!changeLog.exists()) {
             // Change log could not be fetched
@@ -141,8 +145,27 @@ public class UpdatePreference extends Preference implements OnClickListener, OnL
         } else if (changeLog.length() == 0) {
             // Change log is empty
             Toast.makeText(context, R.string.no_changelog_alert, Toast.LENGTH_SHORT).show();
+        } else if (!ChangeLogParser.isHtml(changeLog)) {
+            // Plain text, render it natively a page at a time
+            final View view = LayoutInflater.from(context).inflate(R.layout.change_log_text, null);
+            final ListView listView = (ListView) view.findViewById(R.id.changelog);
+            final ChangeLogAdapter adapter = new ChangeLogAdapter(context, changeLog);
+            listView.setEmptyView(view.findViewById(R.id.progress));
+            listView.setAdapter(adapter);
+
+            new AlertDialog.Builder(context)
+                    .setTitle(R.string.changelog_dialog_title)
+                    .setView(view)
+                    .setPositiveButton(R.string.dialog_close, null)
+                    .setOnDismissListener(new DialogInterface.OnDismissListener() {
+                        @Override
+                        public void onDismiss(DialogInterface dialog) {
+                            adapter.close();
+                        }
+                    })
+                    .show();
         } else {
-            // Prepare the dialog box content
+            // HTML needs a WebView. Prepare the dialog box content
             final LayoutInflater inflater = LayoutInflater.from(context);
             final View view = inflater.inflate(R.layout.change_log_dialog, null);
             final View progressContainer = view.findViewById(R.id.progress);
@@ -209,9 +232,6 @@ public class UpdatePreference extends Preference implements OnClickListener, OnL
 
     public void setOnReadyListener(OnReadyListener listener) {
         mOnReadyListener = listener;
-        if (mUpdatesPref != null && listener != null) {
-            listener.onReady(this);
-        }
     }
 
     public void setStyle(int style) {
@@ -233,6 +253,17 @@ public class UpdatePreference extends Preference implements OnClickListener, OnL
         mProgressBar.setProgress(progress);
     }
 
+    /**
+     * Show a status line below the progress bar while downloading, null hides it
+     */
+    public void setDownloadingSummary(CharSequence summary) {
+        if (mStyle != STYLE_DOWNLOADING || mSummaryText == null) {
+            return;
+        }
+        mSummaryText.setText(summary);
+        mSummaryText.setVisibility(summary != null ? View.VISIBLE : View.GONE);
+    }
+
     public ProgressBar getProgressBar() {
         return mProgressBar;
     }
@@ -245,6 +276,16 @@ public class UpdatePreference extends Preference implements OnClickListener, OnL
         return mUpdateInfo;
     }
 
+    /**
+     * Point the preference at a newer copy of its update, e.g. after a refresh
+     */
+    public void setUpdateInfo(UpdateInfo ui) {
+        mUpdateInfo = ui;
+        if (mTitleText != null) {
+            mTitleText.setText(mUpdateInfo.getName());
+        }
+    }
+
     private void disablePreferenceViews() {
         if (mUpdatesButton != null) {
             mUpdatesButton.setEnabled(false);
@@ -21,11 +21,15 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.res.Resources;
+import android.database.ContentObserver;
 import android.database.Cursor;
+import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.Parcelable;
+import android.os.SystemClock;
 import android.preference.CheckBoxPreference;
 import android.preference.ListPreference;
 import android.preference.Preference;
@@ -33,10 +37,12 @@ import android.preference.Preference.OnPreferenceChangeListener;
 import android.preference.PreferenceActivity;
 import android.preference.PreferenceCategory;
 import android.preference.PreferenceManager;
+import android.text.TextUtils;
 import android.text.format.DateFormat;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.widget.AbsListView;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 import android.widget.Toast;
@@ -48,18 +54,31 @@ import java.io.IOException;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.teameos.updater.misc.Constants;
-import org.teameos.updater.misc.State;
+import org.teameos.updater.misc.DownloadQueue;
+import org.teameos.updater.misc.Logger;
+import org.teameos.updater.misc.ProgressNotifier;
+import org.teameos.updater.misc.UpdateCatalog;
 import org.teameos.updater.misc.UpdateInfo;
 import org.teameos.updater.receiver.DownloadReceiver;
+import org.teameos.updater.service.DownloadService;
 import org.teameos.updater.service.UpdateCheckService;
+import org.teameos.updater.service.VerifyService;
+import org.teameos.updater.utils.BuildEnvironment;
+import org.teameos.updater.utils.CheckScheduler;
 import org.teameos.updater.utils.UpdateFilter;
 import org.teameos.updater.utils.Utils;
 
 public class UpdatesSettings extends PreferenceActivity implements
-        OnPreferenceChangeListener, UpdatePreference.OnReadyListener, UpdatePreference.OnActionListener {
+        OnPreferenceChangeListener, UpdatePreference.OnReadyListener, UpdatePreference.OnActionListener,
+        ProgressNotifier.Listener {
     private static String TAG = "UpdatesSettings";
     private static final boolean HIDE_UPDATE_TYPE = true;
 
@@ -70,6 +89,12 @@ public class UpdatesSettings extends PreferenceActivity implements
 
     private static final String UPDATES_CATEGORY = "updates_category";
 
+    // Rows left below the visible ones when older builds are fetched
+    private static final int HISTORY_PREFETCH_ROWS = 2;
+
+    // DownloadManager notifies changes of its rows below this uri
+    private static final Uri DOWNLOADS_URI = Uri.parse("content://downloads/my_downloads");
+
     private static final int MENU_REFRESH = 0;
     private static final int MENU_DELETE_ALL = 1;
     private static final int MENU_SYSTEM_INFO = 2;
@@ -80,17 +105,20 @@ public class UpdatesSettings extends PreferenceActivity implements
     private ListPreference mUpdateType;
 
     private PreferenceCategory mUpdatesList;
-    private UpdatePreference mDownloadingPreference;
 
     private File mUpdateFolder;
+    private LoadUpdatesTask mLoadTask;
+    // Whether the catalog can fetch older builds, and whether it was asked to
+    private boolean mMoreHistory = false;
+    private boolean mHistoryRequested = false;
+    // Set while a finished download waits for the list to be loaded
+    private String mFinishedDownloadPath;
 
     private boolean mStartUpdateVisible = false;
     private ProgressDialog mProgressDialog;
 
     private DownloadManager mDownloadManager;
-    private boolean mDownloading = false;
-    private long mDownloadId;
-    private String mFileName;
+    private DownloadQueue mDownloadQueue;
 
     private Handler mUpdateHandler = new Handler();
 
@@ -100,8 +128,7 @@ public class UpdatesSettings extends PreferenceActivity implements
             String action = intent.getAction();
 
             if (DownloadReceiver.ACTION_DOWNLOAD_STARTED.equals(action)) {
-                mDownloadId = intent.getLongExtra(DownloadManager.EXTRA_DOWNLOAD_ID, -1);
-                mUpdateHandler.post(mUpdateProgress);
+                onProgressChanged(intent.getLongExtra(DownloadManager.EXTRA_DOWNLOAD_ID, -1));
             } else if (UpdateCheckService.ACTION_CHECK_FINISHED.equals(action)) {
                 if (mProgressDialog != null) {
                     mProgressDialog.dismiss();
@@ -117,6 +144,12 @@ public class UpdatesSettings extends PreferenceActivity implements
                     }
                 }
                 updateLayout();
+            } else if (UpdateCheckService.ACTION_HISTORY_FETCHED.equals(action)) {
+                // Don't retry a failed page until the list is opened again
+                if (intent.getBooleanExtra(UpdateCheckService.EXTRA_SUCCESS, false)) {
+                    mHistoryRequested = false;
+                }
+                updateLayout();
             }
         }
     };
@@ -126,6 +159,8 @@ public class UpdatesSettings extends PreferenceActivity implements
         super.onCreate(savedInstanceState);
 
         mDownloadManager = (DownloadManager) getSystemService(DOWNLOAD_SERVICE);
+        mDownloadQueue = DownloadQueue.getInstance(this);
+        mUpdateFolder = Utils.makeUpdateFolder();
 
         // Load the layouts
         addPreferencesFromResource(R.xml.main);
@@ -133,6 +168,31 @@ public class UpdatesSettings extends PreferenceActivity implements
         mUpdateCheck = (ListPreference) findPreference(Constants.UPDATE_CHECK_PREF);
         mUpdateType = (ListPreference) findPreference(Constants.UPDATE_TYPE_PREF);
 
+        // The updates are listed last, fetch older builds when the user scrolls to the
+        // end. A list that shows its end without scrolling doesn't ask on its own.
+        getListView().setOnScrollListener(new AbsListView.OnScrollListener() {
+            private int mScrollState = SCROLL_STATE_IDLE;
+            private boolean mNearEnd = false;
+
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+                mScrollState = scrollState;
+                if (scrollState != SCROLL_STATE_IDLE && mNearEnd) {
+                    requestHistory();
+                }
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                    int totalItemCount) {
+                mNearEnd = firstVisibleItem + visibleItemCount
+                        >= totalItemCount - HISTORY_PREFETCH_ROWS;
+                if (mScrollState != SCROLL_STATE_IDLE && mNearEnd) {
+                    requestHistory();
+                }
+            }
+        });
+
         // hide for now
         if(HIDE_UPDATE_TYPE) {
             getPreferenceScreen().removePreference(mUpdateType);
@@ -225,7 +285,10 @@ public class UpdatesSettings extends PreferenceActivity implements
     @Override
     public void onReady(UpdatePreference pref) {
         pref.setOnReadyListener(null);
-        mUpdateHandler.post(mUpdateProgress);
+        DownloadQueue.Item item = mDownloadQueue.findByFileName(pref.getKey());
+        if (item == null || !updateProgress(pref, item)) {
+            updateLayout();
+        }
     }
 
     @Override
@@ -234,7 +297,7 @@ public class UpdatesSettings extends PreferenceActivity implements
             int value = Integer.valueOf((String) newValue);
             mPrefs.edit().putInt(Constants.UPDATE_CHECK_PREF, value).apply();
             mUpdateCheck.setSummary(mapCheckValue(value));
-            Utils.scheduleUpdateService(this, value * 1000);
+            CheckScheduler.schedule(this);
             return true;
         } else if (preference == mUpdateType) {
             int value = Integer.valueOf((String) newValue);
@@ -251,37 +314,18 @@ public class UpdatesSettings extends PreferenceActivity implements
     protected void onStart() {
         super.onStart();
 
-        // Determine if there are any in-progress downloads
-        mDownloadId = mPrefs.getLong(Constants.DOWNLOAD_ID, -1);
-        if (mDownloadId >= 0) {
-            Cursor c = mDownloadManager.query(new DownloadManager.Query().setFilterById(mDownloadId));
-            if (c == null || !c.moveToFirst()) {
-                Toast.makeText(this, R.string.download_not_found, Toast.LENGTH_LONG).show();
-            } else {
-                String fileName = c.getString(c.getColumnIndex(DownloadManager.COLUMN_LOCAL_FILENAME));
-                int status = c.getInt(c.getColumnIndex(DownloadManager.COLUMN_STATUS));
-                if (fileName != null) {
-                    if (status == DownloadManager.STATUS_PENDING
-                            || status == DownloadManager.STATUS_RUNNING
-                            || status == DownloadManager.STATUS_PAUSED) {
-                        File file = new File(fileName);
-                        mFileName = file.getName().replace(".partial", "");
-                    }
-                }
-            }
-            if (c != null) {
-                c.close();
-            }
-        } else {
-            resetDownloadState();
-        }
-
+        mHistoryRequested = false;
         updateLayout();
 
         IntentFilter filter = new IntentFilter(UpdateCheckService.ACTION_CHECK_FINISHED);
+        filter.addAction(UpdateCheckService.ACTION_HISTORY_FETCHED);
         filter.addAction(DownloadReceiver.ACTION_DOWNLOAD_STARTED);
         registerReceiver(mReceiver, filter);
 
+        // Progress is pushed to us from here on, no polling
+        ProgressNotifier.addListener(this, mUpdateHandler);
+        getContentResolver().registerContentObserver(DOWNLOADS_URI, true, mDownloadObserver);
+
         checkForDownloadCompleted(getIntent());
         setIntent(null);
     }
@@ -289,8 +333,13 @@ public class UpdatesSettings extends PreferenceActivity implements
     @Override
     protected void onStop() {
         super.onStop();
-        mUpdateHandler.removeCallbacks(mUpdateProgress);
+        ProgressNotifier.removeListener(this);
+        getContentResolver().unregisterContentObserver(mDownloadObserver);
         unregisterReceiver(mReceiver);
+        if (mLoadTask != null) {
+            mLoadTask.cancel(false);
+            mLoadTask = null;
+        }
         if (mProgressDialog != null) {
             mProgressDialog.cancel();
             mProgressDialog = null;
@@ -305,92 +354,174 @@ public class UpdatesSettings extends PreferenceActivity implements
             return;
         }
 
-        if (mDownloading) {
-            Toast.makeText(this, R.string.download_already_running, Toast.LENGTH_LONG).show();
-            return;
-        }
-
-        // We have a match, get ready to trigger the download
-        mDownloadingPreference = pref;
-
-        UpdateInfo ui = mDownloadingPreference.getUpdateInfo();
-        if (ui == null) {
+        UpdateInfo ui = pref.getUpdateInfo();
+        if (ui == null || mDownloadQueue.findByFileName(ui.getFileName()) != null) {
             return;
         }
 
-        mDownloadingPreference.setStyle(UpdatePreference.STYLE_DOWNLOADING);
-        mFileName = ui.getFileName();
-        mDownloading = true;
-
-        // Start the download
+        // Queue the download, it starts once there is a free slot
+        pref.setStyle(UpdatePreference.STYLE_DOWNLOADING);
         Intent intent = new Intent(this, DownloadReceiver.class);
         intent.setAction(DownloadReceiver.ACTION_START_DOWNLOAD);
         intent.putExtra(DownloadReceiver.EXTRA_UPDATE_INFO, (Parcelable) ui);
         sendBroadcast(intent);
-
-        mUpdateHandler.post(mUpdateProgress);
     }
 
-    private Runnable mUpdateProgress = new Runnable() {
-        public void run() {
-            if (!mDownloading || mDownloadingPreference == null || mDownloadId < 0) {
-                return;
+    // Refresh every downloading row, reloads the list if a download ended
+    private void updateDownloadingRows() {
+        boolean ended = false;
+        for (int i = 0; i < mUpdatesList.getPreferenceCount(); i++) {
+            Preference pref = mUpdatesList.getPreference(i);
+            if (!(pref instanceof UpdatePreference) || ((UpdatePreference) pref).getStyle()
+                    != UpdatePreference.STYLE_DOWNLOADING) {
+                continue;
             }
+            DownloadQueue.Item item = mDownloadQueue.findByFileName(pref.getKey());
+            if (item == null || !updateProgress((UpdatePreference) pref, item)) {
+                ended = true;
+            }
+        }
+        if (ended) {
+            // Finished, failed or cancelled, the reloaded list shows which
+            updateLayout();
+        }
+    }
 
-            ProgressBar progressBar = mDownloadingPreference.getProgressBar();
-            if (progressBar == null) {
-                return;
+    // DownloadManager changes its row for every chunk, the notifier coalesces those
+    private ContentObserver mDownloadObserver = new ContentObserver(mUpdateHandler) {
+        @Override
+        public void onChange(boolean selfChange) {
+            for (DownloadQueue.Item item : mDownloadQueue.getItems()) {
+                if (item.getEngine() == Constants.DOWNLOAD_ENGINE_SYSTEM
+                        && item.getState() == DownloadQueue.STATE_RUNNING) {
+                    ProgressNotifier.notifyChanged(item.getId());
+                }
             }
+        }
+    };
 
-            DownloadManager.Query q = new DownloadManager.Query();
-            q.setFilterById(mDownloadId);
+    @Override
+    public void onProgressChanged(long id) {
+        DownloadQueue.Item item = mDownloadQueue.find(id);
+        if (item == null) {
+            // Gone from the queue, find the row that still shows it
+            updateDownloadingRows();
+            return;
+        }
+        Preference pref = mUpdatesList.findPreference(item.getUpdateInfo().getFileName());
+        if (pref instanceof UpdatePreference
+                && !updateProgress((UpdatePreference) pref, item)) {
+            updateLayout();
+        }
+    }
 
-            Cursor cursor = mDownloadManager.query(q);
-            int status;
+    /**
+     * Show the progress of a queued download in its row
+     *
+     * @return false if the download turned out to be gone
+     */
+    private boolean updateProgress(UpdatePreference pref, DownloadQueue.Item item) {
+        if (pref.getStyle() != UpdatePreference.STYLE_DOWNLOADING) {
+            pref.setStyle(UpdatePreference.STYLE_DOWNLOADING);
+        }
+        ProgressBar progressBar = pref.getProgressBar();
+        if (progressBar == null) {
+            // Not bound yet, onReady gets us here again
+            return true;
+        }
 
-            if (cursor == null || !cursor.moveToFirst()) {
-                // DownloadReceiver has likely already removed the download
-                // from the DB due to failure or MD5 mismatch
-                status = DownloadManager.STATUS_FAILED;
-            } else {
-                status = cursor.getInt(cursor.getColumnIndex(DownloadManager.COLUMN_STATUS));
+        int verifyProgress = VerifyService.getProgress(item.getId());
+        if (verifyProgress >= 0) {
+            if (showProgress(progressBar, false, 100, verifyProgress)) {
+                pref.setDownloadingSummary(getString(R.string.verifying_update, verifyProgress));
             }
+            return true;
+        }
 
-            switch (status) {
-                case DownloadManager.STATUS_PENDING:
-                    progressBar.setIndeterminate(true);
-                    break;
-                case DownloadManager.STATUS_PAUSED:
-                case DownloadManager.STATUS_RUNNING:
-                    int downloadedBytes = cursor.getInt(
-                        cursor.getColumnIndex(DownloadManager.COLUMN_BYTES_DOWNLOADED_SO_FAR));
-                    int totalBytes = cursor.getInt(
-                        cursor.getColumnIndex(DownloadManager.COLUMN_TOTAL_SIZE_BYTES));
-
-                    progressBar.setIndeterminate(totalBytes < 0);
-                    progressBar.setMax(totalBytes);
-                    progressBar.setProgress(downloadedBytes);
-                    break;
-                case DownloadManager.STATUS_FAILED:
-                    mDownloadingPreference.setStyle(UpdatePreference.STYLE_NEW);
-                    resetDownloadState();
-                    break;
-            }
+        if (item.getState() != DownloadQueue.STATE_RUNNING || item.getSystemId() < 0
+                && item.getEngine() == Constants.DOWNLOAD_ENGINE_SYSTEM) {
+            // Waiting for a free slot or for the verification to start
+            showProgress(progressBar, true, progressBar.getMax(), progressBar.getProgress());
+            return true;
+        }
 
+        if (item.getEngine() == Constants.DOWNLOAD_ENGINE_INTERNAL) {
+            updateInternalProgress(progressBar, item.getId());
+            return true;
+        }
+
+        DownloadManager.Query q = new DownloadManager.Query();
+        q.setFilterById(item.getSystemId());
+
+        Cursor cursor = mDownloadManager.query(q);
+        if (cursor == null || !cursor.moveToFirst()) {
+            // Removed behind our back, DownloadReceiver will never hear of it
             if (cursor != null) {
                 cursor.close();
             }
-            if (status != DownloadManager.STATUS_FAILED) {
-                mUpdateHandler.postDelayed(this, 1000);
-            }
+            Toast.makeText(this, R.string.download_not_found, Toast.LENGTH_LONG).show();
+            mDownloadQueue.remove(item.getId());
+            DownloadReceiver.startQueuedDownloads(this);
+            return false;
         }
-    };
+
+        // A failed download is reported by DownloadReceiver, which drops it from the queue
+        int status = cursor.getInt(cursor.getColumnIndex(DownloadManager.COLUMN_STATUS));
+
+        switch (status) {
+            case DownloadManager.STATUS_PENDING:
+                showProgress(progressBar, true, progressBar.getMax(), progressBar.getProgress());
+                break;
+            case DownloadManager.STATUS_PAUSED:
+            case DownloadManager.STATUS_RUNNING:
+                int downloadedBytes = cursor.getInt(
+                    cursor.getColumnIndex(DownloadManager.COLUMN_BYTES_DOWNLOADED_SO_FAR));
+                int totalBytes = cursor.getInt(
+                    cursor.getColumnIndex(DownloadManager.COLUMN_TOTAL_SIZE_BYTES));
+
+                showProgress(progressBar, totalBytes < 0, totalBytes, downloadedBytes);
+                break;
+        }
+
+        cursor.close();
+        return true;
+    }
+
+    private void updateInternalProgress(ProgressBar progressBar, long id) {
+        DownloadService.Progress progress = DownloadService.getProgress(id);
+
+        // Count in KiB, update zips do not fit into an int
+        if (progress != null && progress.total > 0) {
+            showProgress(progressBar, false, (int) (progress.total / 1024),
+                    (int) (progress.downloaded / 1024));
+        } else {
+            // Not picked up yet, or patching a delta
+            showProgress(progressBar, true, progressBar.getMax(), progressBar.getProgress());
+        }
+    }
+
+    /**
+     * Only touch the progress bar if what it shows changes
+     *
+     * @return whether anything changed
+     */
+    private boolean showProgress(ProgressBar progressBar, boolean indeterminate, int max,
+            int progress) {
+        if (progressBar.isIndeterminate() == indeterminate && progressBar.getMax() == max
+                && progressBar.getProgress() == progress) {
+            return false;
+        }
+        progressBar.setIndeterminate(indeterminate);
+        progressBar.setMax(max);
+        progressBar.setProgress(progress);
+        return true;
+    }
 
     @Override
     public void onStopDownload(final UpdatePreference pref) {
-        if (!mDownloading || mFileName == null || mDownloadId < 0) {
+        final DownloadQueue.Item item = mDownloadQueue.findByFileName(pref.getKey());
+        if (item == null) {
             pref.setStyle(UpdatePreference.STYLE_NEW);
-            resetDownloadState();
             return;
         }
 
@@ -404,15 +535,21 @@ public class UpdatesSettings extends PreferenceActivity implements
                         pref.setStyle(UpdatePreference.STYLE_NEW);
 
                         // We are OK to stop download, trigger it
-                        mDownloadManager.remove(mDownloadId);
-                        mUpdateHandler.removeCallbacks(mUpdateProgress);
-                        resetDownloadState();
+                        long id = item.getId();
+                        if (VerifyService.getProgress(id) >= 0) {
+                            VerifyService.cancelVerification(UpdatesSettings.this, id);
+                        }
+                        if (item.getState() == DownloadQueue.STATE_RUNNING) {
+                            if (item.getEngine() == Constants.DOWNLOAD_ENGINE_INTERNAL) {
+                                DownloadService.cancelDownload(UpdatesSettings.this, id);
+                            } else if (item.getSystemId() >= 0) {
+                                mDownloadManager.remove(item.getSystemId());
+                            }
+                        }
 
-                        // Clear the stored data from shared preferences
-                        mPrefs.edit()
-                                .remove(Constants.DOWNLOAD_ID)
-                                .remove(Constants.DOWNLOAD_MD5)
-                                .apply();
+                        // Drop it from the queue, which lets the next one in
+                        mDownloadQueue.remove(id);
+                        DownloadReceiver.startQueuedDownloads(UpdatesSettings.this);
 
                         Toast.makeText(UpdatesSettings.this,
                                 R.string.download_cancelled, Toast.LENGTH_SHORT).show();
@@ -437,7 +574,15 @@ public class UpdatesSettings extends PreferenceActivity implements
             return;
         }
 
-        String fileName = new File(fullPathName).getName();
+        mFinishedDownloadPath = fullPathName;
+        if (mLoadTask == null) {
+            onDownloadCompleted();
+        }
+    }
+
+    private void onDownloadCompleted() {
+        String fileName = new File(mFinishedDownloadPath).getName();
+        mFinishedDownloadPath = null;
 
         // Find the matching preference so we can retrieve the UpdateInfo
         UpdatePreference pref = (UpdatePreference) mUpdatesList.findPreference(fileName);
@@ -445,15 +590,6 @@ public class UpdatesSettings extends PreferenceActivity implements
             pref.setStyle(UpdatePreference.STYLE_DOWNLOADED);
             onStartUpdate(pref);
         }
-
-        resetDownloadState();
-    }
-
-    private void resetDownloadState() {
-        mDownloadId = -1;
-        mFileName = null;
-        mDownloading = false;
-        mDownloadingPreference = null;
     }
 
     private String mapCheckValue(Integer value) {
@@ -501,90 +637,160 @@ public class UpdatesSettings extends PreferenceActivity implements
         mProgressDialog.show();
     }
 
+    /**
+     * Reload the update list in the background, a newer load supersedes any
+     * that is still running. The result is applied by onUpdatesLoaded().
+     */
     private void updateLayout() {
-        // Read existing Updates
-        LinkedList<String> existingFiles = new LinkedList<String>();
+        if (mLoadTask != null) {
+            mLoadTask.cancel(false);
+        }
+        mLoadTask = new LoadUpdatesTask();
+        mLoadTask.execute();
+    }
 
-        mUpdateFolder = Utils.makeUpdateFolder();
-        File[] files = mUpdateFolder.listFiles(new UpdateFilter(".zip"));
+    /**
+     * Result of a background load, never changed after it was created
+     */
+    private static final class UpdatesSnapshot {
+        final List<UpdateInfo> updates;
+        final boolean moreHistory;
+        final long loadTime;
 
-        if (mUpdateFolder.exists() && mUpdateFolder.isDirectory() && files != null) {
-            for (File file : files) {
-                if (file.isFile()) {
-                    existingFiles.add(file.getName());
+        UpdatesSnapshot(List<UpdateInfo> updates, boolean moreHistory, long loadTime) {
+            this.updates = Collections.unmodifiableList(updates);
+            this.moreHistory = moreHistory;
+            this.loadTime = loadTime;
+        }
+    }
+
+    private class LoadUpdatesTask extends AsyncTask<Void, Void, UpdatesSnapshot> {
+        @Override
+        protected UpdatesSnapshot doInBackground(Void... params) {
+            long start = SystemClock.elapsedRealtime();
+
+            // Read existing Updates
+            Set<String> existingFiles = new HashSet<String>();
+            File[] files = mUpdateFolder.listFiles(new UpdateFilter(".zip"));
+
+            if (mUpdateFolder.exists() && mUpdateFolder.isDirectory() && files != null) {
+                for (File file : files) {
+                    if (file.isFile()) {
+                        existingFiles.add(file.getName());
+                    }
                 }
             }
-        }
+            if (isCancelled()) {
+                return null;
+            }
 
-        // Clear the notification if one exists
-        Utils.cancelNotification(this);
+            // Build list of updates
+            UpdateCatalog catalog = ((UpdateApplication) getApplication()).getCatalog();
+            List<UpdateInfo> availableUpdates = catalog.getUpdates();
+            final LinkedList<UpdateInfo> updates = new LinkedList<UpdateInfo>();
 
-        // Build list of updates
-        LinkedList<UpdateInfo> availableUpdates = State.loadState(this);
-        final LinkedList<UpdateInfo> updates = new LinkedList<UpdateInfo>();
+            for (String fileName : existingFiles) {
+                updates.add(new UpdateInfo(fileName));
+            }
+            for (UpdateInfo update : availableUpdates) {
+                // Only add updates to the list that are not already downloaded
+                if (existingFiles.contains(update.getFileName())) {
+                    continue;
+                }
+                updates.add(update);
+            }
 
-        for (String fileName : existingFiles) {
-            updates.add(new UpdateInfo(fileName));
+            Collections.sort(updates, new Comparator<UpdateInfo>() {
+                @Override
+                public int compare(UpdateInfo lhs, UpdateInfo rhs) {
+                    // sort in descending 'UI name' order (newest first)
+                    return -lhs.getName().compareTo(rhs.getName());
+                }
+            });
+
+            return new UpdatesSnapshot(updates, catalog.hasMoreHistory(),
+                    SystemClock.elapsedRealtime() - start);
         }
-        for (UpdateInfo update : availableUpdates) {
-            // Only add updates to the list that are not already downloaded
-            if (existingFiles.contains(update.getFileName())) {
-                continue;
+
+        @Override
+        protected void onPostExecute(UpdatesSnapshot snapshot) {
+            if (mLoadTask != this || snapshot == null) {
+                // Superseded by a newer load
+                return;
             }
-            updates.add(update);
+            mLoadTask = null;
+            onUpdatesLoaded(snapshot);
         }
+    }
 
-        Collections.sort(updates, new Comparator<UpdateInfo>() {
-            @Override
-            public int compare(UpdateInfo lhs, UpdateInfo rhs) {
-                // sort in descending 'UI name' order (newest first)
-                return -lhs.getName().compareTo(rhs.getName());
-            }
-        });
+    private void onUpdatesLoaded(UpdatesSnapshot snapshot) {
+        long start = SystemClock.elapsedRealtime();
+
+        // Clear the notification if one exists
+        Utils.cancelNotification(this);
 
         // Update the preference list
-        refreshPreferences(updates);
+        mMoreHistory = snapshot.moreHistory;
+        refreshPreferences(snapshot.updates);
 
-        // Prune obsolete change log files
-        new Thread() {
-            @Override
-            public void run() {
-                File[] files = getCacheDir().listFiles(new UpdateFilter(".changelog"));
-                if (files == null) {
-                    return;
-                }
+        Logger.log(TAG, "Loaded " + snapshot.updates.size() + " updates in "
+                + snapshot.loadTime + " ms, applied in "
+                + (SystemClock.elapsedRealtime() - start) + " ms");
 
-                for (File file : files) {
-                    boolean updateExists = false;
-                    for (UpdateInfo info : updates) {
-                        if (file.getName().startsWith(info.getFileName())) {
-                            updateExists = true;
-                            break;
-                        }
-                    }
-                    if (!updateExists) {
-                        file.delete();
-                    }
-                }
-            }
-        }.start();
+        // A download that finished while we were loading needs its preference
+        if (mFinishedDownloadPath != null) {
+            onDownloadCompleted();
+        }
+    }
+
+    /**
+     * Have the next page of older builds fetched, unless one is on its way already
+     */
+    private void requestHistory() {
+        if (!mMoreHistory || mHistoryRequested) {
+            return;
+        }
+        mHistoryRequested = true;
+        Intent i = new Intent(this, UpdateCheckService.class);
+        i.setAction(UpdateCheckService.ACTION_FETCH_HISTORY);
+        startService(i);
     }
 
-    private void refreshPreferences(LinkedList<UpdateInfo> updates) {
+    /**
+     * Bring the rows in line with the list, reusing those still listed.
+     * Package-private so the tests can measure it.
+     */
+    void refreshPreferences(List<UpdateInfo> updates) {
         if (mUpdatesList == null) {
             return;
         }
 
-        // Clear the list
-        mUpdatesList.removeAll();
+        // Index the rows we already have by file name so they can be reused
+        Map<String, UpdatePreference> existing = new HashMap<String, UpdatePreference>();
+        Set<String> keys = new HashSet<String>();
+        for (UpdateInfo ui : updates) {
+            keys.add(ui.getFileName());
+        }
+        for (int i = mUpdatesList.getPreferenceCount() - 1; i >= 0; i--) {
+            Preference pref = mUpdatesList.getPreference(i);
+            if (pref instanceof UpdatePreference && keys.contains(pref.getKey())) {
+                existing.put(pref.getKey(), (UpdatePreference) pref);
+            } else {
+                // Gone from the list, or the empty list message
+                mUpdatesList.removePreference(pref);
+            }
+        }
 
         // Convert the installed version name to the associated filename
-        String installedZip = "eos-" + Utils.getInstalledVersion() + ".zip";
+        String installedZip = "eos-" + BuildEnvironment.get().getInstalledVersion() + ".zip";
 
         // Add the updates
+        int order = 0;
+        boolean downloadGone = false;
         for (UpdateInfo ui : updates) {
-            // Determine the preference style and create the preference
-            boolean isDownloading = ui.getFileName().equals(mFileName);
+            // Determine the preference style
+            DownloadQueue.Item item = mDownloadQueue.findByFileName(ui.getFileName());
+            boolean isDownloading = item != null;
             int style;
 
             if (isDownloading) {
@@ -599,19 +805,43 @@ public class UpdatesSettings extends PreferenceActivity implements
                 style = UpdatePreference.STYLE_DOWNLOADED;
             }
 
-            UpdatePreference up = new UpdatePreference(this, ui, style);
-            up.setOnActionListener(this);
-            up.setKey(ui.getFileName());
+            // Reuse the row if we have one, only touching what changed
+            UpdatePreference up = existing.get(ui.getFileName());
+            boolean reused = up != null;
+            if (reused) {
+                // Equal updates may still differ in where they are downloaded from
+                UpdateInfo old = up.getUpdateInfo();
+                if (!ui.equals(old)
+                        || !TextUtils.equals(ui.getDownloadUrl(), old.getDownloadUrl())) {
+                    up.setUpdateInfo(ui);
+                }
+                if (up.getStyle() != style) {
+                    up.setStyle(style);
+                }
+                if (up.getOrder() != order) {
+                    up.setOrder(order);
+                }
+            } else {
+                up = new UpdatePreference(this, ui, style);
+                up.setOnActionListener(this);
+                up.setKey(ui.getFileName());
+                up.setOrder(order);
+            }
+            order++;
 
-            // If we have an in progress download, link the preference
+            // If we have a queued download, show its progress. A bound row won't be
+            // bound again unless it scrolls, so it is updated right away.
             if (isDownloading) {
-                mDownloadingPreference = up;
-                up.setOnReadyListener(this);
-                mDownloading = true;
+                if (up.getProgressBar() != null) {
+                    downloadGone |= !updateProgress(up, item);
+                } else {
+                    up.setOnReadyListener(this);
+                }
             }
 
-            // Add to the list
-            mUpdatesList.addPreference(up);
+            if (!reused) {
+                mUpdatesList.addPreference(up);
+            }
         }
 
         // If no updates are in the list, show the default message
@@ -622,6 +852,10 @@ public class UpdatesSettings extends PreferenceActivity implements
             pref.setEnabled(false);
             mUpdatesList.addPreference(pref);
         }
+
+        if (downloadGone) {
+            updateLayout();
+        }
     }
 
     @Override
@@ -704,8 +938,9 @@ public class UpdatesSettings extends PreferenceActivity implements
         String date = DateFormat.getLongDateFormat(this).format(lastCheck);
         String time = DateFormat.getTimeFormat(this).format(lastCheck);
 
-        String message = getString(R.string.sysinfo_device) + " " + Utils.getDeviceType() + "\n\n"
-                + getString(R.string.sysinfo_running) + " " + Utils.getInstalledVersion() + "\n\n"
+        BuildEnvironment env = BuildEnvironment.get();
+        String message = getString(R.string.sysinfo_device) + " " + env.getDeviceType() + "\n\n"
+                + getString(R.string.sysinfo_running) + " " + env.getInstalledVersion() + "\n\n"
                 + getString(R.string.sysinfo_last_check) + " " + date + " " + time;
 
         AlertDialog.Builder builder = new AlertDialog.Builder(this)
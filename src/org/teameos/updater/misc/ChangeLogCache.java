@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2015 The TeamEos Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package org.teameos.updater.misc;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.teameos.updater.utils.Http;
+import org.teameos.updater.utils.UpdateFilter;
+
+/**
+ * The change logs in the cache dir, one per update. They are fetched after an
+ * update check so they are at hand when the user opens one. Only missing ones
+ * are fetched, a few at a time, and a run stops fetching once it transferred
+ * FETCH_BUDGET bytes; whatever is left is picked up by the next check.
+ *
+ * Every file is written to a temporary file first and renamed into place, so
+ * readers never see a partial change log. An empty file means the server has
+ * no change log for that update. The cache is kept under MAX_CACHE_SIZE by
+ * dropping the least recently used files, get() counts as a use.
+ */
+public class ChangeLogCache {
+    private static final String TAG = "ChangeLogCache";
+
+    private static final String SUFFIX = ".changelog";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final int PARALLEL_FETCHES = 3;
+    private static final long FETCH_BUDGET = 512 * 1024;
+    private static final long MAX_FILE_SIZE = 256 * 1024;
+    private static final long MAX_CACHE_SIZE = 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private ChangeLogCache() {
+        // this class is not supposed to be instantiated
+    }
+
+    /**
+     * The change log of the update, marked as used. The file does not exist
+     * if it was not fetched (yet).
+     */
+    public static File get(Context context, UpdateInfo ui) {
+        File file = ui.getChangeLogFile(context);
+        if (file.exists()) {
+            file.setLastModified(System.currentTimeMillis());
+        }
+        return file;
+    }
+
+    /**
+     * Fetch the change logs of the updates that are not cached yet, then trim
+     * the cache. Blocks until done, call it off the main thread. Runs are
+     * serialized, as trim() drops the temporary files of fetches in flight.
+     */
+    public static synchronized void prefetch(Context context, List<UpdateInfo> updates, String userAgent) {
+        List<Callable<Void>> fetches = new ArrayList<Callable<Void>>();
+        AtomicLong budget = new AtomicLong(FETCH_BUDGET);
+        for (UpdateInfo ui : updates) {
+            File file = ui.getChangeLogFile(context);
+            if (ui.getChangeLogUrl() != null && !file.exists()) {
+                fetches.add(new Fetch(ui.getChangeLogUrl(), file, userAgent, budget));
+            }
+        }
+
+        if (!fetches.isEmpty()) {
+            Log.d(TAG, "Fetching " + fetches.size() + " change logs");
+            ExecutorService pool = Executors.newFixedThreadPool(
+                    Math.min(PARALLEL_FETCHES, fetches.size()));
+            try {
+                pool.invokeAll(fetches);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                pool.shutdownNow();
+            }
+            Log.d(TAG, "Change logs fetched, " + (FETCH_BUDGET - budget.get())
+                    + " bytes transferred");
+        }
+
+        trim(context.getCacheDir());
+    }
+
+    /**
+     * Drop least recently used change logs until the cache fits MAX_CACHE_SIZE,
+     * along with temporary files a killed fetch left behind. Only call it
+     * from prefetch(), while no fetch is running.
+     */
+    private static void trim(File dir) {
+        File[] stale = dir.listFiles(new UpdateFilter(SUFFIX + TEMP_SUFFIX));
+        if (stale != null) {
+            for (File file : stale) {
+                file.delete();
+            }
+        }
+
+        File[] files = dir.listFiles(new UpdateFilter(SUFFIX));
+        if (files == null) {
+            return;
+        }
+        long size = 0;
+        for (int i = 0; i < files.length; i++) {
+            size += files[i].length();
+        }
+        if (size <= MAX_CACHE_SIZE) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < files.length && size > MAX_CACHE_SIZE; i++) {
+            size -= files[i].length();
+            Log.d(TAG, "Evicting " + files[i].getName());
+            files[i].delete();
+        }
+    }
+
+    private static final class Fetch implements Callable<Void> {
+        private final String mUrl;
+        private final File mFile;
+        private final String mUserAgent;
+        private final AtomicLong mBudget;
+
+        Fetch(String url, File file, String userAgent, AtomicLong budget) {
+            mUrl = url;
+            mFile = file;
+            mUserAgent = userAgent;
+            mBudget = budget;
+        }
+
+        @Override
+        public Void call() {
+            if (mBudget.get() <= 0) {
+                return null;
+            }
+
+            File temp = new File(mFile.getPath() + TEMP_SUFFIX);
+            temp.delete();
+            Http.Response response = null;
+            FileOutputStream out = null;
+            boolean done = false;
+            try {
+                response = new Http.Call(mUrl).header("User-Agent", mUserAgent).execute();
+                int status = response.getCode();
+                if (status == HttpURLConnection.HTTP_NOT_FOUND) {
+                    // Keep an empty one, so it isn't asked for again
+                    done = temp.createNewFile();
+                    return null;
+                }
+                if (status != HttpURLConnection.HTTP_OK) {
+                    Log.w(TAG, "Fetching " + mUrl + " failed with HTTP status " + status);
+                    return null;
+                }
+                if (getContentLength(response) > MAX_FILE_SIZE) {
+                    Log.w(TAG, "Not fetching " + mUrl + ", too large");
+                    return null;
+                }
+
+                InputStream in = response.getBody();
+                out = new FileOutputStream(temp);
+                byte[] buffer = new byte[BUFFER_SIZE];
+                long charged = 0;
+                int read;
+                while ((read = in.read(buffer)) >= 0) {
+                    out.write(buffer, 0, read);
+                    long transferred = response.getTransferredBytes();
+                    long left = mBudget.addAndGet(charged - transferred);
+                    charged = transferred;
+                    if (left < 0 || response.getDecodedBytes() > MAX_FILE_SIZE) {
+                        Log.w(TAG, "Giving up on " + mUrl + ", over budget");
+                        return null;
+                    }
+                }
+                out.getFD().sync();
+                done = true;
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to fetch " + mUrl, e);
+            } finally {
+                if (out != null) {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        done = false;
+                    }
+                }
+                if (response != null) {
+                    response.close();
+                }
+                if (!done || !temp.renameTo(mFile)) {
+                    temp.delete();
+                }
+            }
+            return null;
+        }
+
+        private static long getContentLength(Http.Response response) {
+            try {
+                return Long.parseLong(response.getHeader("Content-Length"));
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+    }
+}
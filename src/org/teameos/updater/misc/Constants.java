@@ -12,8 +12,17 @@ package org.teameos.updater.misc;
 public class Constants {
     // Download related
     public static final String UPDATES_FOLDER = "eos_updates";
+    // Single download slot of older versions, DownloadQueue migrates it
     public static final String DOWNLOAD_ID = "download_id";
     public static final String DOWNLOAD_MD5 = "download_md5";
+    // File name of the update last handed to recovery, the base for delta updates
+    public static final String LAST_APPLIED_UPDATE = "last_applied_update";
+    // Tags of the download result notifications on display
+    public static final String DOWNLOAD_RESULT_NOTIFICATIONS = "download_result_notifications";
+
+    // Download backends
+    public static final int DOWNLOAD_ENGINE_SYSTEM = 0;
+    public static final int DOWNLOAD_ENGINE_INTERNAL = 1;
 
     // Preferences
     public static final String ENABLE_PREF = "pref_enable_updates";
@@ -22,6 +31,24 @@ public class Constants {
     public static final String UPDATE_TYPE_PREF = "eos_pref_update_types";//"pref_update_types";
     public static final String LAST_UPDATE_CHECK_PREF = "pref_last_update_check";
 
+    // Conditional update check validators
+    public static final String QUERY_URL = "query_url";
+    public static final String QUERY_ETAG = "query_etag";
+    public static final String QUERY_LAST_MODIFIED = "query_last_modified";
+
+    // Mirrors the server announced, see Mirrors
+    public static final String ANNOUNCED_MIRRORS = "announced_mirrors";
+
+    // Check scheduling, see CheckScheduler
+    public static final String CHECK_FAILURES = "check_failures";
+    public static final String LAST_CHECK_FAILURE = "last_check_failure";
+    public static final String CHECK_NOT_BEFORE = "check_not_before";
+    public static final String CHECK_JITTER_SEED = "check_jitter_seed";
+    // Checks the scheduler started, to compare how often alarms and jobs run them
+    public static final String SCHEDULED_CHECK_MODE = "scheduled_check_mode";
+    public static final String SCHEDULED_CHECK_SINCE = "scheduled_check_since";
+    public static final String SCHEDULED_CHECK_COUNT = "scheduled_check_count";
+
     // Update Check items
     public static final String BOOT_CHECK_COMPLETED = "boot_check_completed";
     public static final int UPDATE_FREQ_AT_BOOT = -1;
@@ -37,5 +64,7 @@ public class Constants {
     public static final int UPDATE_TYPE_NEW_NIGHTLY = 0;//1;
     //public static final int UPDATE_TYPE_ALL_STABLE = 2;
     public static final int UPDATE_TYPE_ALL_NIGHTLY = 1;//3;
+    // Builds per page of the file list, and how many pages are kept
     public static final int UPDATE_MAX_FILE_HISTORY = 5;
+    public static final int UPDATE_MAX_HISTORY_PAGES = 4;
 }
@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2015 The TeamEos Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package org.teameos.updater.misc;
+
+import android.app.DownloadManager;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.preference.PreferenceManager;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.teameos.updater.utils.Utils;
+
+/**
+ * Downloads the user asked for, in the order they were asked for. Each item
+ * keeps its own digests and state, and the queue is written to disk on every
+ * change so it survives the process being killed. At most
+ * Utils.getMaxActiveDownloads() items transfer at the same time.
+ *
+ * File layout: magic, format version, UpdateInfo format version, next id,
+ * entry count, then one entry per item, each prefixed with its length in bytes
+ * so readers can skip fields appended by newer versions.
+ */
+public class DownloadQueue {
+    private static final String TAG = "DownloadQueue";
+    private static final String FILENAME = "downloads.bin";
+
+    private static final int MAGIC = 0x454f5351; // "EOSQ"
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 4096;
+    private static final String PARTIAL_SUFFIX = ".partial";
+
+    // Waiting for a free slot
+    public static final int STATE_QUEUED = 0;
+    // Being transferred by its engine
+    public static final int STATE_RUNNING = 1;
+    // Transferred, VerifyService checks it
+    public static final int STATE_VERIFYING = 2;
+
+    public static final class Item {
+        private final long mId;
+        private final int mEngine;
+        private final UpdateInfo mUpdate;
+        private volatile long mSystemId;
+        private volatile int mState;
+
+        private Item(long id, int engine, UpdateInfo update, long systemId, int state) {
+            mId = id;
+            mEngine = engine;
+            mUpdate = update;
+            mSystemId = systemId;
+            mState = state;
+        }
+
+        public long getId() {
+            return mId;
+        }
+
+        /**
+         * One of Constants.DOWNLOAD_ENGINE_*
+         */
+        public int getEngine() {
+            return mEngine;
+        }
+
+        public UpdateInfo getUpdateInfo() {
+            return mUpdate;
+        }
+
+        /**
+         * DownloadManager id of a system engine download, -1 until it was enqueued
+         */
+        public long getSystemId() {
+            return mSystemId;
+        }
+
+        public int getState() {
+            return mState;
+        }
+
+        @Override
+        public String toString() {
+            return "Item [id=" + mId + ", engine=" + mEngine + ", file=" + mUpdate.getFileName()
+                    + ", systemId=" + mSystemId + ", state=" + mState + "]";
+        }
+    }
+
+    private static DownloadQueue sInstance;
+
+    private final AtomicFile mFile;
+    private final List<Item> mItems = new ArrayList<Item>();
+    private long mNextId = 0;
+
+    public static synchronized DownloadQueue getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new DownloadQueue(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private DownloadQueue(Context context) {
+        mFile = new AtomicFile(new File(context.getFilesDir(), FILENAME));
+        load();
+        migrateSingleDownload(context);
+    }
+
+    /**
+     * Queue a download of the update
+     */
+    public synchronized Item add(UpdateInfo ui, int engine) {
+        Item item = new Item(mNextId++, engine, ui, -1, STATE_QUEUED);
+        mItems.add(item);
+        save();
+        return item;
+    }
+
+    public synchronized Item find(long id) {
+        for (Item item : mItems) {
+            if (item.mId == id) {
+                return item;
+            }
+        }
+        return null;
+    }
+
+    public synchronized Item findBySystemId(long systemId) {
+        if (systemId < 0) {
+            return null;
+        }
+        for (Item item : mItems) {
+            if (item.mSystemId == systemId) {
+                return item;
+            }
+        }
+        return null;
+    }
+
+    public synchronized Item findByFileName(String fileName) {
+        for (Item item : mItems) {
+            if (item.mUpdate.getFileName().equals(fileName)) {
+                return item;
+            }
+        }
+        return null;
+    }
+
+    public synchronized List<Item> getItems() {
+        return new ArrayList<Item>(mItems);
+    }
+
+    public synchronized boolean isEmpty() {
+        return mItems.isEmpty();
+    }
+
+    /**
+     * Mark as many queued items running as the concurrency limit allows.
+     * The caller has to start them.
+     *
+     * @return the items to start, oldest first
+     */
+    public synchronized List<Item> takeStartable() {
+        int running = 0;
+        for (Item item : mItems) {
+            if (item.mState == STATE_RUNNING) {
+                running++;
+            }
+        }
+
+        List<Item> startable = new ArrayList<Item>();
+        int max = Math.max(1, Utils.getMaxActiveDownloads());
+        for (Item item : mItems) {
+            if (running >= max) {
+                break;
+            }
+            if (item.mState == STATE_QUEUED) {
+                item.mState = STATE_RUNNING;
+                startable.add(item);
+                running++;
+            }
+        }
+        if (!startable.isEmpty()) {
+            save();
+        }
+        return startable;
+    }
+
+    public synchronized void setSystemId(Item item, long systemId) {
+        item.mSystemId = systemId;
+        save();
+    }
+
+    public synchronized void setState(Item item, int state) {
+        item.mState = state;
+        save();
+    }
+
+    /**
+     * @return the removed item, null if there was none with that id
+     */
+    public synchronized Item remove(long id) {
+        Item item = find(id);
+        if (item != null) {
+            mItems.remove(item);
+            save();
+        }
+        return item;
+    }
+
+    private void save() {
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, BUFFER_SIZE));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(State.VERSION);
+            out.writeLong(mNextId);
+            out.writeInt(mItems.size());
+
+            ByteArrayOutputStream entry = new ByteArrayOutputStream(512);
+            DataOutputStream entryOut = new DataOutputStream(entry);
+            for (Item item : mItems) {
+                entry.reset();
+                entryOut.writeLong(item.mId);
+                entryOut.writeInt(item.mEngine);
+                entryOut.writeLong(item.mSystemId);
+                entryOut.writeInt(item.mState);
+                item.mUpdate.writeToStream(entryOut);
+                out.writeInt(entry.size());
+                entry.writeTo(out);
+            }
+            out.flush();
+            mFile.finishWrite(fos);
+        } catch (IOException e) {
+            Log.e(TAG, "Exception on saving download queue", e);
+            if (fos != null) {
+                mFile.failWrite(fos);
+            }
+        }
+    }
+
+    private void load() {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mFile.openRead(), BUFFER_SIZE));
+            if (in.readInt() != MAGIC) {
+                throw new IllegalArgumentException("Bad magic");
+            }
+            int version = in.readInt();
+            if (version < 1 || version > VERSION) {
+                throw new IllegalArgumentException("Unsupported version " + version);
+            }
+            int updateVersion = in.readInt();
+            mNextId = in.readLong();
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                int length = in.readInt();
+                if (length < 0) {
+                    throw new IllegalArgumentException("Bad entry length " + length);
+                }
+                byte[] buffer = new byte[length];
+                in.readFully(buffer);
+                DataInputStream entry = new DataInputStream(new ByteArrayInputStream(buffer));
+                long id = entry.readLong();
+                int engine = entry.readInt();
+                long systemId = entry.readLong();
+                int state = entry.readInt();
+                UpdateInfo ui = new UpdateInfo(entry, updateVersion);
+                mItems.add(new Item(id, engine, ui, systemId, state));
+            }
+        } catch (FileNotFoundException e) {
+            Log.i(TAG, "No downloads queued");
+        } catch (IllegalArgumentException e) {
+            Log.d(TAG, "Unexpected download queue format", e);
+            mItems.clear();
+        } catch (IOException e) {
+            Log.e(TAG, "Exception on loading download queue", e);
+            mItems.clear();
+        } finally {
+            try {
+                if (in != null) {
+                    in.close();
+                }
+            } catch (IOException e) {
+                // ignored, can't do anything anyway
+            }
+        }
+    }
+
+    /**
+     * Older versions kept a single DownloadManager download in the shared
+     * preferences, take it over. Its file name is only known to DownloadManager.
+     */
+    private void migrateSingleDownload(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        if (!prefs.contains(Constants.DOWNLOAD_ID)) {
+            return;
+        }
+
+        long systemId = prefs.getLong(Constants.DOWNLOAD_ID, -1);
+        String fileName = getSystemFileName(context, systemId);
+        if (fileName != null && findBySystemId(systemId) == null) {
+            UpdateInfo ui = new UpdateInfo(fileName, 0, 0, null,
+                    prefs.getString(Constants.DOWNLOAD_MD5, null), null, null,
+                    UpdateInfo.Type.UNKNOWN);
+            mItems.add(new Item(mNextId++, Constants.DOWNLOAD_ENGINE_SYSTEM, ui, systemId,
+                    STATE_RUNNING));
+            save();
+            Log.i(TAG, "Migrated download of " + fileName);
+        }
+
+        prefs.edit()
+                .remove(Constants.DOWNLOAD_ID)
+                .remove(Constants.DOWNLOAD_MD5)
+                .apply();
+    }
+
+    /**
+     * Name of the update a DownloadManager download writes, null if it is gone
+     */
+    private static String getSystemFileName(Context context, long systemId) {
+        if (systemId < 0) {
+            return null;
+        }
+        DownloadManager dm = (DownloadManager) context.getSystemService(Context.DOWNLOAD_SERVICE);
+        DownloadManager.Query query = new DownloadManager.Query();
+        query.setFilterById(systemId);
+        Cursor c = dm.query(query);
+        if (c == null) {
+            return null;
+        }
+        try {
+            if (!c.moveToFirst()) {
+                return null;
+            }
+            String path = c.getString(c.getColumnIndex(DownloadManager.COLUMN_LOCAL_FILENAME));
+            if (path == null) {
+                return null;
+            }
+            // Downloads were written as <name>.partial and renamed when complete
+            String fileName = new File(path).getName();
+            return fileName.endsWith(PARTIAL_SUFFIX)
+                    ? fileName.substring(0, fileName.length() - PARTIAL_SUFFIX.length())
+                    : fileName;
+        } finally {
+            c.close();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2015 The TeamEos Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package org.teameos.updater.misc;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * In-process channel the download and verification paths push progress
+ * changes into. Listeners are called on their own handler, at most once per
+ * MIN_INTERVAL no matter how often a change is reported, and never while
+ * nothing changed. Changes of several downloads within one interval are
+ * delivered together, once per download. The listener reads the current state
+ * itself, the change only carries the download id.
+ */
+public class ProgressNotifier {
+    private static final long MIN_INTERVAL = 250;
+
+    public interface Listener {
+        void onProgressChanged(long id);
+    }
+
+    private static final CopyOnWriteArrayList<Registration> sRegistrations =
+            new CopyOnWriteArrayList<Registration>();
+
+    private ProgressNotifier() {
+        // this class is not supposed to be instantiated
+    }
+
+    /**
+     * Start calling listener on handler for every change
+     */
+    public static void addListener(Listener listener, Handler handler) {
+        removeListener(listener);
+        sRegistrations.add(new Registration(listener, handler));
+    }
+
+    /**
+     * Stop calling listener, changes that were not delivered yet are dropped
+     */
+    public static void removeListener(Listener listener) {
+        Iterator<Registration> it = sRegistrations.iterator();
+        while (it.hasNext()) {
+            Registration r = it.next();
+            if (r.mListener == listener) {
+                r.cancel();
+                sRegistrations.remove(r);
+            }
+        }
+    }
+
+    /**
+     * Report that the progress of a download changed. Cheap, may be called
+     * from any thread as often as the caller likes.
+     */
+    public static void notifyChanged(long id) {
+        for (Registration r : sRegistrations) {
+            r.schedule(id);
+        }
+    }
+
+    private static final class Registration implements Runnable {
+        private final Listener mListener;
+        private final Handler mHandler;
+        private final Set<Long> mPending = new LinkedHashSet<Long>();
+        private boolean mPosted = false;
+        private boolean mCancelled = false;
+        private long mLastDelivery = 0;
+
+        Registration(Listener listener, Handler handler) {
+            mListener = listener;
+            mHandler = handler;
+        }
+
+        synchronized void schedule(long id) {
+            if (mCancelled) {
+                return;
+            }
+            mPending.add(id);
+            if (mPosted) {
+                // Folded into the delivery that is already on its way
+                return;
+            }
+            mPosted = true;
+            long delay = mLastDelivery + MIN_INTERVAL - SystemClock.elapsedRealtime();
+            mHandler.postDelayed(this, Math.max(0, delay));
+        }
+
+        synchronized void cancel() {
+            mCancelled = true;
+            mHandler.removeCallbacks(this);
+        }
+
+        @Override
+        public void run() {
+            Long[] ids;
+            synchronized (this) {
+                if (mCancelled) {
+                    return;
+                }
+                ids = mPending.toArray(new Long[mPending.size()]);
+                mPending.clear();
+                mPosted = false;
+                mLastDelivery = SystemClock.elapsedRealtime();
+            }
+            for (Long id : ids) {
+                mListener.onProgressChanged(id);
+            }
+        }
+    }
+}
@@ -10,53 +10,140 @@
 package org.teameos.updater.misc;
 
 import android.content.Context;
+import android.util.AtomicFile;
 import android.util.Log;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.util.LinkedList;
 
+/**
+ * Persists the last fetched update list.
+ *
+ * File layout: magic, format version, entry count, then one entry per update,
+ * each prefixed with its length in bytes so readers can skip fields appended
+ * by newer versions.
+ */
 public class State {
     private static final String TAG = "State";
-    private static final String FILENAME = "eosupdater.state";
+    private static final String FILENAME = "eosupdater.bin";
+    // java.io serialized state written by older versions
+    private static final String LEGACY_FILENAME = "eosupdater.state";
+
+    private static final int MAGIC = 0x454f5355; // "EOSU"
+    // 2: SHA-256 and SHA-512 digests
+    // 3: delta patch
+    // 4: change log location
+    // Also the UpdateInfo format version DownloadQueue writes
+    static final int VERSION = 4;
+    private static final int BUFFER_SIZE = 16384;
 
     public static void saveState(Context context, LinkedList<UpdateInfo> availableUpdates) {
-        ObjectOutputStream oos = null;
+        AtomicFile file = new AtomicFile(new File(context.getCacheDir(), FILENAME));
         FileOutputStream fos = null;
         try {
-            File f = new File(context.getCacheDir(), FILENAME);
-            fos = new FileOutputStream(f);
-            oos = new ObjectOutputStream(fos);
-            oos.writeObject(availableUpdates);
-            oos.flush();
+            fos = file.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, BUFFER_SIZE));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(availableUpdates.size());
+
+            ByteArrayOutputStream entry = new ByteArrayOutputStream(256);
+            DataOutputStream entryOut = new DataOutputStream(entry);
+            for (UpdateInfo ui : availableUpdates) {
+                entry.reset();
+                ui.writeToStream(entryOut);
+                out.writeInt(entry.size());
+                entry.writeTo(out);
+            }
+            out.flush();
+            file.finishWrite(fos);
         } catch (IOException e) {
             Log.e(TAG, "Exception on saving instance state", e);
+            if (fos != null) {
+                file.failWrite(fos);
+            }
+        }
+    }
+
+    public static LinkedList<UpdateInfo> loadState(Context context) {
+        LinkedList<UpdateInfo> availableUpdates = new LinkedList<UpdateInfo>();
+        AtomicFile file = new AtomicFile(new File(context.getCacheDir(), FILENAME));
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(file.openRead(), BUFFER_SIZE));
+            if (in.readInt() != MAGIC) {
+                throw new IllegalArgumentException("Bad magic");
+            }
+            int version = in.readInt();
+            if (version < 1 || version > VERSION) {
+                throw new IllegalArgumentException("Unsupported version " + version);
+            }
+
+            int count = in.readInt();
+            byte[] buffer = new byte[256];
+            for (int i = 0; i < count; i++) {
+                int length = in.readInt();
+                if (length < 0) {
+                    throw new IllegalArgumentException("Bad entry length " + length);
+                }
+                if (length > buffer.length) {
+                    buffer = new byte[Math.max(length, buffer.length * 2)];
+                }
+                in.readFully(buffer, 0, length);
+                availableUpdates.add(new UpdateInfo(
+                        new DataInputStream(new ByteArrayInputStream(buffer, 0, length)),
+                        version));
+            }
+        } catch (IllegalArgumentException e) {
+            Log.d(TAG, "Unexpected state file format", e);
+            availableUpdates.clear();
+        } catch (FileNotFoundException e) {
+            availableUpdates = migrateLegacyState(context);
+        } catch (EOFException e) {
+            Log.e(TAG, "Truncated state file", e);
+            availableUpdates.clear();
+        } catch (IOException e) {
+            Log.e(TAG, "Exception on loading state", e);
+            availableUpdates.clear();
         } finally {
             try {
-                if (oos != null) {
-                    oos.close();
-                }
-                if (fos != null) {
-                    fos.close();
+                if (in != null) {
+                    in.close();
                 }
             } catch (IOException e) {
                 // ignored, can't do anything anyway
             }
         }
+        return availableUpdates;
     }
 
+    /**
+     * Convert a state file written with java.io serialization, then drop it
+     */
     @SuppressWarnings("unchecked")
-    public static LinkedList<UpdateInfo> loadState(Context context) {
+    private static LinkedList<UpdateInfo> migrateLegacyState(Context context) {
         LinkedList<UpdateInfo> availableUpdates = new LinkedList<UpdateInfo>();
+        File f = new File(context.getCacheDir(), LEGACY_FILENAME);
+        if (!f.exists()) {
+            Log.i(TAG, "No state info stored");
+            return availableUpdates;
+        }
+
         ObjectInputStream ois = null;
         FileInputStream fis = null;
         try {
-            File f = new File(context.getCacheDir(), FILENAME);
             fis = new FileInputStream(f);
             ois = new ObjectInputStream(fis);
 
@@ -66,12 +153,8 @@ public class State {
             }
         } catch (ClassNotFoundException e) {
             Log.e(TAG, "Unable to load stored class", e);
-        } catch (IllegalArgumentException e) {
-            Log.d(TAG, "Unexpected state file format", e);
-        } catch (FileNotFoundException e) {
-            Log.i(TAG, "No state info stored");
         } catch (IOException e) {
-            Log.e(TAG, "Exception on loading state", e);
+            Log.e(TAG, "Exception on loading legacy state", e);
         } finally {
             try {
                 if (ois != null) {
@@ -84,6 +167,10 @@ public class State {
                 // ignored, can't do anything anyway
             }
         }
+
+        Log.i(TAG, "Migrating " + availableUpdates.size() + " entries from legacy state");
+        saveState(context, availableUpdates);
+        f.delete();
         return availableUpdates;
     }
 }
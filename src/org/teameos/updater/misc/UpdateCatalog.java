@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2015 The TeamEos Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package org.teameos.updater.misc;
+
+import android.content.Context;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The last fetched update list, shared by everything in the process. It is
+ * read from the State file on first use only; a fetched page of the list is
+ * handed to mergePage(), which writes the result through and bumps the
+ * version, so holders of an older copy can tell it changed. Updates are indexed by file
+ * name and digests, so diff() compares a new list against it in linear time
+ * and a build that was rebuilt under the same name counts as a new one.
+ *
+ * The server hands the file list out in pages of UPDATE_MAX_FILE_HISTORY
+ * builds, newest first. Checks only fetch the first page, older pages are
+ * merged in by mergePage() when the user asks for more history, up to
+ * UPDATE_MAX_HISTORY_PAGES of them. The history ends at a page that came back
+ * short or listed nothing new.
+ */
+public class UpdateCatalog {
+    private final Context mContext;
+
+    private List<UpdateInfo> mUpdates;
+    private final Map<String, UpdateInfo> mByKey = new HashMap<String, UpdateInfo>();
+    private int mVersion = 0;
+    // Set once a page came back short or added nothing, there is nothing older to fetch
+    private boolean mHistoryEnd = false;
+    // The history page to fetch next, derived from the list size when it is loaded
+    private int mNextPage;
+
+    public UpdateCatalog(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    /**
+     * The updates, in the order the server listed them. Do not modify.
+     */
+    public synchronized List<UpdateInfo> getUpdates() {
+        ensureLoaded();
+        return mUpdates;
+    }
+
+    /**
+     * Changes whenever mergePage() installs a new list
+     */
+    public synchronized int getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Whether the update is listed, with the same digests
+     */
+    public synchronized boolean contains(UpdateInfo ui) {
+        ensureLoaded();
+        return mByKey.containsKey(getKey(ui));
+    }
+
+    /**
+     * Compare a new update list against the current one
+     */
+    public synchronized Diff diff(List<UpdateInfo> updates) {
+        ensureLoaded();
+        return Diff.compute(mByKey, updates);
+    }
+
+    /**
+     * The identity of an update in the index: the file name along with the
+     * digests, as the same name may be reused for a rebuilt file
+     */
+    static String getKey(UpdateInfo ui) {
+        return ui.getFileName() + '|' + ui.getMD5Sum() + '|' + ui.getSHA256Sum()
+                + '|' + ui.getSHA512Sum();
+    }
+
+    /**
+     * What differs between two update lists, matched up by file name and digests
+     */
+    public static final class Diff {
+        private final List<UpdateInfo> mAdded = new ArrayList<UpdateInfo>();
+        private final List<UpdateInfo> mRemoved = new ArrayList<UpdateInfo>();
+        private final List<UpdateInfo> mChanged = new ArrayList<UpdateInfo>();
+
+        private Diff() {
+        }
+
+        /**
+         * Compare two lists, the file names within each must be unique
+         */
+        public static Diff compute(List<UpdateInfo> oldUpdates, List<UpdateInfo> newUpdates) {
+            Map<String, UpdateInfo> byKey = new HashMap<String, UpdateInfo>(oldUpdates.size() * 2);
+            for (UpdateInfo ui : oldUpdates) {
+                byKey.put(getKey(ui), ui);
+            }
+            return compute(byKey, newUpdates);
+        }
+
+        private static Diff compute(Map<String, UpdateInfo> oldByKey,
+                List<UpdateInfo> newUpdates) {
+            Diff diff = new Diff();
+            Set<String> seen = new HashSet<String>(newUpdates.size() * 2);
+            for (UpdateInfo ui : newUpdates) {
+                String key = getKey(ui);
+                seen.add(key);
+                UpdateInfo old = oldByKey.get(key);
+                if (old == null) {
+                    diff.mAdded.add(ui);
+                } else if (!old.equals(ui)) {
+                    diff.mChanged.add(ui);
+                }
+            }
+            for (Map.Entry<String, UpdateInfo> entry : oldByKey.entrySet()) {
+                if (!seen.contains(entry.getKey())) {
+                    diff.mRemoved.add(entry.getValue());
+                }
+            }
+            return diff;
+        }
+
+        /**
+         * Updates only the new list has, including files rebuilt under an old name
+         */
+        public List<UpdateInfo> getAdded() {
+            return mAdded;
+        }
+
+        /**
+         * Updates only the old list has
+         */
+        public List<UpdateInfo> getRemoved() {
+            return mRemoved;
+        }
+
+        /**
+         * Updates of the new list that differ from the old entry with the same
+         * file name and digests
+         */
+        public List<UpdateInfo> getChanged() {
+            return mChanged;
+        }
+
+        public boolean isEmpty() {
+            return mAdded.isEmpty() && mRemoved.isEmpty() && mChanged.isEmpty();
+        }
+    }
+
+    /**
+     * Whether older builds than the ones listed may be fetched
+     */
+    public synchronized boolean hasMoreHistory() {
+        ensureLoaded();
+        return !mHistoryEnd && mNextPage <= Constants.UPDATE_MAX_HISTORY_PAGES
+                && mUpdates.size() < getMaxSize();
+    }
+
+    /**
+     * The page that follows the updates listed, counting from 1
+     */
+    public synchronized int getNextPage() {
+        ensureLoaded();
+        return mNextPage;
+    }
+
+    /**
+     * Install a freshly fetched page of the file list and persist the result.
+     * The page replaces whatever was listed from its position on; older
+     * updates that were already listed are kept unless this was the last page.
+     * A history page that lists nothing new ends the history, so it isn't
+     * asked for over and over.
+     *
+     * @param page the page number, counting from 1
+     * @param lastPage whether the server has no updates beyond this page
+     */
+    public synchronized void mergePage(int page, List<UpdateInfo> updates, boolean lastPage) {
+        ensureLoaded();
+        int start = Math.min(mUpdates.size(), (page - 1) * Constants.UPDATE_MAX_FILE_HISTORY);
+        List<UpdateInfo> merged = new ArrayList<UpdateInfo>(mUpdates.subList(0, start));
+        Set<String> listed = new HashSet<String>();
+        for (UpdateInfo ui : merged) {
+            listed.add(ui.getFileName());
+        }
+        Set<String> known = new HashSet<String>();
+        for (UpdateInfo ui : mUpdates) {
+            known.add(ui.getFileName());
+        }
+        long oldest = Long.MAX_VALUE;
+        int added = 0;
+        for (UpdateInfo ui : updates) {
+            if (listed.add(ui.getFileName())) {
+                merged.add(ui);
+                if (!known.contains(ui.getFileName())) {
+                    added++;
+                }
+            }
+            oldest = Math.min(oldest, ui.getDate());
+        }
+        if (!lastPage) {
+            // Anything newer than the page that it didn't list is gone from the server
+            for (UpdateInfo ui : mUpdates.subList(start, mUpdates.size())) {
+                if (ui.getDate() < oldest && listed.add(ui.getFileName())) {
+                    merged.add(ui);
+                }
+            }
+        }
+        if (merged.size() > getMaxSize()) {
+            merged = merged.subList(0, getMaxSize());
+        }
+        if (page > 1) {
+            mHistoryEnd = lastPage || added == 0;
+            mNextPage = page + 1;
+        } else {
+            // A check keeps the history it had unless the list ends here
+            mHistoryEnd = lastPage;
+            mNextPage = lastPage ? 2 : Math.max(mNextPage, 2);
+        }
+
+        State.saveState(mContext, new LinkedList<UpdateInfo>(merged));
+        index(merged);
+        mVersion++;
+    }
+
+    private static int getMaxSize() {
+        return Constants.UPDATE_MAX_FILE_HISTORY * Constants.UPDATE_MAX_HISTORY_PAGES;
+    }
+
+    private void ensureLoaded() {
+        if (mUpdates == null) {
+            index(State.loadState(mContext));
+            mNextPage = mUpdates.size() / Constants.UPDATE_MAX_FILE_HISTORY + 1;
+        }
+    }
+
+    private void index(List<UpdateInfo> updates) {
+        mUpdates = Collections.unmodifiableList(new ArrayList<UpdateInfo>(updates));
+        mByKey.clear();
+        for (UpdateInfo ui : mUpdates) {
+            mByKey.put(getKey(ui), ui);
+        }
+    }
+}
@@ -16,10 +16,13 @@ import android.text.TextUtils;
 import android.util.Log;
 
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
 
-import org.teameos.updater.utils.Utils;
+import org.teameos.updater.utils.BuildEnvironment;
 
 public class UpdateInfo implements Parcelable, Serializable {
     private static final long serialVersionUID = 5499890003569313403L;
@@ -32,6 +35,8 @@ public class UpdateInfo implements Parcelable, Serializable {
         NIGHTLY
     };
 
+    private static final Type[] TYPES = Type.values();
+
     private String mUiName;
     private String mFileName;
     private Type mType;
@@ -39,16 +44,41 @@ public class UpdateInfo implements Parcelable, Serializable {
     private long mBuildDate;
     private String mDownloadUrl;
     private String mMd5Sum;
+    private String mSha256Sum;
+    private String mSha512Sum;
+
+    // Optional patch from the build dated mDeltaSourceDate to this one
+    private String mDeltaUrl;
+    private long mDeltaSourceDate;
+    private String mDeltaMd5Sum;
+
+    private String mChangeLogUrl;
 
     private Boolean mIsNewerThanInstalled;
 
+    // What the update is compared against, null for this device
+    private transient BuildEnvironment mEnv;
+
     public UpdateInfo(String fileName, long date, int apiLevel, String url,
             String md5, Type type) {
+        this(fileName, date, apiLevel, url, md5, null, null, type);
+    }
+
+    public UpdateInfo(String fileName, long date, int apiLevel, String url,
+            String md5, String sha256, String sha512, Type type) {
+        this(null, fileName, date, apiLevel, url, md5, sha256, sha512, type);
+    }
+
+    public UpdateInfo(BuildEnvironment env, String fileName, long date, int apiLevel,
+            String url, String md5, String sha256, String sha512, Type type) {
+        mEnv = env;
         initializeName(fileName);
         mBuildDate = date;
         mApiLevel = apiLevel;
         mDownloadUrl = url;
         mMd5Sum = md5;
+        mSha256Sum = sha256;
+        mSha512Sum = sha512;
         mType = type;
     }
 
@@ -60,6 +90,10 @@ public class UpdateInfo implements Parcelable, Serializable {
         readFromParcel(in);
     }
 
+    UpdateInfo(DataInput in, int version) throws IOException {
+        readFromStream(in, version);
+    }
+
     public File getChangeLogFile(Context context) {
         return new File(context.getCacheDir(), mFileName + ".changelog");
     }
@@ -92,6 +126,64 @@ public class UpdateInfo implements Parcelable, Serializable {
         return mMd5Sum;
     }
 
+    /**
+     * Get SHA-256, null if the server didn't send one
+     */
+    public String getSHA256Sum() {
+        return mSha256Sum;
+    }
+
+    /**
+     * Get SHA-512, null if the server didn't send one
+     */
+    public String getSHA512Sum() {
+        return mSha512Sum;
+    }
+
+    /**
+     * Attach a delta patch that rebuilds this update from the build with the given date
+     */
+    public void setDelta(String url, long sourceDate, String md5) {
+        mDeltaUrl = url;
+        mDeltaSourceDate = sourceDate;
+        mDeltaMd5Sum = md5;
+    }
+
+    /**
+     * Get delta patch location, null if there is no delta
+     */
+    public String getDeltaUrl() {
+        return mDeltaUrl;
+    }
+
+    /**
+     * Get build date of the update the delta applies to
+     */
+    public long getDeltaSourceDate() {
+        return mDeltaSourceDate;
+    }
+
+    /**
+     * Get MD5 of the delta patch itself, may be null
+     */
+    public String getDeltaMD5Sum() {
+        return mDeltaMd5Sum;
+    }
+
+    /**
+     * Set where the change log of this update can be fetched from
+     */
+    public void setChangeLogUrl(String url) {
+        mChangeLogUrl = url;
+    }
+
+    /**
+     * Get change log location, null if the server didn't send one
+     */
+    public String getChangeLogUrl() {
+        return mChangeLogUrl;
+    }
+
     /**
      * Get build date
      */
@@ -111,30 +203,25 @@ public class UpdateInfo implements Parcelable, Serializable {
             return mIsNewerThanInstalled;
         }
 
-        int installedApiLevel = Utils.getInstalledApiLevel();
-        if (installedApiLevel != mApiLevel && mApiLevel > 0) {
-            mIsNewerThanInstalled = mApiLevel > installedApiLevel;
-        } else {
-            // API levels match, so compare build dates.
-            mIsNewerThanInstalled = mBuildDate > Utils.getInstalledBuildDate();
-        }
-
+        mIsNewerThanInstalled = getEnvironment().isNewerThanInstalled(mApiLevel, mBuildDate);
         return mIsNewerThanInstalled;
     }
 
     private void initializeName(String fileName) {
         mFileName = fileName;
         if (!TextUtils.isEmpty(fileName)) {
-            mUiName = extractUiName(fileName);
+            mUiName = getEnvironment().extractUiName(fileName);
         } else {
             mUiName = null;
         }
     }
 
+    private BuildEnvironment getEnvironment() {
+        return mEnv != null ? mEnv : BuildEnvironment.get();
+    }
+
     public static String extractUiName(String fileName) {
-        String deviceType = Utils.getDeviceType();
-        String uiName = fileName.replaceAll("\\.zip$", "");
-        return uiName.replaceAll("-" + deviceType + "-?", "");
+        return BuildEnvironment.get().extractUiName(fileName);
     }
 
     @Override
@@ -152,12 +239,27 @@ public class UpdateInfo implements Parcelable, Serializable {
             return false;
         }
 
+        // The URLs depend on the mirror that listed the update, so they don't count
         UpdateInfo ui = (UpdateInfo) o;
         return TextUtils.equals(mFileName, ui.mFileName)
                 && mType.equals(ui.mType)
                 && mBuildDate == ui.mBuildDate
-                && TextUtils.equals(mDownloadUrl, ui.mDownloadUrl)
-                && TextUtils.equals(mMd5Sum, ui.mMd5Sum);
+                && TextUtils.equals(mMd5Sum, ui.mMd5Sum)
+                && TextUtils.equals(mSha256Sum, ui.mSha256Sum)
+                && TextUtils.equals(mSha512Sum, ui.mSha512Sum);
+    }
+
+    @Override
+    public int hashCode() {
+        // Same fields as equals
+        int result = 17;
+        result = 31 * result + (mFileName != null ? mFileName.hashCode() : 0);
+        result = 31 * result + mType.ordinal();
+        result = 31 * result + (int) (mBuildDate ^ (mBuildDate >>> 32));
+        result = 31 * result + (mMd5Sum != null ? mMd5Sum.hashCode() : 0);
+        result = 31 * result + (mSha256Sum != null ? mSha256Sum.hashCode() : 0);
+        result = 31 * result + (mSha512Sum != null ? mSha512Sum.hashCode() : 0);
+        return result;
     }
 
     public static final Parcelable.Creator<UpdateInfo> CREATOR = new Parcelable.Creator<UpdateInfo>() {
@@ -184,6 +286,12 @@ public class UpdateInfo implements Parcelable, Serializable {
         out.writeLong(mBuildDate);
         out.writeString(mDownloadUrl);
         out.writeString(mMd5Sum);
+        out.writeString(mSha256Sum);
+        out.writeString(mSha512Sum);
+        out.writeString(mDeltaUrl);
+        out.writeLong(mDeltaSourceDate);
+        out.writeString(mDeltaMd5Sum);
+        out.writeString(mChangeLogUrl);
     }
 
     private void readFromParcel(Parcel in) {
@@ -194,5 +302,68 @@ public class UpdateInfo implements Parcelable, Serializable {
         mBuildDate = in.readLong();
         mDownloadUrl = in.readString();
         mMd5Sum = in.readString();
+        mSha256Sum = in.readString();
+        mSha512Sum = in.readString();
+        mDeltaUrl = in.readString();
+        mDeltaSourceDate = in.readLong();
+        mDeltaMd5Sum = in.readString();
+        mChangeLogUrl = in.readString();
+    }
+
+    /**
+     * Write the fields for the State file. Keep in sync with readFromStream,
+     * new fields go to the end so older entries can still be read.
+     */
+    void writeToStream(DataOutput out) throws IOException {
+        writeString(out, mUiName);
+        writeString(out, mFileName);
+        out.writeByte(mType.ordinal());
+        out.writeInt(mApiLevel);
+        out.writeLong(mBuildDate);
+        writeString(out, mDownloadUrl);
+        writeString(out, mMd5Sum);
+        writeString(out, mSha256Sum);
+        writeString(out, mSha512Sum);
+        writeString(out, mDeltaUrl);
+        out.writeLong(mDeltaSourceDate);
+        writeString(out, mDeltaMd5Sum);
+        writeString(out, mChangeLogUrl);
+    }
+
+    /**
+     * @param version State file format version the entry was written with
+     */
+    private void readFromStream(DataInput in, int version) throws IOException {
+        mUiName = readString(in);
+        mFileName = readString(in);
+        int type = in.readByte();
+        mType = type >= 0 && type < TYPES.length ? TYPES[type] : Type.UNKNOWN;
+        mApiLevel = in.readInt();
+        mBuildDate = in.readLong();
+        mDownloadUrl = readString(in);
+        mMd5Sum = readString(in);
+        if (version >= 2) {
+            mSha256Sum = readString(in);
+            mSha512Sum = readString(in);
+        }
+        if (version >= 3) {
+            mDeltaUrl = readString(in);
+            mDeltaSourceDate = in.readLong();
+            mDeltaMd5Sum = readString(in);
+        }
+        if (version >= 4) {
+            mChangeLogUrl = readString(in);
+        }
+    }
+
+    private static void writeString(DataOutput out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
     }
 }
@@ -13,16 +13,13 @@ import android.app.DownloadManager;
 import android.app.DownloadManager.Query;
 import android.app.DownloadManager.Request;
 import android.app.Notification;
-import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.StatusBarManager;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.net.Uri;
-import android.preference.PreferenceManager;
 import android.util.Log;
 import android.widget.Toast;
 
@@ -34,8 +31,13 @@ import java.io.IOException;
 import org.teameos.updater.UpdateApplication;
 import org.teameos.updater.UpdatesSettings;
 import org.teameos.updater.misc.Constants;
+import org.teameos.updater.misc.DownloadQueue;
+import org.teameos.updater.misc.ProgressNotifier;
 import org.teameos.updater.misc.UpdateInfo;
-import org.teameos.updater.utils.MD5;
+import org.teameos.updater.service.DownloadService;
+import org.teameos.updater.service.VerifyService;
+import org.teameos.updater.utils.BuildEnvironment;
+import org.teameos.updater.utils.Mirrors;
 import org.teameos.updater.utils.Utils;
 
 public class DownloadReceiver extends BroadcastReceiver{
@@ -46,20 +48,39 @@ public class DownloadReceiver extends BroadcastReceiver{
 
     public static final String ACTION_DOWNLOAD_STARTED = "org.teameos.updater.action.DOWNLOAD_STARTED";
 
+    // sent by DownloadService when an in-app download ends
+    public static final String ACTION_DOWNLOAD_FINISHED = "org.teameos.updater.action.DOWNLOAD_FINISHED";
+    public static final String EXTRA_DOWNLOAD_SUCCESSFUL = "download_successful";
+    public static final String EXTRA_DOWNLOAD_PATH = "download_path";
+    // MD5 calculated while downloading, absent if the file has to be read back
+    public static final String EXTRA_DOWNLOAD_MD5 = "download_md5";
+
+    // Sent by VerifyService once a finished download has been checked
+    public static final String ACTION_VERIFICATION_FINISHED = "org.teameos.updater.action.VERIFICATION_FINISHED";
+
     private static final String ACTION_INSTALL_UPDATE = "org.teameos.updater.action.INSTALL_UPDATE";
     private static final String EXTRA_FILENAME = "filename";
 
     @Override
     public void onReceive(Context context, Intent intent) {
         String action = intent.getAction();
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-
         if (ACTION_START_DOWNLOAD.equals(action)) {
             UpdateInfo ui = (UpdateInfo) intent.getParcelableExtra(EXTRA_UPDATE_INFO);
-            handleStartDownload(context, prefs, ui);
+            handleStartDownload(context, ui);
         } else if (DownloadManager.ACTION_DOWNLOAD_COMPLETE.equals(action)) {
             long id = intent.getLongExtra(DownloadManager.EXTRA_DOWNLOAD_ID, -1);
-            handleDownloadComplete(context, prefs, id);
+            handleDownloadComplete(context, id);
+        } else if (ACTION_DOWNLOAD_FINISHED.equals(action)) {
+            long id = intent.getLongExtra(DownloadService.EXTRA_DOWNLOAD_ID, -1);
+            handleInternalDownloadFinished(context, id,
+                    intent.getBooleanExtra(EXTRA_DOWNLOAD_SUCCESSFUL, false),
+                    intent.getStringExtra(EXTRA_DOWNLOAD_PATH),
+                    intent.getStringExtra(EXTRA_DOWNLOAD_MD5));
+        } else if (ACTION_VERIFICATION_FINISHED.equals(action)) {
+            long id = intent.getLongExtra(DownloadService.EXTRA_DOWNLOAD_ID, -1);
+            handleVerificationFinished(context, id,
+                    intent.getBooleanExtra(EXTRA_DOWNLOAD_SUCCESSFUL, false),
+                    intent.getStringExtra(EXTRA_DOWNLOAD_PATH));
         } else if (ACTION_INSTALL_UPDATE.equals(action)) {
             StatusBarManager sb = (StatusBarManager) context.getSystemService(Context.STATUS_BAR_SERVICE);
             sb.collapsePanels();
@@ -75,7 +96,7 @@ public class DownloadReceiver extends BroadcastReceiver{
         }
     }
 
-    private void handleStartDownload(Context context, SharedPreferences prefs, UpdateInfo ui) {
+    private void handleStartDownload(Context context, UpdateInfo ui) {
         // If directory doesn't exist, create it
         File directory = Utils.makeUpdateFolder();
         if (!directory.exists()) {
@@ -83,11 +104,50 @@ public class DownloadReceiver extends BroadcastReceiver{
             Log.d(TAG, "UpdateFolder created");
         }
 
+        DownloadQueue queue = DownloadQueue.getInstance(context);
+        if (queue.findByFileName(ui.getFileName()) != null) {
+            Log.d(TAG, ui.getFileName() + " is queued already");
+            return;
+        }
+        int engine = Utils.useInternalDownloader()
+                ? Constants.DOWNLOAD_ENGINE_INTERNAL : Constants.DOWNLOAD_ENGINE_SYSTEM;
+        DownloadQueue.Item item = queue.add(ui, engine);
+        startQueuedDownloads(context);
+
+        Utils.cancelNotification(context);
+        ProgressNotifier.notifyChanged(item.getId());
+
+        Intent intent = new Intent(ACTION_DOWNLOAD_STARTED);
+        intent.putExtra(DownloadManager.EXTRA_DOWNLOAD_ID, item.getId());
+        context.sendBroadcast(intent);
+    }
+
+    /**
+     * Start as many queued downloads as there are free slots
+     */
+    public static void startQueuedDownloads(Context context) {
+        DownloadQueue queue = DownloadQueue.getInstance(context);
+        for (DownloadQueue.Item item : queue.takeStartable()) {
+            Log.d(TAG, "Starting " + item);
+            if (item.getEngine() == Constants.DOWNLOAD_ENGINE_INTERNAL) {
+                DownloadService.startDownload(context, item.getUpdateInfo(), item.getId());
+            } else {
+                queue.setSystemId(item, enqueueDownload(context, Utils.makeUpdateFolder(),
+                        item.getUpdateInfo()));
+            }
+            ProgressNotifier.notifyChanged(item.getId());
+        }
+    }
+
+    private static long enqueueDownload(Context context, File directory, UpdateInfo ui) {
         // Build the name of the file to download, adding .partial at the end.  It will get
         // stripped off when the download completes
         String fullFilePath = "file://" + directory.getAbsolutePath() + "/" + ui.getFileName() + ".partial";
 
-        Request request = new Request(Uri.parse(ui.getDownloadUrl()));
+        // DownloadManager takes one URL, go for the best mirror
+        String url = Mirrors.getCandidates(context, BuildEnvironment.get(),
+                ui.getDownloadUrl()).get(0);
+        Request request = new Request(Uri.parse(url));
         String userAgent = Utils.getUserAgentString(context);
         if (userAgent != null) {
             request.addRequestHeader("User-Agent", userAgent);
@@ -105,31 +165,30 @@ public class DownloadReceiver extends BroadcastReceiver{
         // Start the download
         final DownloadManager dm =
                 (DownloadManager) context.getSystemService(Context.DOWNLOAD_SERVICE);
-        long downloadId = dm.enqueue(request);
-
-        // Store in shared preferences
-        prefs.edit()
-                .putLong(Constants.DOWNLOAD_ID, downloadId)
-                .putString(Constants.DOWNLOAD_MD5, ui.getMD5Sum())
-                .apply();
+        return dm.enqueue(request);
+    }
 
-        Utils.cancelNotification(context);
+    private void handleInternalDownloadFinished(Context context, long id, boolean successful,
+            String partialFileFullPath, String calculatedMD5) {
+        DownloadQueue.Item item = DownloadQueue.getInstance(context).find(id);
+        if (item == null || item.getEngine() != Constants.DOWNLOAD_ENGINE_INTERNAL
+                || item.getState() != DownloadQueue.STATE_RUNNING) {
+            return;
+        }
 
-        Intent intent = new Intent(ACTION_DOWNLOAD_STARTED);
-        intent.putExtra(DownloadManager.EXTRA_DOWNLOAD_ID, downloadId);
-        context.sendBroadcast(intent);
+        // A failed transfer keeps its .partial file so a retry can resume it
+        finishDownload(context, item, successful ? partialFileFullPath : null, calculatedMD5);
     }
 
-    private void handleDownloadComplete(Context context, SharedPreferences prefs, long id) {
-        long enqueued = prefs.getLong(Constants.DOWNLOAD_ID, -1);
-
-        if (enqueued < 0 || id < 0 || id != enqueued) {
+    private void handleDownloadComplete(Context context, long systemId) {
+        DownloadQueue.Item item = DownloadQueue.getInstance(context).findBySystemId(systemId);
+        if (item == null || item.getState() != DownloadQueue.STATE_RUNNING) {
             return;
         }
 
         DownloadManager dm = (DownloadManager) context.getSystemService(Context.DOWNLOAD_SERVICE);
         Query query = new Query();
-        query.setFilterById(id);
+        query.setFilterById(systemId);
 
         Cursor c = dm.query(query);
         if (c == null) {
@@ -142,56 +201,107 @@ public class DownloadReceiver extends BroadcastReceiver{
         }
 
         final int status = c.getInt(c.getColumnIndex(DownloadManager.COLUMN_STATUS));
-        int failureMessageResId = -1;
-        File updateFile = null;
-
-        Intent updateIntent = new Intent(context, UpdatesSettings.class);
-        updateIntent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_SINGLE_TOP |
-                Intent.FLAG_ACTIVITY_CLEAR_TOP | Intent.FLAG_ACTIVITY_EXCLUDE_FROM_RECENTS);
+        String partialFileFullPath = null;
 
         if (status == DownloadManager.STATUS_SUCCESSFUL) {
-            // Get the full path name of the downloaded file and the MD5
-
-            // Strip off the .partial at the end to get the completed file
-            String partialFileFullPath = c.getString(
+            // Get the full path name of the downloaded file
+            partialFileFullPath = c.getString(
                     c.getColumnIndex(DownloadManager.COLUMN_LOCAL_FILENAME));
-            String completedFileFullPath = partialFileFullPath.replace(".partial", "");
+        } else if (status == DownloadManager.STATUS_FAILED) {
+            // The download failed, reset. A retry goes to the next best mirror.
+            String mirror = Mirrors.getMirror(context, BuildEnvironment.get(),
+                    c.getString(c.getColumnIndex(DownloadManager.COLUMN_URI)));
+            if (mirror != null) {
+                Mirrors.recordFailure(context, mirror);
+            }
+            dm.remove(systemId);
+        }
 
-            File partialFile = new File(partialFileFullPath);
-            updateFile = new File(completedFileFullPath);
-            partialFile.renameTo(updateFile);
+        c.close();
 
-            String downloadedMD5 = prefs.getString(Constants.DOWNLOAD_MD5, "");
+        // DownloadManager gives us no digest, verify from disk
+        finishDownload(context, item, partialFileFullPath, null);
+    }
 
-            // Start the MD5 check of the downloaded file
-            if (MD5.checkMD5(downloadedMD5, updateFile)) {
-                // We passed. Bring the main app to the foreground and trigger download completed
-                updateIntent.putExtra(UpdatesSettings.EXTRA_FINISHED_DOWNLOAD_ID, id);
-                updateIntent.putExtra(UpdatesSettings.EXTRA_FINISHED_DOWNLOAD_PATH, completedFileFullPath);
-            } else {
-                // We failed. Clear the file and reset everything
-                dm.remove(id);
+    /**
+     * Hand a finished download to VerifyService, or report the failure right away.
+     * Either way its slot is free for the next queued download.
+     *
+     * @param partialFileFullPath the downloaded .partial file, null if the download failed
+     * @param calculatedMD5 digest of the file if already known, null to read it back
+     */
+    private void finishDownload(Context context, DownloadQueue.Item item,
+            String partialFileFullPath, String calculatedMD5) {
+        if (partialFileFullPath == null) {
+            notifyResult(context, item, null, R.string.unable_to_download_file);
+            return;
+        }
 
-                if (updateFile.exists()) {
-                    updateFile.delete();
-                }
+        // Strip off the .partial at the end to get the completed file
+        String completedFileFullPath = partialFileFullPath.replace(".partial", "");
 
-                failureMessageResId = R.string.md5_verification_failed;
-            }
-        } else if (status == DownloadManager.STATUS_FAILED) {
-            // The download failed, reset
-            dm.remove(id);
+        File partialFile = new File(partialFileFullPath);
+        partialFile.renameTo(new File(completedFileFullPath));
 
-            failureMessageResId = R.string.unable_to_download_file;
+        DownloadQueue.getInstance(context).setState(item, DownloadQueue.STATE_VERIFYING);
+        startQueuedDownloads(context);
+
+        // Hashing the zip takes far too long for onReceive, the result comes back to us
+        VerifyService.startVerification(context, item.getId(), completedFileFullPath,
+                calculatedMD5);
+    }
+
+    private void handleVerificationFinished(Context context, long id, boolean verified,
+            String updateFileFullPath) {
+        DownloadQueue.Item item = DownloadQueue.getInstance(context).find(id);
+        if (item == null) {
+            // Cancelled while it was being verified
+            return;
         }
 
-        // Clear the shared prefs
-        prefs.edit()
-                .remove(Constants.DOWNLOAD_MD5)
-                .remove(Constants.DOWNLOAD_ID)
-                .apply();
+        File updateFile = new File(updateFileFullPath);
+        if (verified) {
+            notifyResult(context, item, updateFile, -1);
+            return;
+        }
 
-        c.close();
+        // We failed. Clear the file and reset everything
+        if (item.getEngine() == Constants.DOWNLOAD_ENGINE_SYSTEM) {
+            DownloadManager dm = (DownloadManager) context.getSystemService(Context.DOWNLOAD_SERVICE);
+            dm.remove(item.getSystemId());
+        }
+
+        if (updateFile.exists()) {
+            updateFile.delete();
+        }
+
+        notifyResult(context, item, null, R.string.md5_verification_failed);
+    }
+
+    /**
+     * Drop the download from the queue and let the user know about the outcome.
+     *
+     * @param updateFile the verified update, null on failure
+     * @param failureMessageResId message to show on failure, -1 on success
+     */
+    private void notifyResult(Context context, DownloadQueue.Item item, File updateFile,
+            int failureMessageResId) {
+        long id = item.getId();
+
+        Intent updateIntent = new Intent(context, UpdatesSettings.class);
+        updateIntent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_SINGLE_TOP |
+                Intent.FLAG_ACTIVITY_CLEAR_TOP | Intent.FLAG_ACTIVITY_EXCLUDE_FROM_RECENTS);
+        if (updateFile != null) {
+            // We passed. Bring the main app to the foreground and trigger download completed
+            updateIntent.putExtra(UpdatesSettings.EXTRA_FINISHED_DOWNLOAD_ID, id);
+            updateIntent.putExtra(UpdatesSettings.EXTRA_FINISHED_DOWNLOAD_PATH,
+                    updateFile.getAbsolutePath());
+        }
+
+        // Done with it, let the next one in
+        DownloadQueue.getInstance(context).remove(id);
+        startQueuedDownloads(context);
+        ProgressNotifier.notifyChanged(id);
 
         final UpdateApplication app = (UpdateApplication) context.getApplicationContext();
         if (app.isMainActivityActive()) {
@@ -202,7 +312,8 @@ public class DownloadReceiver extends BroadcastReceiver{
             }
         } else {
             // Get the notification ready
-            PendingIntent contentIntent = PendingIntent.getActivity(context, 1,
+            // Downloads finish independently, each gets a notification and intents of its own
+            PendingIntent contentIntent = PendingIntent.getActivity(context, (int) id,
                     updateIntent, PendingIntent.FLAG_ONE_SHOT | PendingIntent.FLAG_UPDATE_CURRENT);
             Notification.Builder builder = new Notification.Builder(context)
                     .setSmallIcon(R.drawable.ic_system_update)
@@ -230,15 +341,13 @@ public class DownloadReceiver extends BroadcastReceiver{
                 installIntent.setAction(ACTION_INSTALL_UPDATE);
                 installIntent.putExtra(EXTRA_FILENAME, updateFile.getName());
 
-                PendingIntent installPi = PendingIntent.getBroadcast(context, 0,
+                PendingIntent installPi = PendingIntent.getBroadcast(context, (int) id,
                         installIntent, PendingIntent.FLAG_ONE_SHOT | PendingIntent.FLAG_UPDATE_CURRENT);
                 builder.addAction(R.drawable.ic_tab_install,
                         context.getString(R.string.not_action_install_update), installPi);
             }
 
-            final NotificationManager nm =
-                    (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
-            nm.notify(R.string.not_download_success, builder.build());
+            Utils.notifyDownloadResult(context, id, builder.build());
         }
     }
 }
@@ -11,7 +11,7 @@ package org.teameos.updater.receiver;
 
 import org.teameos.updater.misc.Constants;
 import org.teameos.updater.service.UpdateCheckService;
-import org.teameos.updater.utils.Utils;
+import org.teameos.updater.utils.CheckScheduler;
 
 import android.content.BroadcastReceiver;
 import android.content.Context;
@@ -64,10 +64,8 @@ public class UpdateCheckReceiver extends BroadcastReceiver {
         if (updateFrequency == Constants.UPDATE_FREQ_AT_BOOT) {
             boolean bootCheckCompleted = prefs.getBoolean(Constants.BOOT_CHECK_COMPLETED, false);
             if (!bootCheckCompleted) {
-                Log.i(TAG, "Start an on-boot check");
-                Intent i = new Intent(context, UpdateCheckService.class);
-                i.setAction(UpdateCheckService.ACTION_CHECK);
-                context.startService(i);
+                Log.i(TAG, "Schedule an on-boot check");
+                CheckScheduler.scheduleBootCheck(context);
             } else {
                 // Nothing to do
                 Log.i(TAG, "On-boot update check was already completed.");
@@ -75,7 +73,12 @@ public class UpdateCheckReceiver extends BroadcastReceiver {
             }
         } else if (updateFrequency > 0) {
             Log.i(TAG, "Scheduling future, repeating update checks.");
-            Utils.scheduleUpdateService(context, updateFrequency * 1000);
+            if (ConnectivityManager.CONNECTIVITY_ACTION.equals(action)) {
+                // Nothing the schedule depends on changed, keep a pending job
+                CheckScheduler.ensureScheduled(context);
+            } else {
+                CheckScheduler.schedule(context);
+            }
         }
     }
 }
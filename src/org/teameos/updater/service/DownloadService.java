@@ -0,0 +1,423 @@
+/*
+ * Copyright (C) 2015 The TeamEos Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package org.teameos.updater.service;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.IBinder;
+import android.os.Parcelable;
+import android.os.PowerManager;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.teameos.updater.R;
+import org.teameos.updater.misc.DownloadQueue;
+import org.teameos.updater.misc.ProgressNotifier;
+import org.teameos.updater.misc.UpdateInfo;
+import org.teameos.updater.receiver.DownloadReceiver;
+import org.teameos.updater.utils.BuildEnvironment;
+import org.teameos.updater.utils.DeltaPatch;
+import org.teameos.updater.utils.Mirrors;
+import org.teameos.updater.utils.RangeDownloader;
+import org.teameos.updater.utils.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * In-app download backend, used instead of DownloadManager when
+ * Utils.useInternalDownloader() is set. Every download the queue starts gets
+ * its own worker thread and resumes from the existing .partial file. The queue
+ * bounds how many run at the same time. Files are fetched from the best ranked
+ * mirror, failing over to the others, and every transfer is reported back to
+ * Mirrors for the ranking.
+ */
+public class DownloadService extends Service {
+    private static final String TAG = "DownloadService";
+
+    public static final String ACTION_START_DOWNLOAD = "org.teameos.updater.action.INTERNAL_START_DOWNLOAD";
+    public static final String ACTION_CANCEL_DOWNLOAD = "org.teameos.updater.action.INTERNAL_CANCEL_DOWNLOAD";
+    public static final String EXTRA_DOWNLOAD_ID = "download_id";
+
+    private static final long NOTIFICATION_INTERVAL = 1000;
+
+    public static final class Progress {
+        public volatile long downloaded = 0;
+        public volatile long total = -1;
+    }
+
+    // Downloads that are queued or running in this process
+    private static final Map<Long, Progress> sProgress = new ConcurrentHashMap<Long, Progress>();
+
+    private ExecutorService mWorkers;
+    private PowerManager.WakeLock mWakeLock;
+    private NotificationManager mNotificationManager;
+
+    private final Object mLock = new Object();
+    private final Map<Long, RangeDownloader> mDownloaders = new HashMap<Long, RangeDownloader>();
+    private final Map<Long, DeltaPatch> mPatches = new HashMap<Long, DeltaPatch>();
+    private int mTasks = 0;
+    private int mLastStartId;
+    // Download shown by the foreground notification, the others get their own
+    private long mForegroundId = -1;
+
+    /**
+     * Get the progress of a queued or running download, or null if it is not known
+     */
+    public static Progress getProgress(long id) {
+        return sProgress.get(id);
+    }
+
+    public static void startDownload(Context context, UpdateInfo ui, long id) {
+        Intent intent = new Intent(context, DownloadService.class);
+        intent.setAction(ACTION_START_DOWNLOAD);
+        intent.putExtra(DownloadReceiver.EXTRA_UPDATE_INFO, (Parcelable) ui);
+        intent.putExtra(EXTRA_DOWNLOAD_ID, id);
+        context.startService(intent);
+    }
+
+    public static void cancelDownload(Context context, long id) {
+        Intent intent = new Intent(context, DownloadService.class);
+        intent.setAction(ACTION_CANCEL_DOWNLOAD);
+        intent.putExtra(EXTRA_DOWNLOAD_ID, id);
+        context.startService(intent);
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mWorkers = Executors.newCachedThreadPool();
+        mNotificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+
+        // Held once per running download
+        PowerManager pm = (PowerManager) getSystemService(POWER_SERVICE);
+        mWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+        mWakeLock.setReferenceCounted(true);
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        synchronized (mLock) {
+            for (RangeDownloader downloader : mDownloaders.values()) {
+                downloader.cancel();
+            }
+            for (DeltaPatch patch : mPatches.values()) {
+                patch.cancel();
+            }
+        }
+        // The workers release their wake lock once they unwound
+        mWorkers.shutdown();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, final int startId) {
+        if (intent == null) {
+            stopSelf(startId);
+            return START_NOT_STICKY;
+        }
+
+        final long id = intent.getLongExtra(EXTRA_DOWNLOAD_ID, -1);
+        if (ACTION_START_DOWNLOAD.equals(intent.getAction())) {
+            final UpdateInfo ui = intent.getParcelableExtra(DownloadReceiver.EXTRA_UPDATE_INFO);
+            if (!sProgress.containsKey(id)) {
+                sProgress.put(id, new Progress());
+                ProgressNotifier.notifyChanged(id);
+            }
+            synchronized (mLock) {
+                mTasks++;
+                mLastStartId = startId;
+            }
+            mWorkers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    try {
+                        runDownload(ui, id);
+                    } finally {
+                        finishTask();
+                    }
+                }
+            });
+        } else if (ACTION_CANCEL_DOWNLOAD.equals(intent.getAction())) {
+            sProgress.remove(id);
+            ProgressNotifier.notifyChanged(id);
+            synchronized (mLock) {
+                RangeDownloader downloader = mDownloaders.get(id);
+                if (downloader != null) {
+                    downloader.cancel();
+                }
+                DeltaPatch patch = mPatches.get(id);
+                if (patch != null) {
+                    patch.cancel();
+                }
+                // A running download stops the service once it unwound
+                mLastStartId = startId;
+                if (mTasks == 0) {
+                    stopSelf(startId);
+                }
+            }
+        } else {
+            synchronized (mLock) {
+                if (mTasks == 0) {
+                    stopSelf(startId);
+                }
+            }
+        }
+
+        // Pick the download up again if we get killed while it runs
+        return START_REDELIVER_INTENT;
+    }
+
+    private void finishTask() {
+        synchronized (mLock) {
+            mTasks--;
+            if (mTasks == 0) {
+                stopSelf(mLastStartId);
+            }
+        }
+    }
+
+    private void runDownload(final UpdateInfo ui, long id) {
+        final Progress progress = sProgress.get(id);
+        if (ui == null || progress == null || DownloadQueue.getInstance(this).find(id) == null) {
+            // Cancelled before it started, or a stale redelivered intent
+            Log.d(TAG, "Skipping download " + id);
+            return;
+        }
+        synchronized (mLock) {
+            if (mDownloaders.containsKey(id) || mPatches.containsKey(id)) {
+                Log.d(TAG, "Download " + id + " is running already");
+                return;
+            }
+        }
+
+        File partialFile = new File(Utils.makeUpdateFolder(), ui.getFileName() + ".partial");
+
+        final Notification.Builder builder = new Notification.Builder(this)
+                .setSmallIcon(android.R.drawable.stat_sys_download)
+                .setContentTitle(getString(R.string.eos_app_name))
+                .setContentText(ui.getName())
+                .setOngoing(true)
+                .setProgress(0, 0, true);
+        showNotification(id, builder);
+        mWakeLock.acquire();
+
+        int result = RangeDownloader.RESULT_FAILED;
+        String calculatedMD5 = null;
+        try {
+            File base = Utils.getDeltaBase(this, ui);
+            if (base != null) {
+                calculatedMD5 = downloadDelta(ui, id, base, partialFile, progress, builder);
+                if (calculatedMD5 != null) {
+                    result = RangeDownloader.RESULT_SUCCESS;
+                } else if (sProgress.containsKey(id)) {
+                    Log.i(TAG, "Delta update failed, downloading the full zip");
+                } else {
+                    result = RangeDownloader.RESULT_CANCELLED;
+                }
+            }
+
+            if (result == RangeDownloader.RESULT_FAILED) {
+                RangeDownloader downloader = new RangeDownloader(
+                        Mirrors.getCandidates(this, BuildEnvironment.get(), ui.getDownloadUrl()),
+                        partialFile, Utils.getUserAgentString(this),
+                        Utils.getDownloadConnections(), Utils.getDownloadMinSegmentSize());
+                result = fetch(id, downloader, progress, builder);
+                calculatedMD5 = downloader.getMD5();
+            }
+        } finally {
+            mWakeLock.release();
+            hideNotification(id);
+        }
+
+        sProgress.remove(id);
+        ProgressNotifier.notifyChanged(id);
+        if (result == RangeDownloader.RESULT_CANCELLED) {
+            RangeDownloader.discard(partialFile);
+            return;
+        }
+
+        // A failed download keeps its partial file and checkpoint, so
+        // starting it again picks up where it stopped
+        Intent intent = new Intent(this, DownloadReceiver.class);
+        intent.setAction(DownloadReceiver.ACTION_DOWNLOAD_FINISHED);
+        intent.putExtra(EXTRA_DOWNLOAD_ID, id);
+        intent.putExtra(DownloadReceiver.EXTRA_DOWNLOAD_SUCCESSFUL,
+                result == RangeDownloader.RESULT_SUCCESS);
+        intent.putExtra(DownloadReceiver.EXTRA_DOWNLOAD_PATH, partialFile.getAbsolutePath());
+        intent.putExtra(DownloadReceiver.EXTRA_DOWNLOAD_MD5, calculatedMD5);
+        sendBroadcast(intent);
+    }
+
+    private int fetch(final long id, RangeDownloader downloader, final Progress progress,
+            final Notification.Builder builder) {
+        synchronized (mLock) {
+            mDownloaders.put(id, downloader);
+        }
+        long start = SystemClock.elapsedRealtime();
+        int result = RangeDownloader.RESULT_FAILED;
+        try {
+            result = downloader.download(new RangeDownloader.ProgressListener() {
+                private long mLastNotification = 0;
+
+                // Segment threads report one at a time with the merged totals
+                @Override
+                public void onProgress(long downloaded, long total) {
+                    if (downloaded == progress.downloaded && total == progress.total) {
+                        return;
+                    }
+                    progress.total = total;
+                    progress.downloaded = downloaded;
+                    ProgressNotifier.notifyChanged(id);
+
+                    long now = SystemClock.elapsedRealtime();
+                    if (total > 0 && now - mLastNotification >= NOTIFICATION_INTERVAL) {
+                        mLastNotification = now;
+                        builder.setProgress(100, (int) (downloaded * 100 / total), false);
+                        showNotification(id, builder);
+                    }
+                }
+            });
+            return result;
+        } finally {
+            synchronized (mLock) {
+                mDownloaders.remove(id);
+            }
+            if (result != RangeDownloader.RESULT_CANCELLED) {
+                reportMirrors(downloader, result == RangeDownloader.RESULT_SUCCESS,
+                        SystemClock.elapsedRealtime() - start);
+            }
+        }
+    }
+
+    /**
+     * Tell Mirrors how the mirrors a transfer used did
+     */
+    private void reportMirrors(RangeDownloader downloader, boolean success, long millis) {
+        BuildEnvironment env = BuildEnvironment.get();
+        for (String url : downloader.getFailedUrls()) {
+            String mirror = Mirrors.getMirror(this, env, url);
+            if (mirror != null) {
+                Mirrors.recordFailure(this, mirror);
+            }
+        }
+        // Time spent on failed mirrors would skew the throughput
+        String mirror = Mirrors.getMirror(this, env, downloader.getUrl());
+        if (success && mirror != null && downloader.getFailedUrls().isEmpty()) {
+            Mirrors.recordTransfer(this, mirror, downloader.getTransferredBytes(), millis);
+        }
+    }
+
+    /**
+     * Download the delta patch of the update and rebuild the full zip from the
+     * base zip. Only a complete rebuild replaces the partial file.
+     *
+     * @return MD5 of the rebuilt zip, null if that didn't work out
+     */
+    private String downloadDelta(UpdateInfo ui, long id, File base, File partialFile,
+            Progress progress, Notification.Builder builder) {
+        Log.i(TAG, "Downloading delta of " + ui.getFileName() + " against " + base.getName());
+        File patchFile = new File(Utils.makeUpdateFolder(), ui.getFileName() + ".delta.partial");
+        RangeDownloader downloader = new RangeDownloader(
+                Mirrors.getCandidates(this, BuildEnvironment.get(), ui.getDeltaUrl()), patchFile,
+                Utils.getUserAgentString(this), 1, 0);
+        int result = fetch(id, downloader, progress, builder);
+        if (result != RangeDownloader.RESULT_SUCCESS) {
+            RangeDownloader.discard(patchFile);
+            return null;
+        }
+
+        String patchMD5 = ui.getDeltaMD5Sum();
+        if (patchMD5 != null && !patchMD5.trim().equalsIgnoreCase(downloader.getMD5())) {
+            Log.w(TAG, "Delta patch MD5 mismatch");
+            patchFile.delete();
+            return null;
+        }
+
+        // Rebuilding reads the base zip and writes the new one, no progress to show
+        progress.total = -1;
+        ProgressNotifier.notifyChanged(id);
+        builder.setProgress(0, 0, true);
+        showNotification(id, builder);
+
+        File rebuiltFile = new File(Utils.makeUpdateFolder(), ui.getFileName() + ".rebuilt");
+        DeltaPatch patch = new DeltaPatch(base, patchFile);
+        synchronized (mLock) {
+            mPatches.put(id, patch);
+        }
+        long start = SystemClock.elapsedRealtime();
+        try {
+            String md5 = patch.apply(rebuiltFile);
+            Log.i(TAG, "Rebuilt " + ui.getFileName() + " in "
+                    + (SystemClock.elapsedRealtime() - start) + " ms");
+
+            // Whatever an earlier full download left behind is stale now
+            RangeDownloader.discard(partialFile);
+            if (!rebuiltFile.renameTo(partialFile)) {
+                throw new IOException("Unable to move " + rebuiltFile);
+            }
+            return md5;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to apply delta patch", e);
+            rebuiltFile.delete();
+            return null;
+        } finally {
+            synchronized (mLock) {
+                mPatches.remove(id);
+            }
+            patchFile.delete();
+        }
+    }
+
+    /**
+     * Show the progress of a download. The first one to report owns the
+     * foreground notification, downloads running next to it post their own.
+     */
+    private void showNotification(long id, Notification.Builder builder) {
+        synchronized (mLock) {
+            if (mForegroundId < 0) {
+                mForegroundId = id;
+                mNotificationManager.cancel(String.valueOf(id), R.string.eos_app_name);
+            }
+            if (mForegroundId == id) {
+                startForeground(R.string.eos_app_name, builder.build());
+                return;
+            }
+        }
+        mNotificationManager.notify(String.valueOf(id), R.string.eos_app_name, builder.build());
+    }
+
+    private void hideNotification(long id) {
+        synchronized (mLock) {
+            if (mForegroundId == id) {
+                // The next download to report takes the foreground over
+                mForegroundId = -1;
+                stopForeground(true);
+                return;
+            }
+        }
+        mNotificationManager.cancel(String.valueOf(id), R.string.eos_app_name);
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2015 The TeamEos Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package org.teameos.updater.service;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import org.teameos.updater.misc.Logger;
+import org.teameos.updater.misc.UpdateInfo;
+import org.teameos.updater.utils.BuildEnvironment;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pull parser for the file_list query response. Reads the document straight
+ * from the network stream and hands out one UpdateInfo per file_list entry,
+ * so the full response is never held in memory.
+ *
+ * Expected document:
+ * { "result": "...", "data": { "message": "...", "file_list": [ { ... }, ... ] } }
+ *
+ * A file entry may carry a delta patch from an older build:
+ * "delta": { "source_epoch": ..., "url": "...", "md5sum": "..." }
+ * and the location of its change log, relative like "url":
+ * "changelog": "..."
+ *
+ * "data" may also list mirrors that serve the same files:
+ * "mirrors": [ "http://...", ... ]
+ */
+public class EosQueryParser {
+    private static final String TAG = "EosQueryParser";
+
+    public interface OnUpdateParsedListener {
+        void onUpdateParsed(UpdateInfo info);
+    }
+
+    private final BuildEnvironment mEnv;
+    private final String mBaseUrl;
+
+    private String mResult;
+    private String mMessage;
+    private List<String> mMirrors;
+    private int mCount;
+
+    /**
+     * @param baseUrl the server or mirror the response came from, relative
+     *        URLs in it are resolved against it
+     */
+    public EosQueryParser(BuildEnvironment env, String baseUrl) {
+        mEnv = env;
+        mBaseUrl = baseUrl;
+    }
+
+    /**
+     * Parse the response, handing every file entry to the listener as soon as it
+     * has been read. The "result" field may follow "data" in the document, so
+     * callers must discard what they collected when this returns false.
+     *
+     * @return false if the server reported a failure
+     */
+    public boolean parse(InputStream in, OnUpdateParsedListener listener) throws IOException {
+        mResult = null;
+        mMessage = null;
+        mMirrors = null;
+        mCount = 0;
+
+        JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("result".equals(name)) {
+                    mResult = nextStringOrNull(reader);
+                } else if ("data".equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                    readData(reader, listener);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } finally {
+            reader.close();
+        }
+
+        if (mResult == null) {
+            throw new IOException("Missing result field in query response");
+        }
+        if ("failed".equals(mResult)) {
+            log("Server returned fail message: " + mMessage);
+            return false;
+        }
+        return true;
+    }
+
+    public String getResult() {
+        return mResult;
+    }
+
+    public String getMessage() {
+        return mMessage;
+    }
+
+    /**
+     * The mirrors listed by the last parse, null if the response named none
+     */
+    public List<String> getMirrors() {
+        return mMirrors;
+    }
+
+    /**
+     * Number of file entries handed out by the last parse
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    private void readData(JsonReader reader, OnUpdateParsedListener listener)
+            throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("message".equals(name)) {
+                mMessage = nextStringOrNull(reader);
+            } else if ("file_list".equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    UpdateInfo info = readFile(reader);
+                    log("File " + mCount + " : " + info.getFileName());
+                    mCount++;
+                    listener.onUpdateParsed(info);
+                }
+                reader.endArray();
+            } else if ("mirrors".equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                mMirrors = new ArrayList<String>();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    String mirror = nextStringOrNull(reader);
+                    if (mirror != null) {
+                        mMirrors.add(mirror);
+                    }
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private UpdateInfo readFile(JsonReader reader) throws IOException {
+        long epoch = -1;
+        String fileName = null;
+        String url = null;
+        String md5 = null;
+        String sha256 = null;
+        String sha512 = null;
+        String deltaUrl = null;
+        long deltaSource = -1;
+        String deltaMd5 = null;
+        String changeLog = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("epoch".equals(name)) {
+                epoch = nextEpoch(reader);
+            } else if ("name".equals(name)) {
+                fileName = nextStringOrNull(reader);
+            } else if ("url".equals(name)) {
+                url = nextStringOrNull(reader);
+            } else if ("md5sum".equals(name)) {
+                md5 = nextStringOrNull(reader);
+            } else if ("sha256sum".equals(name)) {
+                sha256 = nextStringOrNull(reader);
+            } else if ("sha512sum".equals(name)) {
+                sha512 = nextStringOrNull(reader);
+            } else if ("changelog".equals(name)) {
+                changeLog = nextStringOrNull(reader);
+            } else if ("delta".equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String deltaName = reader.nextName();
+                    if ("source_epoch".equals(deltaName)) {
+                        deltaSource = nextEpoch(reader);
+                    } else if ("url".equals(deltaName)) {
+                        deltaUrl = nextStringOrNull(reader);
+                    } else if ("md5sum".equals(deltaName)) {
+                        deltaMd5 = nextStringOrNull(reader);
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                // debug builds request a lot of extra info fields we don't use
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (epoch < 0 || fileName == null || url == null
+                || (md5 == null && sha256 == null && sha512 == null)) {
+            throw new IOException("Incomplete file_list entry " + fileName);
+        }
+
+        UpdateInfo info = new UpdateInfo(mEnv, fileName, epoch, mEnv.getInstalledApiLevel(),
+                mBaseUrl + url, md5, sha256, sha512, UpdateInfo.Type.NIGHTLY);
+        if (deltaUrl != null && deltaSource > 0) {
+            info.setDelta(mBaseUrl + deltaUrl, deltaSource, deltaMd5);
+        }
+        if (changeLog != null) {
+            info.setChangeLogUrl(mBaseUrl + changeLog);
+        }
+        return info;
+    }
+
+    /**
+     * JsonReader reports a value that isn't a number with unchecked exceptions,
+     * which would take down the check instead of failing it
+     */
+    private static long nextEpoch(JsonReader reader) throws IOException {
+        try {
+            return reader.nextLong();
+        } catch (NumberFormatException e) {
+            throw new IOException("Bad epoch in file_list entry", e);
+        } catch (IllegalStateException e) {
+            throw new IOException("Bad epoch in file_list entry", e);
+        }
+    }
+
+    private static String nextStringOrNull(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextString();
+    }
+
+    private static void log(String msg) {
+        Logger.log(TAG, msg);
+    }
+}
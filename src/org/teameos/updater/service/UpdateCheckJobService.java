@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2015 The TeamEos Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package org.teameos.updater.service;
+
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+import android.util.Log;
+import android.util.SparseArray;
+
+import org.teameos.updater.utils.CheckScheduler;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Runs the scheduled update check once the job constraints are met. The check
+ * itself is done by UpdateCheckService, the job holds the device awake until
+ * the service reports this check finished and then schedules the next one.
+ * The boot check and the periodic check are separate jobs and may overlap.
+ */
+public class UpdateCheckJobService extends JobService {
+    private static final String TAG = "UpdateCheckJobService";
+
+    // Let go of the job even if the check never reports back
+    private static final long TIMEOUT = 5 * 60 * 1000;
+
+    private static int sNextCheckId = 1;
+    // Ids of the jobs with a check in flight
+    private static final Set<Integer> sRunningJobs =
+            Collections.synchronizedSet(new HashSet<Integer>());
+
+    private final Handler mHandler = new Handler();
+    // Checks in flight by their UpdateCheckService.EXTRA_CHECK_ID
+    private final SparseArray<Check> mChecks = new SparseArray<Check>();
+
+    private final class Check implements Runnable {
+        final int mId;
+        final JobParameters mParams;
+
+        Check(int id, JobParameters params) {
+            mId = id;
+            mParams = params;
+        }
+
+        @Override
+        public void run() {
+            Log.w(TAG, "Update check " + mId + " did not finish in time");
+            finish(mId);
+        }
+    }
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            // Checks the user started carry no id and finish in between
+            finish(intent.getIntExtra(UpdateCheckService.EXTRA_CHECK_ID, 0));
+        }
+    };
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        Check check = new Check(sNextCheckId++, params);
+        Log.i(TAG, "Starting scheduled update check " + check.mId);
+        if (mChecks.size() == 0) {
+            registerReceiver(mReceiver,
+                    new IntentFilter(UpdateCheckService.ACTION_CHECK_FINISHED));
+        }
+        mChecks.put(check.mId, check);
+        sRunningJobs.add(params.getJobId());
+        mHandler.postDelayed(check, TIMEOUT);
+
+        Intent i = new Intent(this, UpdateCheckService.class);
+        i.setAction(UpdateCheckService.ACTION_CHECK);
+        i.putExtra(UpdateCheckService.EXTRA_SCHEDULED, true);
+        i.putExtra(UpdateCheckService.EXTRA_CHECK_ID, check.mId);
+        startService(i);
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        // The constraints no longer hold, or the job was replaced. Stop the check;
+        // in the first case the job runs again later, in the second the request is ignored.
+        for (int i = 0; i < mChecks.size(); i++) {
+            Check check = mChecks.valueAt(i);
+            if (check.mParams.getJobId() == params.getJobId()) {
+                release(check);
+                Intent intent = new Intent(this, UpdateCheckService.class);
+                intent.setAction(UpdateCheckService.ACTION_CANCEL_CHECK);
+                intent.putExtra(UpdateCheckService.EXTRA_CHECK_ID, check.mId);
+                startService(intent);
+                break;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether the job with the given id runs a check right now
+     */
+    public static boolean isRunning(int jobId) {
+        return sRunningJobs.contains(jobId);
+    }
+
+    private void finish(int checkId) {
+        Check check = mChecks.get(checkId);
+        if (check != null) {
+            release(check);
+            jobFinished(check.mParams, false);
+            CheckScheduler.schedule(this);
+        }
+    }
+
+    private void release(Check check) {
+        mHandler.removeCallbacks(check);
+        mChecks.remove(check.mId);
+        sRunningJobs.remove(check.mParams.getJobId());
+        if (mChecks.size() == 0) {
+            unregisterReceiver(mReceiver);
+        }
+    }
+}
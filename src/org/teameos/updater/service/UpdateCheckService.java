@@ -19,6 +19,7 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.res.Resources;
 import android.os.Parcelable;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.text.TextUtils;
 import android.util.Log;
@@ -26,30 +27,31 @@ import android.widget.Toast;
 
 import org.teameos.updater.R;
 
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.HttpStatus;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.methods.HttpRequestBase;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.json.JSONArray;
-import org.json.JSONObject;
 import org.teameos.updater.UpdateApplication;
 import org.teameos.updater.UpdatesSettings;
+import org.teameos.updater.misc.ChangeLogCache;
 import org.teameos.updater.misc.Constants;
 import org.teameos.updater.misc.Logger;
-import org.teameos.updater.misc.State;
+import org.teameos.updater.misc.UpdateCatalog;
 import org.teameos.updater.misc.UpdateInfo;
 import org.teameos.updater.receiver.DownloadReceiver;
+import org.teameos.updater.utils.BuildEnvironment;
+import org.teameos.updater.utils.CheckScheduler;
+import org.teameos.updater.utils.Http;
+import org.teameos.updater.utils.Mirrors;
 import org.teameos.updater.utils.Utils;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 
 public class UpdateCheckService extends IntentService {
     private static final String TAG = "UpdateCheckService";
@@ -61,6 +63,17 @@ public class UpdateCheckService extends IntentService {
     // request actions
     public static final String ACTION_CHECK = "org.teameos.updater.action.CHECK";
     public static final String ACTION_CANCEL_CHECK = "org.teameos.updater.action.CANCEL_CHECK";
+    // fetch the next page of older builds, if there is one
+    public static final String ACTION_FETCH_HISTORY = "org.teameos.updater.action.FETCH_HISTORY";
+    // queued by a successful check, runs after it
+    private static final String ACTION_FETCH_CHANGELOGS =
+            "org.teameos.updater.action.FETCH_CHANGELOGS";
+
+    // extra for ACTION_CHECK: the check was started by CheckScheduler, not the user
+    public static final String EXTRA_SCHEDULED = "scheduled";
+    // extra for ACTION_CHECK: id of a check started by UpdateCheckJobService, handed back
+    // with ACTION_CHECK_FINISHED. The job schedules the next check once it finished.
+    public static final String EXTRA_CHECK_ID = "check_id";
 
     // broadcast actions
     public static final String ACTION_CHECK_FINISHED = "org.teameos.updater.action.UPDATE_CHECK_FINISHED";
@@ -70,22 +83,41 @@ public class UpdateCheckService extends IntentService {
     public static final String EXTRA_REAL_UPDATE_COUNT = "real_update_count";
     // extra for ACTION_CHECK_FINISHED: amount of updates that were found for the first time
     public static final String EXTRA_NEW_UPDATE_COUNT = "new_update_count";
+    public static final String ACTION_HISTORY_FETCHED = "org.teameos.updater.action.HISTORY_FETCHED";
+    // extra for ACTION_HISTORY_FETCHED: false if the page could not be fetched
+    public static final String EXTRA_SUCCESS = "success";
 
     // max. number of updates listed in the expanded notification
     private static final int EXPANDED_NOTIF_UPDATE_COUNT = 4;
 
-    private static final HttpRequestExecutor mHttpExecutor = new HttpRequestExecutor();
+    // How long a query waits for a mirror while there is another one to ask
+    private static final int MIRROR_TIMEOUT = 5000;
+
+    // The query that is running, cancelled by ACTION_CANCEL_CHECK
+    private Http.Call mCall;
+    // EXTRA_CHECK_ID of the check that is running, 0 if it has none
+    private volatile int mCheckId;
+
+    // The build the server is queried for
+    private final BuildEnvironment mEnv;
 
     public UpdateCheckService() {
+        this(BuildEnvironment.get());
+    }
+
+    UpdateCheckService(BuildEnvironment env) {
         super("UpdateCheckService");
+        mEnv = env;
     }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         if (TextUtils.equals(intent.getAction(), ACTION_CANCEL_CHECK)) {
+            int checkId = intent.getIntExtra(EXTRA_CHECK_ID, 0);
             synchronized (this) {
-                if (mHttpExecutor != null) {
-                    mHttpExecutor.abort();
+                // A job only cancels its own check
+                if (mCall != null && (checkId == 0 || checkId == mCheckId)) {
+                    mCall.cancel();
                 }
             }
 
@@ -97,6 +129,28 @@ public class UpdateCheckService extends IntentService {
 
     @Override
     protected void onHandleIntent(Intent intent) {
+        if (TextUtils.equals(intent.getAction(), ACTION_FETCH_CHANGELOGS)) {
+            if (Utils.isOnline(this)) {
+                UpdateApplication app = (UpdateApplication) getApplicationContext();
+                ChangeLogCache.prefetch(this, app.getCatalog().getUpdates(),
+                        Utils.getUserAgentString(this));
+            }
+            return;
+        }
+
+        if (TextUtils.equals(intent.getAction(), ACTION_FETCH_HISTORY)) {
+            boolean success = Utils.isOnline(this) && fetchHistory();
+            Intent fetchedIntent = new Intent(ACTION_HISTORY_FETCHED);
+            fetchedIntent.putExtra(EXTRA_SUCCESS, success);
+            sendBroadcast(fetchedIntent);
+            return;
+        }
+
+        mCheckId = intent.getIntExtra(EXTRA_CHECK_ID, 0);
+        if (intent.getBooleanExtra(EXTRA_SCHEDULED, false)) {
+            CheckScheduler.noteScheduledCheck(this);
+        }
+
         final Resources res = getResources();
 
         final boolean fromQuicksettings = intent.hasExtra("isFromQuicksettings");
@@ -107,11 +161,14 @@ public class UpdateCheckService extends IntentService {
         if (!Utils.isOnline(this)) {
             // Only check for updates if the device is actually connected to a network
             Log.i(TAG, "Could not check for updates. Not connected to the network.");
+            CheckScheduler.onCheckFailed(this);
+            scheduleNextCheck(intent);
             if (!updaterIsForeground) {
                 final Context mContext = getApplicationContext();
                 final String cheese = mContext.getString(R.string.update_check_failed);
                 Toast.makeText(mContext, cheese, Toast.LENGTH_SHORT).show();
             }
+            sendBroadcast(newFinishedIntent(intent));
             return;
         }
 
@@ -131,16 +188,22 @@ public class UpdateCheckService extends IntentService {
         }
 
         // Start the update check
-        Intent finishedIntent = new Intent(ACTION_CHECK_FINISHED);
+        Intent finishedIntent = newFinishedIntent(intent);
         LinkedList<UpdateInfo> availableUpdates;
         try {
             availableUpdates = getAvailableUpdatesAndFillIntent(finishedIntent);
+        } catch (InterruptedIOException e) {
+            Log.i(TAG, "Update check cancelled");
+            availableUpdates = null;
+            scheduleNextCheck(intent);
         } catch (IOException e) {
             Log.e(TAG, "Could not check for updates", e);
             availableUpdates = null;
+            CheckScheduler.onCheckFailed(this);
+            scheduleNextCheck(intent);
         }
 
-        if (availableUpdates == null) {// || mHttpExecutor.isAborted()) {
+        if (availableUpdates == null) {
             if (fromQuicksettings) nm.cancel(progressID);
             sendBroadcast(finishedIntent);
             return;
@@ -152,6 +215,13 @@ public class UpdateCheckService extends IntentService {
                 .putLong(Constants.LAST_UPDATE_CHECK_PREF, d.getTime())
                 .putBoolean(Constants.BOOT_CHECK_COMPLETED, true)
                 .apply();
+        CheckScheduler.onCheckSucceeded(this);
+        scheduleNextCheck(intent);
+
+        // Fill in the change logs once the result is out
+        Intent fetchIntent = new Intent(this, UpdateCheckService.class);
+        fetchIntent.setAction(ACTION_FETCH_CHANGELOGS);
+        startService(fetchIntent);
 
         int realUpdateCount = finishedIntent.getIntExtra(EXTRA_REAL_UPDATE_COUNT, 0);
 
@@ -260,34 +330,73 @@ public class UpdateCheckService extends IntentService {
         sendBroadcast(finishedIntent);
     }
 
-    private LinkedList<UpdateInfo> getAvailableUpdatesAndFillIntent(Intent intent) throws IOException {
+    private Intent newFinishedIntent(Intent request) {
+        Intent finishedIntent = new Intent(ACTION_CHECK_FINISHED);
+        if (request.hasExtra(EXTRA_CHECK_ID)) {
+            finishedIntent.putExtra(EXTRA_CHECK_ID, request.getIntExtra(EXTRA_CHECK_ID, 0));
+        }
+        return finishedIntent;
+    }
+
+    /**
+     * Rescheduling replaces the pending job, which would stop the job that is
+     * waiting for this check. Checks it started are rescheduled by the job.
+     */
+    private void scheduleNextCheck(Intent request) {
+        if (!request.hasExtra(EXTRA_CHECK_ID)) {
+            CheckScheduler.schedule(this);
+        }
+    }
+
+    LinkedList<UpdateInfo> getAvailableUpdatesAndFillIntent(Intent intent) throws IOException {
         // Get the type of update we should check for
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
         //TODO handle releases too!
         int updateType = prefs.getInt(Constants.UPDATE_TYPE_PREF, 0);
 
-        LinkedList<UpdateInfo> lastUpdates = State.loadState(this);
-        LinkedList<UpdateInfo> updates = getUpdateInfo();
+        UpdateCatalog catalog = ((UpdateApplication) getApplicationContext()).getCatalog();
+        List<UpdateInfo> lastUpdates = catalog.getUpdates();
+
+        // Only revalidate if we actually have something cached to fall back on
+        LinkedList<UpdateInfo> updates = getUpdateInfo(prefs, 1, !lastUpdates.isEmpty());
+
+        if (updates == null) {
+            // The file list did not change since the last check, so nothing is
+            // new and the stored state is still current
+            int realUpdates = 0;
+            for (UpdateInfo ui : lastUpdates) {
+                if (ui.isNewerThanInstalled()) {
+                    realUpdates++;
+                }
+            }
+            Log.d(TAG, "File list not modified, found " + realUpdates + " REAL updates");
+
+            intent.putExtra(EXTRA_UPDATE_COUNT, lastUpdates.size());
+            intent.putExtra(EXTRA_REAL_UPDATE_COUNT, realUpdates);
+            intent.putExtra(EXTRA_NEW_UPDATE_COUNT, 0);
+
+            return new LinkedList<UpdateInfo>(lastUpdates);
+        }
+
+        boolean lastPage = updates.size() < Constants.UPDATE_MAX_FILE_HISTORY;
 
         // initial app state handling
-        // if State.loadState is null or empty, don't allow
+        // if there is no last update list, don't allow
         // any available updates that are same date or older than
         // current installed version.
-        if (lastUpdates == null || lastUpdates.isEmpty()) {
-            LinkedList<UpdateInfo> updatesToRemove = new LinkedList<UpdateInfo>();
-            for (UpdateInfo ui : updates) {
-                if (!ui.isNewerThanInstalled()) {
-                    updatesToRemove.add(ui);
+        if (lastUpdates.isEmpty()) {
+            Iterator<UpdateInfo> it = updates.iterator();
+            while (it.hasNext()) {
+                if (!it.next().isNewerThanInstalled()) {
+                    it.remove();
                 }
             }
-            updates.removeAll(updatesToRemove);
         }
 
-        int newUpdates = 0, realUpdates = 0;
+        UpdateCatalog.Diff diff = catalog.diff(updates);
+        int newUpdates = diff.getAdded().size() + diff.getChanged().size();
+        int realUpdates = 0;
         for (UpdateInfo ui : updates) {
-            if (!lastUpdates.contains(ui)) {
-                newUpdates++;
-            }
             if (ui.isNewerThanInstalled()) {
                 realUpdates++;
             }
@@ -298,98 +407,216 @@ public class UpdateCheckService extends IntentService {
         intent.putExtra(EXTRA_REAL_UPDATE_COUNT, realUpdates);
         intent.putExtra(EXTRA_NEW_UPDATE_COUNT, newUpdates);
 
-        State.saveState(this, updates);
+        catalog.mergePage(1, updates, lastPage);
 
         return updates;
     }
 
-    private LinkedList<UpdateInfo> getUpdateInfo() {
-        LinkedList<UpdateInfo> infos = new LinkedList<UpdateInfo>();
+    /**
+     * Add the next page of older builds to the catalog
+     *
+     * @return false if the page could not be fetched
+     */
+    private boolean fetchHistory() {
+        UpdateCatalog catalog = ((UpdateApplication) getApplicationContext()).getCatalog();
+        if (!catalog.hasMoreHistory()) {
+            return true;
+        }
+        int page = catalog.getNextPage();
+        try {
+            LinkedList<UpdateInfo> updates = getUpdateInfo(
+                    PreferenceManager.getDefaultSharedPreferences(this), page, false);
+            log("Fetched " + updates.size() + " updates of page " + page);
+            catalog.mergePage(page, updates, updates.size() < Constants.UPDATE_MAX_FILE_HISTORY);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not fetch page " + page + " of the file list", e);
+            return false;
+        }
+    }
+
+    /**
+     * Query the mirrors for a page of the file list, best first, until one answers.
+     *
+     * @param page the page number, counting from 1
+     * @param conditional send the validators of the last response, if any. Only
+     *        the validators of the first page are kept.
+     * @return the parsed list, or null if the server answered 304 Not Modified
+     * @throws IOException if no mirror answered usefully or the server reported a
+     *         failure, which every mirror would report alike
+     */
+    LinkedList<UpdateInfo> getUpdateInfo(SharedPreferences prefs, int page,
+            boolean conditional) throws IOException {
+        String userAgent = Utils.getUserAgentString(this);
+        Mirrors.probe(this, mEnv, userAgent);
+        List<String> mirrors = Mirrors.getRanked(this, mEnv);
+
+        IOException failure = null;
+        for (int i = 0; i < mirrors.size(); i++) {
+            String mirror = mirrors.get(i);
+            try {
+                return getUpdateInfo(prefs, mirror, userAgent, page, conditional,
+                        i == mirrors.size() - 1);
+            } catch (MirrorException e) {
+                failure = e;
+                Log.w(TAG, "Query of " + mirror + " failed", e);
+                if (e.isMirrorFault()) {
+                    Mirrors.recordFailure(this, mirror);
+                }
+            }
+        }
+        throw new IOException("No mirror answered the query", failure);
+    }
+
+    /**
+     * Query one mirror for a page of the file list
+     *
+     * @param last whether this is the last mirror to try, only its Retry-After
+     *        counts when it fails
+     * @throws MirrorException if another mirror may do better
+     */
+    private LinkedList<UpdateInfo> getUpdateInfo(SharedPreferences prefs, String mirror,
+            String userAgent, int page, boolean conditional, boolean last) throws IOException {
+        String query = Utils.getQueryUrl(mEnv, mirror, page);
+        log("Attempting query with " + query);
+        Http.Call call = new Http.Call(query)
+                .header("User-Agent", userAgent)
+                .header("Cache-Control", "no-cache");
+        if (!last) {
+            call.timeouts(MIRROR_TIMEOUT, MIRROR_TIMEOUT);
+        }
+
+        // Validators are only meaningful for the exact query they were sent for
+        if (conditional && query.equals(prefs.getString(Constants.QUERY_URL, null))) {
+            call.header("If-None-Match", prefs.getString(Constants.QUERY_ETAG, null));
+            call.header("If-Modified-Since",
+                    prefs.getString(Constants.QUERY_LAST_MODIFIED, null));
+        }
+
+        synchronized (this) {
+            mCall = call;
+        }
+        Http.Response response = null;
+        long start = SystemClock.elapsedRealtime();
         try {
-            String query = Utils.getQueryUrl();
-            log("Attempting query with " + query);
-            HttpGet request = new HttpGet(query);
-            String userAgent = Utils.getUserAgentString(this);
-            if (userAgent != null) {
-                request.addHeader("User-Agent", userAgent);
+            try {
+                response = call.execute();
+            } catch (IOException e) {
+                throw new MirrorException("Unable to reach " + mirror, e, true);
+            }
+            long responseTime = SystemClock.elapsedRealtime();
+            int status = response.getCode();
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                CheckScheduler.setRetryAfter(this, response.getHeader("Retry-After"));
+                Mirrors.recordResponse(this, mirror, responseTime - start);
+                log("Query result not modified");
+                return null;
             }
-            request.addHeader("Cache-Control", "no-cache");
-            HttpEntity entity = null;
+            if (status != HttpURLConnection.HTTP_OK) {
+                if (last) {
+                    CheckScheduler.setRetryAfter(this, response.getHeader("Retry-After"));
+                }
+                throw new MirrorException("Query failed with HTTP status " + status, null,
+                        status >= HttpURLConnection.HTTP_INTERNAL_ERROR);
+            }
+            CheckScheduler.setRetryAfter(this, response.getHeader("Retry-After"));
+
+            final LinkedList<UpdateInfo> infos = new LinkedList<UpdateInfo>();
+            EosQueryParser parser = new EosQueryParser(mEnv, mirror);
+            InputStream instream = response.getBody();
+            boolean success;
             try {
-                entity = mHttpExecutor.execute(request);
+                success = parser.parse(instream, new EosQueryParser.OnUpdateParsedListener() {
+                    @Override
+                    public void onUpdateParsed(UpdateInfo info) {
+                        infos.add(info);
+                    }
+                });
+            } catch (SocketTimeoutException e) {
+                throw new MirrorException("Timed out reading the query response", e, true);
+            } catch (IllegalStateException e) {
+                // JsonReader found a value of the wrong type
+                throw new MirrorException("Malformed query response", e, false);
             } catch (IOException e) {
-                e.printStackTrace();
-                log("Error executing query");
+                throw new MirrorException("Unusable query response", e, false);
             }
-            if (entity == null) {
-                return infos;
+            logTransfer(response);
+            if (!success) {
+                throw new IOException("Server reported failure: " + parser.getMessage());
             }
-            String result = null;
-            InputStream instream = entity.getContent();
-            result = Utils.convertStreamToString(instream);
-            instream.close();
-            if (result == null) {
-                log("Raw query result was null. Returning empty list");
-                return infos; // empty list is better than null
+            Mirrors.recordResponse(this, mirror, responseTime - start);
+            Mirrors.recordTransfer(this, mirror, response.getTransferredBytes(),
+                    SystemClock.elapsedRealtime() - responseTime);
+            if (page == 1) {
+                storeValidators(prefs, query, response);
+                if (parser.getMirrors() != null) {
+                    Mirrors.setAnnounced(this, parser.getMirrors());
+                }
             }
-            JSONObject baseObj = new JSONObject(result);
-
-            String serverMsg = baseObj.getString("result");
-            JSONObject data = baseObj.getJSONObject("data");
-            if ("failed".equals(serverMsg)) {
-                String theFail = data.getString("message");
-                log("Server returned fail message: " + theFail);
-                return infos;
+            return infos;
+        } catch (IOException e) {
+            if (call.isCancelled()) {
+                throw new InterruptedIOException("Cancelled " + query);
             }
-
-            JSONArray fileList = data.getJSONArray("file_list");
-            for (int i = 0; i < fileList.length(); i++) {
-                JSONObject file = fileList.getJSONObject(i);
-                long epoch = file.getLong("epoch");
-                String name = file.getString("name");
-                int sdk = Utils.getInstalledApiLevel();
-                String url = Utils.getBaseServerUrl() + file.getString("url");
-                String md5 = file.getString("md5sum");
-                UpdateInfo info = new UpdateInfo(name, epoch, sdk, url, md5,
-                        UpdateInfo.Type.NIGHTLY);
-                log("File " + String.valueOf(i) + " : " + file.toString());
-                infos.add(info);
+            throw e;
+        } finally {
+            synchronized (this) {
+                mCall = null;
+            }
+            if (response != null) {
+                response.close();
             }
-
-        } catch (Exception e) {
-            e.printStackTrace();
         }
-        return infos;
     }
 
-    private static final class HttpRequestExecutor {
-        private HttpRequestBase mRequest;
-        private HttpClient mClient = new DefaultHttpClient();
-
-        HttpEntity execute(HttpRequestBase request) throws IOException {
-            synchronized (this) {
-                mRequest = request;
-            }
-
-            HttpResponse response = mClient.execute(request);
-            HttpEntity entity = null;
+    /**
+     * A query a mirror could not answer usefully, so the next one is asked
+     */
+    private static final class MirrorException extends IOException {
+        private final boolean mMirrorFault;
+
+        /**
+         * @param mirrorFault the mirror could not be reached, timed out or had a
+         *        server error, which counts against it in the ranking
+         */
+        MirrorException(String message, Throwable cause, boolean mirrorFault) {
+            super(message, cause);
+            mMirrorFault = mirrorFault;
+        }
 
-            if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
-                entity = response.getEntity();
-            }
+        boolean isMirrorFault() {
+            return mMirrorFault;
+        }
+    }
 
-            synchronized (this) {
-                mRequest = null;
-            }
+    /**
+     * Report what the file list cost on the wire, to measure what compression saves
+     */
+    private static void logTransfer(Http.Response response) {
+        long transferred = response.getTransferredBytes();
+        long decoded = response.getDecodedBytes();
+        String encoding = response.getEncoding();
+        Log.i(TAG, "File list: " + transferred + " bytes transferred, " + decoded
+                + " bytes decoded, encoding " + (encoding != null ? encoding : "identity")
+                + (decoded > 0 ? ", " + (100 - transferred * 100 / decoded) + "% saved" : ""));
+    }
 
-            return entity;
+    private static void storeValidators(SharedPreferences prefs, String query,
+            Http.Response response) {
+        String etag = response.getHeader("ETag");
+        String lastModified = response.getHeader("Last-Modified");
+        SharedPreferences.Editor editor = prefs.edit().putString(Constants.QUERY_URL, query);
+        if (etag != null) {
+            editor.putString(Constants.QUERY_ETAG, etag);
+        } else {
+            editor.remove(Constants.QUERY_ETAG);
         }
-
-        synchronized void abort() {
-            if (mRequest != null) {
-                mRequest.abort();
-            }
+        if (lastModified != null) {
+            editor.putString(Constants.QUERY_LAST_MODIFIED, lastModified);
+        } else {
+            editor.remove(Constants.QUERY_LAST_MODIFIED);
         }
+        editor.apply();
     }
 
     private static void log(String msg) {
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2015 The TeamEos Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package org.teameos.updater.service;
+
+import android.app.Notification;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.PowerManager;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.teameos.updater.R;
+import org.teameos.updater.misc.DownloadQueue;
+import org.teameos.updater.misc.ProgressNotifier;
+import org.teameos.updater.receiver.DownloadReceiver;
+import org.teameos.updater.utils.BuildEnvironment;
+import org.teameos.updater.utils.Verifier;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Checks finished downloads against their published digests on a worker
+ * thread, so large zips are never hashed inside a BroadcastReceiver. The
+ * outcome goes back to DownloadReceiver, which notifies the user.
+ */
+public class VerifyService extends Service {
+    private static final String TAG = "VerifyService";
+
+    public static final String ACTION_VERIFY = "org.teameos.updater.action.VERIFY_DOWNLOAD";
+    public static final String ACTION_CANCEL_VERIFY = "org.teameos.updater.action.CANCEL_VERIFY";
+
+    private static final long NOTIFICATION_INTERVAL = 1000;
+
+    // Percentage of the downloads that are queued or being verified in this process
+    private static final Map<Long, Integer> sProgress = new ConcurrentHashMap<Long, Integer>();
+
+    private HandlerThread mWorkerThread;
+    private Handler mWorker;
+    private PowerManager.WakeLock mWakeLock;
+
+    private final Object mLock = new Object();
+    private long mCurrentId = -1;
+    private Verifier mCurrent;
+
+    /**
+     * Get the verification progress in percent, or -1 if the download isn't being verified
+     */
+    public static int getProgress(long id) {
+        Integer progress = sProgress.get(id);
+        return progress != null ? progress : -1;
+    }
+
+    /**
+     * @param calculatedMD5 MD5 hashed while downloading, null if unknown
+     */
+    public static void startVerification(Context context, long id, String updateFilePath,
+            String calculatedMD5) {
+        Intent intent = new Intent(context, VerifyService.class);
+        intent.setAction(ACTION_VERIFY);
+        intent.putExtra(DownloadService.EXTRA_DOWNLOAD_ID, id);
+        intent.putExtra(DownloadReceiver.EXTRA_DOWNLOAD_PATH, updateFilePath);
+        intent.putExtra(DownloadReceiver.EXTRA_DOWNLOAD_MD5, calculatedMD5);
+        context.startService(intent);
+    }
+
+    public static void cancelVerification(Context context, long id) {
+        Intent intent = new Intent(context, VerifyService.class);
+        intent.setAction(ACTION_CANCEL_VERIFY);
+        intent.putExtra(DownloadService.EXTRA_DOWNLOAD_ID, id);
+        context.startService(intent);
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mWorkerThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mWorkerThread.start();
+        mWorker = new Handler(mWorkerThread.getLooper());
+
+        PowerManager pm = (PowerManager) getSystemService(POWER_SERVICE);
+        mWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+        mWakeLock.setReferenceCounted(false);
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        synchronized (mLock) {
+            if (mCurrent != null) {
+                mCurrent.cancel();
+            }
+        }
+        mWorkerThread.quit();
+        mWakeLock.release();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, final int startId) {
+        if (intent == null) {
+            stopSelf(startId);
+            return START_NOT_STICKY;
+        }
+
+        final long id = intent.getLongExtra(DownloadService.EXTRA_DOWNLOAD_ID, -1);
+        if (ACTION_VERIFY.equals(intent.getAction())) {
+            final String path = intent.getStringExtra(DownloadReceiver.EXTRA_DOWNLOAD_PATH);
+            final String calculatedMD5 = intent.getStringExtra(DownloadReceiver.EXTRA_DOWNLOAD_MD5);
+            if (!sProgress.containsKey(id)) {
+                sProgress.put(id, 0);
+                ProgressNotifier.notifyChanged(id);
+            }
+            mWorker.post(new Runnable() {
+                @Override
+                public void run() {
+                    runVerification(id, path, calculatedMD5);
+                    stopSelf(startId);
+                }
+            });
+        } else if (ACTION_CANCEL_VERIFY.equals(intent.getAction())) {
+            sProgress.remove(id);
+            ProgressNotifier.notifyChanged(id);
+            synchronized (mLock) {
+                if (mCurrentId == id && mCurrent != null) {
+                    mCurrent.cancel();
+                }
+            }
+            mWorker.post(new Runnable() {
+                @Override
+                public void run() {
+                    stopSelf(startId);
+                }
+            });
+        } else {
+            stopSelf(startId);
+        }
+
+        // Verify again if we get killed halfway through
+        return START_REDELIVER_INTENT;
+    }
+
+    private void runVerification(final long id, String path, String calculatedMD5) {
+        DownloadQueue.Item item = DownloadQueue.getInstance(this).find(id);
+        if (path == null || !sProgress.containsKey(id) || item == null) {
+            // Cancelled before it started, or a stale redelivered intent
+            Log.d(TAG, "Skipping verification of " + id);
+            sProgress.remove(id);
+            return;
+        }
+
+        final File updateFile = new File(path);
+        Verifier verifier = Verifier.forUpdate(item.getUpdateInfo());
+        // Only the MD5 is hashed during downloads, SHA digests take a pass over the file
+        Map<String, String> known = new HashMap<String, String>();
+        if (calculatedMD5 != null) {
+            known.put(Verifier.ALGORITHM_MD5, calculatedMD5);
+        }
+
+        final Notification.Builder builder = new Notification.Builder(this)
+                .setSmallIcon(R.drawable.ic_system_update)
+                .setContentTitle(updateFile.getName())
+                .setContentText(getString(R.string.verifying_update, 0))
+                .setOngoing(true)
+                .setProgress(100, 0, false);
+        startForeground(R.string.verifying_update, builder.build());
+        verifier.setProgressListener(new Verifier.ProgressListener() {
+            private long mLastNotification = 0;
+
+            @Override
+            public void onProgress(long hashed, long total) {
+                int percent = total > 0 ? (int) (hashed * 100 / total) : 0;
+                Integer last = sProgress.get(id);
+                if (last != null && last != percent) {
+                    sProgress.put(id, percent);
+                    ProgressNotifier.notifyChanged(id);
+                }
+
+                long now = SystemClock.elapsedRealtime();
+                if (now - mLastNotification >= NOTIFICATION_INTERVAL) {
+                    mLastNotification = now;
+                    builder.setContentText(getString(R.string.verifying_update, percent))
+                            .setProgress(100, percent, false);
+                    startForeground(R.string.verifying_update, builder.build());
+                }
+            }
+        });
+
+        synchronized (mLock) {
+            mCurrentId = id;
+            mCurrent = verifier;
+        }
+        mWakeLock.acquire();
+
+        boolean verified;
+        long start = SystemClock.elapsedRealtime();
+        try {
+            verified = verifier.verify(updateFile, known);
+        } finally {
+            synchronized (mLock) {
+                mCurrentId = -1;
+                mCurrent = null;
+            }
+            mWakeLock.release();
+            stopForeground(true);
+        }
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        long length = updateFile.length();
+        Log.i(TAG, "Verification of " + updateFile.getName() + " (" + length + " bytes) on "
+                + BuildEnvironment.get().getDeviceType() + " took " + elapsed + " ms, "
+                + (elapsed > 0 ? length / 1024 * 1000 / 1024 / elapsed : 0) + " MB/s, "
+                + (known.isEmpty() ? "all digests" : "MD5 known")
+                + ", result " + (verifier.isCancelled() ? "cancelled" : verified));
+
+        sProgress.remove(id);
+        ProgressNotifier.notifyChanged(id);
+        if (verifier.isCancelled()) {
+            // Whoever cancelled cleared the download state, drop the file
+            updateFile.delete();
+            return;
+        }
+
+        Intent intent = new Intent(this, DownloadReceiver.class);
+        intent.setAction(DownloadReceiver.ACTION_VERIFICATION_FINISHED);
+        intent.putExtra(DownloadService.EXTRA_DOWNLOAD_ID, id);
+        intent.putExtra(DownloadReceiver.EXTRA_DOWNLOAD_SUCCESSFUL, verified);
+        intent.putExtra(DownloadReceiver.EXTRA_DOWNLOAD_PATH, path);
+        sendBroadcast(intent);
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2015 The TeamEos Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package org.teameos.updater.utils;
+
+import android.os.SystemProperties;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * What is installed on this device and where to look for updates. The build
+ * properties can't change while the process runs, so they are read once by
+ * get(); anything that compares updates against the installed build takes an
+ * instance, which tests can construct with whatever values they need.
+ */
+public final class BuildEnvironment {
+    private static final Pattern ZIP_SUFFIX = Pattern.compile("\\.zip$");
+
+    private static BuildEnvironment sInstance;
+
+    private final String mDeviceType;
+    private final String mInstalledVersion;
+    private final int mApiLevel;
+    private final long mBuildDate;
+    private final String mBaseServerUrl;
+    private final String mFileListPath;
+    private final List<String> mMirrorUrls;
+    private final Pattern mDeviceSuffix;
+
+    /**
+     * @param mirrorUrls base URLs that serve the same files as baseServerUrl
+     */
+    public BuildEnvironment(String deviceType, String installedVersion, int apiLevel,
+            long buildDate, String baseServerUrl, String fileListPath, List<String> mirrorUrls) {
+        mDeviceType = deviceType;
+        mInstalledVersion = installedVersion;
+        mApiLevel = apiLevel;
+        mBuildDate = buildDate;
+        mBaseServerUrl = baseServerUrl;
+        mFileListPath = fileListPath;
+        mMirrorUrls = Collections.unmodifiableList(new ArrayList<String>(mirrorUrls));
+        mDeviceSuffix = Pattern.compile("-" + Pattern.quote(deviceType) + "-?");
+    }
+
+    /**
+     * The environment of this device, read from the system properties on first use
+     */
+    public static synchronized BuildEnvironment get() {
+        if (sInstance == null) {
+            sInstance = new BuildEnvironment(
+                    SystemProperties.get("ro.eos.device"),
+                    SystemProperties.get("ro.eos.version"),
+                    SystemProperties.getInt("ro.build.version.sdk", 0),
+                    SystemProperties.getLong("ro.build.date.utc", 0),
+                    SystemProperties.get("ro.eos.updater.url", "http://api.teameos.org/"),
+                    SystemProperties.get("ro.eos.updater.file_path", "v1/files/file_list/"),
+                    splitUrls(SystemProperties.get("ro.eos.updater.mirrors", "")));
+        }
+        return sInstance;
+    }
+
+    public String getDeviceType() {
+        return mDeviceType;
+    }
+
+    public String getInstalledVersion() {
+        return mInstalledVersion;
+    }
+
+    public int getInstalledApiLevel() {
+        return mApiLevel;
+    }
+
+    public long getInstalledBuildDate() {
+        return mBuildDate;
+    }
+
+    public String getBaseServerUrl() {
+        return mBaseServerUrl;
+    }
+
+    public String getFileListPath() {
+        return mFileListPath;
+    }
+
+    /**
+     * Base URLs of the mirrors configured for the build, besides getBaseServerUrl()
+     */
+    public List<String> getMirrorUrls() {
+        return mMirrorUrls;
+    }
+
+    /**
+     * Name of an update for display, the file name without extension and device
+     */
+    public String extractUiName(String fileName) {
+        String uiName = ZIP_SUFFIX.matcher(fileName).replaceAll("");
+        return mDeviceSuffix.matcher(uiName).replaceAll("");
+    }
+
+    /**
+     * Whether a build with the given API level and date is newer than the installed one
+     */
+    public boolean isNewerThanInstalled(int apiLevel, long buildDate) {
+        if (mApiLevel != apiLevel && apiLevel > 0) {
+            return apiLevel > mApiLevel;
+        }
+        // API levels match, so compare build dates.
+        return buildDate > mBuildDate;
+    }
+
+    /**
+     * Split a comma separated list of base URLs
+     */
+    private static List<String> splitUrls(String urls) {
+        List<String> list = new ArrayList<String>();
+        for (String url : urls.split(",")) {
+            if (!url.trim().isEmpty()) {
+                list.add(url.trim());
+            }
+        }
+        return list;
+    }
+}
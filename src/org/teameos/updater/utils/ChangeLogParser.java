@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2015 The TeamEos Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package org.teameos.updater.utils;
+
+import android.graphics.Typeface;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.BulletSpan;
+import android.text.style.RelativeSizeSpan;
+import android.text.style.StyleSpan;
+import android.text.style.TypefaceSpan;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads a plain text change log a page at a time and turns every line into
+ * styled text. Headers ("# ..." and "project ..." lines) are bold, "* ", "- "
+ * and "+ " items get a bullet, and leading commit hashes are set in monospace.
+ * Runs of blank lines collapse into one.
+ */
+public class ChangeLogParser implements Closeable {
+    private static final int SNIFF_LENGTH = 512;
+
+    private static final Pattern HASH = Pattern.compile("^([0-9a-f]{7,40})\\s");
+
+    private final BufferedReader mReader;
+    private boolean mLastBlank = true;
+
+    public ChangeLogParser(File file) throws IOException {
+        mReader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+    }
+
+    /**
+     * Whether the file is HTML rather than plain text, judged by its first tag
+     */
+    public static boolean isHtml(File file) {
+        Reader in = null;
+        try {
+            in = new InputStreamReader(new FileInputStream(file), "UTF-8");
+            char[] buffer = new char[SNIFF_LENGTH];
+            int length = in.read(buffer);
+            for (int i = 0; i < length; i++) {
+                char c = buffer[i];
+                if (c != '\uFEFF' && !Character.isWhitespace(c)) {
+                    return c == '<';
+                }
+            }
+            return false;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignored, can't do anything anyway
+                }
+            }
+        }
+    }
+
+    /**
+     * Read up to maxLines lines
+     *
+     * @return the styled lines, empty at the end of the file
+     */
+    public List<CharSequence> readPage(int maxLines) throws IOException {
+        List<CharSequence> lines = new ArrayList<CharSequence>(maxLines);
+        String line;
+        while (lines.size() < maxLines && (line = mReader.readLine()) != null) {
+            if (line.startsWith("\uFEFF")) {
+                line = line.substring(1);
+            }
+            boolean blank = line.trim().isEmpty();
+            if (blank && mLastBlank) {
+                continue;
+            }
+            mLastBlank = blank;
+            lines.add(format(line));
+        }
+        return lines;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mReader.close();
+    }
+
+    private static CharSequence format(String line) {
+        String trimmed = line.trim();
+        SpannableStringBuilder text = new SpannableStringBuilder();
+
+        if (trimmed.startsWith("#") || trimmed.startsWith("project ")) {
+            String header = trimmed.replaceFirst("^#+\\s*", "");
+            text.append(header);
+            text.setSpan(new StyleSpan(Typeface.BOLD), 0, text.length(),
+                    Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            text.setSpan(new RelativeSizeSpan(1.1f), 0, text.length(),
+                    Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            return text;
+        }
+
+        boolean bullet = trimmed.startsWith("* ") || trimmed.startsWith("- ")
+                || trimmed.startsWith("+ ");
+        if (bullet) {
+            trimmed = trimmed.substring(2).trim();
+        }
+        text.append(trimmed);
+
+        Matcher hash = HASH.matcher(trimmed);
+        if (hash.find()) {
+            text.setSpan(new TypefaceSpan("monospace"), 0, hash.end(1),
+                    Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+        if (bullet) {
+            text.setSpan(new BulletSpan(), 0, text.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+        return text;
+    }
+}
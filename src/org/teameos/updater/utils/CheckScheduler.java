@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2015 The TeamEos Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package org.teameos.updater.utils;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import org.teameos.updater.misc.Constants;
+import org.teameos.updater.service.UpdateCheckJobService;
+import org.teameos.updater.service.UpdateCheckService;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Decides when the next automatic update check runs and sets a one shot alarm
+ * for it; every check outcome schedules the next one. With
+ * Utils.useJobScheduler() a JobScheduler job takes the place of the alarm, so
+ * the check also waits for the configured network, charging and idle
+ * constraints. It still runs one period past its time if they are never met.
+ * A job only schedules the next check once it finished, as replacing a
+ * running job stops it. For the same reason connectivity changes leave a
+ * pending job alone and a running boot check is not pushed back.
+ *
+ * Checks run one period after the last successful one, shifted by a per
+ * device offset of up to a tenth of the period, so devices that were set up
+ * at the same time don't all hit the server at the same time. Failed checks
+ * are retried after 15 minutes, doubling with every failure in a row up to
+ * the period itself. A Retry-After the server sent is never undercut.
+ *
+ * The check after boot waits SETTLE_DELAY for connectivity to settle, every
+ * connectivity change in between pushes it back instead of starting another.
+ */
+public class CheckScheduler {
+    private static final String TAG = "CheckScheduler";
+
+    private static final float JITTER_FRACTION = 0.1f;
+    private static final long MAX_JITTER = 2 * AlarmManager.INTERVAL_HOUR;
+    private static final long BACKOFF_BASE = AlarmManager.INTERVAL_FIFTEEN_MINUTES;
+    private static final long MAX_BACKOFF = 12 * AlarmManager.INTERVAL_HOUR;
+    private static final long MAX_RETRY_AFTER = 7 * AlarmManager.INTERVAL_DAY;
+    // How late the alarm may go off, lets the system batch it with other wakeups
+    private static final long MAX_WINDOW = AlarmManager.INTERVAL_FIFTEEN_MINUTES;
+    private static final long SETTLE_DELAY = 30 * 1000;
+
+    public static final int PERIODIC_JOB_ID = 1;
+    public static final int BOOT_JOB_ID = 2;
+
+    private CheckScheduler() {
+        // this class is not supposed to be instantiated
+    }
+
+    /**
+     * Schedule the next check for the configured check interval
+     */
+    public static void schedule(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        int updateFrequency = prefs.getInt(Constants.UPDATE_CHECK_PREF,
+                Constants.UPDATE_FREQ_WEEKLY);
+        schedule(context, updateFrequency > 0 ? updateFrequency * 1000L : updateFrequency);
+    }
+
+    /**
+     * Schedule the next check unless its job is already pending. For callers
+     * that didn't change what the schedule depends on.
+     */
+    public static void ensureScheduled(Context context) {
+        if (Utils.useJobScheduler() && isJobPending(context, PERIODIC_JOB_ID)) {
+            return;
+        }
+        schedule(context);
+    }
+
+    /**
+     * @param updateFrequency check interval in milliseconds, or one of the
+     *        non-periodic Constants.UPDATE_FREQ_* values
+     */
+    public static void schedule(Context context, long updateFrequency) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+
+        // Clear any old alarms and jobs, including those of the other mode
+        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        JobScheduler js = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        PendingIntent pi = getAlarmIntent(context);
+        am.cancel(pi);
+
+        if (updateFrequency <= 0) {
+            js.cancel(PERIODIC_JOB_ID);
+            if (updateFrequency == Constants.UPDATE_FREQ_NONE) {
+                js.cancel(BOOT_JOB_ID);
+            }
+            return;
+        }
+
+        long next = getNextCheckTime(prefs, updateFrequency);
+        Log.i(TAG, "Next update check at " + new Date(next));
+        if (Utils.useJobScheduler()) {
+            long latency = Math.max(0, next - System.currentTimeMillis());
+            scheduleJob(context, PERIODIC_JOB_ID, latency, latency + updateFrequency);
+        } else {
+            js.cancel(PERIODIC_JOB_ID);
+            long window = Math.min(MAX_WINDOW, updateFrequency / 20);
+            am.setWindow(AlarmManager.RTC_WAKEUP, next, window, pi);
+        }
+    }
+
+    /**
+     * Run the check that follows a boot once connectivity settled. Calling this
+     * again before it ran postpones it, so a flapping connection yields one check.
+     */
+    public static void scheduleBootCheck(Context context) {
+        if (Utils.useJobScheduler()) {
+            if (UpdateCheckJobService.isRunning(BOOT_JOB_ID)) {
+                Log.i(TAG, "Boot check already running");
+                return;
+            }
+            scheduleJob(context, BOOT_JOB_ID, SETTLE_DELAY,
+                    SETTLE_DELAY + AlarmManager.INTERVAL_DAY);
+        } else {
+            AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+            am.set(AlarmManager.ELAPSED_REALTIME_WAKEUP,
+                    SystemClock.elapsedRealtime() + SETTLE_DELAY, getAlarmIntent(context));
+        }
+    }
+
+    /**
+     * Count a check the scheduler started. The count restarts whenever the
+     * scheduling mode changes, so how often each mode runs a check can be compared.
+     */
+    public static void noteScheduledCheck(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String mode = Utils.useJobScheduler() ? "job" : "alarm";
+        int count = 1;
+        long since = System.currentTimeMillis();
+        if (mode.equals(prefs.getString(Constants.SCHEDULED_CHECK_MODE, null))) {
+            count += prefs.getInt(Constants.SCHEDULED_CHECK_COUNT, 0);
+            since = prefs.getLong(Constants.SCHEDULED_CHECK_SINCE, since);
+        }
+        prefs.edit()
+                .putString(Constants.SCHEDULED_CHECK_MODE, mode)
+                .putLong(Constants.SCHEDULED_CHECK_SINCE, since)
+                .putInt(Constants.SCHEDULED_CHECK_COUNT, count)
+                .apply();
+        Log.i(TAG, "Scheduled checks run in " + mode + " mode since " + new Date(since)
+                + ": " + count);
+    }
+
+    /**
+     * Record a completed check, the next one is a full period away. The caller
+     * schedules it.
+     */
+    public static void onCheckSucceeded(Context context) {
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .remove(Constants.CHECK_FAILURES)
+                .remove(Constants.LAST_CHECK_FAILURE)
+                .apply();
+    }
+
+    /**
+     * Record a check that failed for network or server reasons, the next one
+     * backs off. The caller schedules it.
+     */
+    public static void onCheckFailed(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        int failures = prefs.getInt(Constants.CHECK_FAILURES, 0) + 1;
+        prefs.edit()
+                .putInt(Constants.CHECK_FAILURES, failures)
+                .putLong(Constants.LAST_CHECK_FAILURE, System.currentTimeMillis())
+                .apply();
+        Log.i(TAG, "Update check failed " + failures + " times in a row");
+    }
+
+    /**
+     * Honor the Retry-After header of a server response, if there is one.
+     * Both the delay in seconds and the HTTP date forms are understood.
+     */
+    public static void setRetryAfter(Context context, String retryAfter) {
+        if (retryAfter == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long notBefore;
+        try {
+            notBefore = now + Long.parseLong(retryAfter.trim()) * 1000;
+        } catch (NumberFormatException e) {
+            SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz",
+                    Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            try {
+                notBefore = format.parse(retryAfter.trim()).getTime();
+            } catch (ParseException pe) {
+                Log.w(TAG, "Ignoring malformed Retry-After " + retryAfter);
+                return;
+            }
+        }
+        notBefore = Math.min(notBefore, now + MAX_RETRY_AFTER);
+        Log.i(TAG, "Server asked not to check before " + new Date(notBefore));
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .putLong(Constants.CHECK_NOT_BEFORE, notBefore)
+                .apply();
+    }
+
+    private static PendingIntent getAlarmIntent(Context context) {
+        Intent i = new Intent(context, UpdateCheckService.class);
+        i.setAction(UpdateCheckService.ACTION_CHECK);
+        i.putExtra(UpdateCheckService.EXTRA_SCHEDULED, true);
+        return PendingIntent.getService(context, 0, i, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    /**
+     * Replace the pending job with the given id, a running one is stopped
+     */
+    private static void scheduleJob(Context context, int jobId, long latency, long deadline) {
+        JobInfo job = new JobInfo.Builder(jobId,
+                new ComponentName(context, UpdateCheckJobService.class))
+                .setMinimumLatency(latency)
+                .setOverrideDeadline(deadline)
+                .setRequiredNetworkType(Utils.checkJobRequiresUnmetered()
+                        ? JobInfo.NETWORK_TYPE_UNMETERED : JobInfo.NETWORK_TYPE_ANY)
+                .setRequiresCharging(Utils.checkJobRequiresCharging())
+                .setRequiresDeviceIdle(Utils.checkJobRequiresIdle())
+                .setPersisted(true)
+                .build();
+        JobScheduler js = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if (js.schedule(job) != JobScheduler.RESULT_SUCCESS) {
+            Log.e(TAG, "Unable to schedule the update check job");
+        }
+    }
+
+    private static boolean isJobPending(Context context, int jobId) {
+        JobScheduler js = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        for (JobInfo job : js.getAllPendingJobs()) {
+            if (job.getId() == jobId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * When the next check is due, from the outcome of the last one. Package-private
+     * so the tests can check it without scheduling anything.
+     */
+    static long getNextCheckTime(SharedPreferences prefs, long updateFrequency) {
+        float seed = getJitterSeed(prefs);
+        int failures = prefs.getInt(Constants.CHECK_FAILURES, 0);
+
+        long next;
+        if (failures > 0) {
+            long backoff = BACKOFF_BASE << Math.min(failures - 1, 16);
+            backoff = Math.min(backoff, Math.min(MAX_BACKOFF, updateFrequency));
+            // Spread the retries over the second half of the backoff, differently per attempt
+            float spread = (seed * (failures + 1)) % 1f;
+            next = prefs.getLong(Constants.LAST_CHECK_FAILURE, 0)
+                    + backoff / 2 + (long) (spread * backoff / 2);
+        } else {
+            long jitter = (long) (seed * Math.min(MAX_JITTER, updateFrequency * JITTER_FRACTION));
+            next = prefs.getLong(Constants.LAST_UPDATE_CHECK_PREF, 0) + updateFrequency + jitter;
+        }
+        return Math.max(next, prefs.getLong(Constants.CHECK_NOT_BEFORE, 0));
+    }
+
+    /**
+     * The per device random number in [0, 1) all offsets derive from
+     */
+    private static float getJitterSeed(SharedPreferences prefs) {
+        float seed = prefs.getFloat(Constants.CHECK_JITTER_SEED, -1f);
+        if (seed < 0f || seed >= 1f) {
+            seed = new Random().nextFloat();
+            prefs.edit().putFloat(Constants.CHECK_JITTER_SEED, seed).apply();
+        }
+        return seed;
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2015 The TeamEos Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package org.teameos.updater.utils;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Rebuilds a full update zip from the zip it was diffed against and a patch.
+ *
+ * Patch layout, all numbers big endian:
+ *   "EOSDIFF1", new file size (long),
+ *   then a zlib stream of bsdiff style records until the new file is complete:
+ *     diff length (long), extra length (long), old seek (long, signed),
+ *     diff bytes, each added to the old byte at the same position,
+ *     extra bytes, copied as they are.
+ *   The old position advances by the diff length plus the seek. Old bytes
+ *   outside the old file count as zero.
+ *
+ * The patch and the new file are streamed and the old file is read through a
+ * window, so memory use does not depend on the file sizes. The MD5 of the new
+ * file is calculated on the way.
+ */
+public class DeltaPatch {
+    private static final byte[] MAGIC = {
+            'E', 'O', 'S', 'D', 'I', 'F', 'F', '1'
+    };
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File mOld;
+    private final File mPatch;
+    private volatile boolean mCancelled = false;
+
+    public DeltaPatch(File old, File patch) {
+        mOld = old;
+        mPatch = patch;
+    }
+
+    /**
+     * Stop a running apply(), which then throws. May be called from any thread.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Write the new file to target, replacing it
+     *
+     * @return MD5 of the new file as lowercase hex
+     */
+    public String apply(File target) throws IOException {
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("MD5 not available", e);
+        }
+
+        DataInputStream header = null;
+        RandomAccessFile old = null;
+        FileOutputStream out = null;
+        try {
+            header = new DataInputStream(new BufferedInputStream(new FileInputStream(mPatch)));
+            byte[] magic = new byte[MAGIC.length];
+            header.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not a delta patch: " + mPatch);
+            }
+            long newSize = header.readLong();
+            if (newSize < 0) {
+                throw new IOException("Corrupt patch, bad size " + newSize);
+            }
+            DataInputStream patch = new DataInputStream(
+                    new InflaterInputStream(header, new Inflater(), BUFFER_SIZE));
+
+            old = new RandomAccessFile(mOld, "r");
+            OldWindow window = new OldWindow(old);
+            out = new FileOutputStream(target);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long newPos = 0;
+            long oldPos = 0;
+
+            while (newPos < newSize) {
+                long diffLength = patch.readLong();
+                long extraLength = patch.readLong();
+                long seek = patch.readLong();
+                if (diffLength < 0 || extraLength < 0
+                        || diffLength + extraLength > newSize - newPos) {
+                    throw new IOException("Corrupt patch at " + newPos);
+                }
+
+                while (diffLength > 0) {
+                    checkCancelled();
+                    int n = (int) Math.min(buffer.length, diffLength);
+                    patch.readFully(buffer, 0, n);
+                    window.add(oldPos, buffer, n);
+                    md5.update(buffer, 0, n);
+                    out.write(buffer, 0, n);
+                    oldPos += n;
+                    newPos += n;
+                    diffLength -= n;
+                }
+                while (extraLength > 0) {
+                    checkCancelled();
+                    int n = (int) Math.min(buffer.length, extraLength);
+                    patch.readFully(buffer, 0, n);
+                    md5.update(buffer, 0, n);
+                    out.write(buffer, 0, n);
+                    newPos += n;
+                    extraLength -= n;
+                }
+                oldPos += seek;
+            }
+
+            out.getFD().sync();
+            return MD5.toHex(md5.digest());
+        } finally {
+            closeQuietly(header);
+            if (old != null) {
+                try {
+                    old.close();
+                } catch (IOException e) {
+                    // ignored
+                }
+            }
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignored
+                }
+            }
+        }
+    }
+
+    private void checkCancelled() throws IOException {
+        if (mCancelled) {
+            throw new IOException("Patching cancelled");
+        }
+    }
+
+    private static void closeQuietly(InputStream in) {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // ignored
+            }
+        }
+    }
+
+    /**
+     * Buffered random access to the old file. Diff records mostly walk it
+     * forward, so one window avoids a seek and read per record.
+     */
+    private static final class OldWindow {
+        private final RandomAccessFile mFile;
+        private final long mLength;
+        private final byte[] mBuffer = new byte[BUFFER_SIZE];
+        private long mStart = 0;
+        private int mCount = 0;
+
+        OldWindow(RandomAccessFile file) throws IOException {
+            mFile = file;
+            mLength = file.length();
+        }
+
+        /**
+         * Add the old bytes starting at position to the first len bytes of data
+         */
+        void add(long position, byte[] data, int len) throws IOException {
+            int i = 0;
+            while (i < len) {
+                long pos = position + i;
+                if (pos < 0 || pos >= mLength) {
+                    // Out of range, the diff bytes are the new bytes
+                    i++;
+                    continue;
+                }
+                if (pos < mStart || pos >= mStart + mCount) {
+                    fill(pos);
+                }
+                int offset = (int) (pos - mStart);
+                int n = Math.min(len - i, mCount - offset);
+                for (int j = 0; j < n; j++) {
+                    data[i + j] += mBuffer[offset + j];
+                }
+                i += n;
+            }
+        }
+
+        private void fill(long position) throws IOException {
+            mFile.seek(position);
+            int count = 0;
+            int max = (int) Math.min(mBuffer.length, mLength - position);
+            while (count < max) {
+                int read = mFile.read(mBuffer, count, max - count);
+                if (read < 0) {
+                    break;
+                }
+                count += read;
+            }
+            if (count == 0) {
+                throw new IOException("Unable to read old file at " + position);
+            }
+            mStart = position;
+            mCount = count;
+        }
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2015 The TeamEos Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package org.teameos.updater.utils;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The one way the app talks HTTP. Connections come from the process wide
+ * keep-alive pool of HttpURLConnection, so the update check, the changelog
+ * and the downloads that follow it reuse the same connection to the server
+ * as long as every response gets closed. Every call has connect and read
+ * timeouts, decodes gzip and deflate bodies unless the caller asks for a
+ * specific encoding, and can be cancelled from any thread. Bodies are decoded
+ * while they are read, and the bytes on the wire and after decoding are
+ * counted so callers can tell what compression saved.
+ */
+public class Http {
+    private static final String TAG = "Http";
+
+    public static final int CONNECT_TIMEOUT = 15000;
+    public static final int READ_TIMEOUT = 30000;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    static {
+        // Room for every segment of every running download plus the API calls
+        int connections = Utils.getDownloadConnections() * Utils.getMaxActiveDownloads() + 2;
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(Math.max(5, connections)));
+    }
+
+    private Http() {
+        // this class is not supposed to be instantiated
+    }
+
+    /**
+     * Fetch a small text resource, null on any error
+     */
+    public static String fetchString(String url, String userAgent) {
+        Response response = null;
+        try {
+            response = new Call(url).header("User-Agent", userAgent).execute();
+            if (response.getCode() != HttpURLConnection.HTTP_OK) {
+                Log.w(TAG, "Fetching " + url + " failed with HTTP status " + response.getCode());
+                return null;
+            }
+            String content = response.readString();
+            Log.d(TAG, "Fetched " + url + ": " + response.getTransferredBytes()
+                    + " bytes transferred, " + response.getDecodedBytes() + " bytes decoded");
+            return content;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to fetch " + url, e);
+            return null;
+        } finally {
+            if (response != null) {
+                response.close();
+            }
+        }
+    }
+
+    /**
+     * A single request. Set it up, execute() it once, and close the response.
+     */
+    public static final class Call {
+        private final String mUrl;
+        private final Map<String, String> mHeaders = new LinkedHashMap<String, String>();
+        private String mMethod = "GET";
+        private int mConnectTimeout = CONNECT_TIMEOUT;
+        private int mReadTimeout = READ_TIMEOUT;
+
+        private HttpURLConnection mConnection;
+        private boolean mCancelled = false;
+
+        public Call(String url) {
+            mUrl = url;
+        }
+
+        public Call method(String method) {
+            mMethod = method;
+            return this;
+        }
+
+        /**
+         * Add a request header, null values are ignored. Setting Accept-Encoding
+         * turns off the transparent decoding of the body.
+         */
+        public Call header(String name, String value) {
+            if (value != null) {
+                mHeaders.put(name, value);
+            }
+            return this;
+        }
+
+        public Call timeouts(int connectTimeout, int readTimeout) {
+            mConnectTimeout = connectTimeout;
+            mReadTimeout = readTimeout;
+            return this;
+        }
+
+        public String getUrl() {
+            return mUrl;
+        }
+
+        /**
+         * Send the request and read the status line and headers
+         */
+        public Response execute() throws IOException {
+            HttpURLConnection conn = (HttpURLConnection) new URL(mUrl).openConnection();
+            conn.setConnectTimeout(mConnectTimeout);
+            conn.setReadTimeout(mReadTimeout);
+            conn.setRequestMethod(mMethod);
+            boolean decode = !mHeaders.containsKey("Accept-Encoding");
+            if (decode) {
+                conn.setRequestProperty("Accept-Encoding", "gzip, deflate");
+            }
+            for (Map.Entry<String, String> header : mHeaders.entrySet()) {
+                conn.setRequestProperty(header.getKey(), header.getValue());
+            }
+
+            synchronized (this) {
+                if (mCancelled) {
+                    throw new InterruptedIOException("Cancelled " + mUrl);
+                }
+                mConnection = conn;
+            }
+            try {
+                return new Response(conn, conn.getResponseCode(), decode);
+            } catch (IOException e) {
+                conn.disconnect();
+                if (isCancelled()) {
+                    throw new InterruptedIOException("Cancelled " + mUrl);
+                }
+                throw e;
+            }
+        }
+
+        /**
+         * Abort the call, whatever it is blocked on fails. The connection is
+         * dropped instead of going back to the pool.
+         */
+        public void cancel() {
+            HttpURLConnection conn;
+            synchronized (this) {
+                mCancelled = true;
+                conn = mConnection;
+            }
+            if (conn != null) {
+                conn.disconnect();
+            }
+        }
+
+        public synchronized boolean isCancelled() {
+            return mCancelled;
+        }
+    }
+
+    public static final class Response implements Closeable {
+        private final HttpURLConnection mConnection;
+        private final int mCode;
+        private final boolean mDecode;
+        private InputStream mBody;
+        private CountingInputStream mTransferred;
+        private CountingInputStream mDecoded;
+
+        private Response(HttpURLConnection connection, int code, boolean decode) {
+            mConnection = connection;
+            mCode = code;
+            mDecode = decode;
+        }
+
+        public int getCode() {
+            return mCode;
+        }
+
+        public String getHeader(String name) {
+            return mConnection.getHeaderField(name);
+        }
+
+        /**
+         * The body, decoded if the server compressed it on our request
+         */
+        public synchronized InputStream getBody() throws IOException {
+            if (mBody == null) {
+                InputStream in = mCode >= HttpURLConnection.HTTP_BAD_REQUEST
+                        ? mConnection.getErrorStream() : mConnection.getInputStream();
+                if (in == null) {
+                    in = new ByteArrayInputStream(new byte[0]);
+                }
+                mTransferred = new CountingInputStream(in);
+                in = mTransferred;
+                String encoding = mDecode ? getHeader("Content-Encoding") : null;
+                if ("gzip".equalsIgnoreCase(encoding)) {
+                    in = new GZIPInputStream(in, BUFFER_SIZE);
+                } else if ("deflate".equalsIgnoreCase(encoding)) {
+                    in = new InflaterInputStream(in);
+                }
+                mDecoded = new CountingInputStream(in);
+                mBody = mDecoded;
+            }
+            return mBody;
+        }
+
+        /**
+         * Bytes of the body read off the connection so far, as sent by the server
+         */
+        public synchronized long getTransferredBytes() {
+            return mTransferred != null ? mTransferred.getCount() : 0;
+        }
+
+        /**
+         * Bytes of the body handed to the reader so far, after decoding
+         */
+        public synchronized long getDecodedBytes() {
+            return mDecoded != null ? mDecoded.getCount() : 0;
+        }
+
+        /**
+         * Content-Encoding of the body, null if it was sent as is
+         */
+        public String getEncoding() {
+            return getHeader("Content-Encoding");
+        }
+
+        public String readString() throws IOException {
+            InputStream in = getBody();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+            return out.toString("UTF-8");
+        }
+
+        /**
+         * Release the connection. A fully read body lets it go back to the pool.
+         */
+        @Override
+        public synchronized void close() {
+            try {
+                if (mBody == null) {
+                    mBody = mCode >= HttpURLConnection.HTTP_BAD_REQUEST
+                            ? mConnection.getErrorStream() : mConnection.getInputStream();
+                }
+                if (mBody != null) {
+                    mBody.close();
+                }
+            } catch (IOException e) {
+                // Nothing to release then
+            }
+        }
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+        private volatile long mCount = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        long getCount() {
+            return mCount;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                mCount++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                mCount += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            mCount += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
@@ -13,24 +13,30 @@ import android.text.TextUtils;
 import android.util.Log;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.InputStream;
-import java.math.BigInteger;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 
 public class MD5 {
     private static final String TAG = "MD5";
 
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
     public static boolean checkMD5(String md5, File updateFile) {
         if (TextUtils.isEmpty(md5) || updateFile == null) {
             Log.e(TAG, "MD5 string empty or updateFile null");
             return false;
         }
 
-        String calculatedDigest = calculateMD5(updateFile);
+        return checkMD5(md5, calculateMD5(updateFile));
+    }
+
+    /**
+     * Compare against a digest that was calculated while downloading
+     */
+    public static boolean checkMD5(String md5, String calculatedDigest) {
+        if (TextUtils.isEmpty(md5)) {
+            Log.e(TAG, "MD5 string empty");
+            return false;
+        }
+
         if (calculatedDigest == null) {
             Log.e(TAG, "calculatedDigest null");
             return false;
@@ -39,46 +45,35 @@ public class MD5 {
         Log.v(TAG, "Calculated digest: " + calculatedDigest);
         Log.v(TAG, "Provided digest: " + md5);
 
-        return md5.startsWith(calculatedDigest);
+        return md5.trim().equalsIgnoreCase(calculatedDigest);
     }
 
     public static String calculateMD5(File updateFile) {
-        MessageDigest digest;
-        try {
-            digest = MessageDigest.getInstance("MD5");
-        } catch (NoSuchAlgorithmException e) {
-            Log.e(TAG, "Exception while getting digest", e);
-            return null;
-        }
+        return calculateMD5(updateFile, Utils.getHashWindowSize());
+    }
 
-        InputStream is;
-        try {
-            is = new FileInputStream(updateFile);
-        } catch (FileNotFoundException e) {
-            Log.e(TAG, "Exception while getting FileInputStream", e);
-            return null;
-        }
+    /**
+     * Hash the file through memory mapped windows of the given size
+     */
+    public static String calculateMD5(File updateFile, int windowSize) {
+        String[] digests = Verifier.calculate(updateFile,
+                new String[] { Verifier.ALGORITHM_MD5 }, windowSize);
+        return digests != null ? digests[0] : null;
+    }
+
+    public static String toHex(byte[] digest) {
+        char[] out = new char[digest.length * 2];
+        toHex(digest, out);
+        return new String(out);
+    }
 
-        byte[] buffer = new byte[8192];
-        int read;
-        try {
-            while ((read = is.read(buffer)) > 0) {
-                digest.update(buffer, 0, read);
-            }
-            byte[] md5sum = digest.digest();
-            BigInteger bigInt = new BigInteger(1, md5sum);
-            String output = bigInt.toString(16);
-            // Fill to 32 chars
-            output = String.format("%32s", output).replace(' ', '0');
-            return output;
-        } catch (IOException e) {
-            throw new RuntimeException("Unable to process file for MD5", e);
-        } finally {
-            try {
-                is.close();
-            } catch (IOException e) {
-                Log.e(TAG, "Exception on closing MD5 input stream", e);
-            }
+    /**
+     * Encode into a caller provided buffer of at least twice the digest length
+     */
+    public static void toHex(byte[] digest, char[] out) {
+        for (int i = 0; i < digest.length; i++) {
+            out[2 * i] = HEX_DIGITS[(digest[i] >> 4) & 0xf];
+            out[2 * i + 1] = HEX_DIGITS[digest[i] & 0xf];
         }
     }
 }
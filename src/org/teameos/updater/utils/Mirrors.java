@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2015 The TeamEos Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package org.teameos.updater.utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.text.TextUtils;
+import android.util.Log;
+
+import org.teameos.updater.misc.Constants;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Picks the server the update check and the downloads go to. Besides the
+ * update server the build may name mirrors in ro.eos.updater.mirrors, and the
+ * server may announce more in its file list response. A file has the same path
+ * below every mirror, so a URL below one mirror can be moved to any other.
+ *
+ * Mirrors are ranked by the time they are expected to take for REFERENCE_SIZE
+ * bytes, from moving averages of their round trip time and throughput that
+ * are kept across checks. A failure counts as a round trip of FAILURE_RTT, so
+ * a mirror that fails drops in the ranking. Averages older than PROBE_INTERVAL
+ * are probed again and the new sample replaces them, so a mirror that was
+ * passed over since it failed gets back its place once it answers again.
+ */
+public class Mirrors {
+    private static final String TAG = "Mirrors";
+
+    private static final String PREFS_NAME = "mirrors";
+    private static final String RTT_SUFFIX = "|rtt";
+    private static final String THROUGHPUT_SUFFIX = "|bps";
+    // When the average at a key last got a sample, in wall clock time
+    static final String TIME_SUFFIX = "|time";
+
+    // Weight of the newest sample in the moving averages
+    private static final float ALPHA = 0.3f;
+    private static final float FAILURE_RTT = Http.CONNECT_TIMEOUT;
+    // What is assumed of mirrors that were never measured, in ms and bytes per second
+    private static final float DEFAULT_RTT = 1000f;
+    private static final float DEFAULT_THROUGHPUT = 256 * 1024f;
+    private static final long REFERENCE_SIZE = 1024 * 1024;
+    // Transfers smaller than this tell more about the latency than the throughput
+    private static final long MIN_THROUGHPUT_SAMPLE = 64 * 1024;
+
+    static final long PROBE_INTERVAL = 24 * 60 * 60 * 1000;
+    private static final int PROBE_TIMEOUT = 3000;
+    private static final int PARALLEL_PROBES = 3;
+
+    private Mirrors() {
+        // this class is not supposed to be instantiated
+    }
+
+    /**
+     * All known mirrors, the one expected to be fastest first
+     */
+    public static List<String> getRanked(Context context, BuildEnvironment env) {
+        List<String> mirrors = getAll(context, env);
+        SharedPreferences stats = getStats(context);
+        final Map<String, Float> costs = new HashMap<String, Float>();
+        for (String mirror : mirrors) {
+            costs.put(mirror, getCost(stats, mirror));
+        }
+        // Stable, so the configured order decides between equal mirrors
+        Collections.sort(mirrors, new Comparator<String>() {
+            @Override
+            public int compare(String lhs, String rhs) {
+                return Float.compare(costs.get(lhs), costs.get(rhs));
+            }
+        });
+        return mirrors;
+    }
+
+    /**
+     * The URL moved to every known mirror, best first. A URL that is below
+     * none of them is its only candidate.
+     */
+    public static List<String> getCandidates(Context context, BuildEnvironment env, String url) {
+        List<String> mirrors = getRanked(context, env);
+        String base = findBase(mirrors, url);
+        if (base == null) {
+            return Collections.singletonList(url);
+        }
+        String path = url.substring(base.length());
+        List<String> candidates = new ArrayList<String>(mirrors.size());
+        for (String mirror : mirrors) {
+            candidates.add(mirror + path);
+        }
+        return candidates;
+    }
+
+    /**
+     * The mirror a URL is below, null if it is below none
+     */
+    public static String getMirror(Context context, BuildEnvironment env, String url) {
+        return findBase(getAll(context, env), url);
+    }
+
+    /**
+     * Remember the mirrors the server announced, replacing earlier ones
+     */
+    public static void setAnnounced(Context context, List<String> urls) {
+        Set<String> mirrors = new LinkedHashSet<String>();
+        for (String url : urls) {
+            if (url.startsWith("http://") || url.startsWith("https://")) {
+                mirrors.add(normalize(url));
+            }
+        }
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .putString(Constants.ANNOUNCED_MIRRORS, TextUtils.join(" ", mirrors))
+                .apply();
+    }
+
+    /**
+     * Account for a mirror that answered after rtt milliseconds
+     */
+    public static void recordResponse(Context context, String mirror, long rtt) {
+        update(context, mirror + RTT_SUFFIX, rtt);
+    }
+
+    /**
+     * Account for bytes a mirror delivered in the given time
+     */
+    public static void recordTransfer(Context context, String mirror, long bytes, long millis) {
+        if (bytes >= MIN_THROUGHPUT_SAMPLE && millis > 0) {
+            update(context, mirror + THROUGHPUT_SUFFIX, bytes * 1000f / millis);
+        }
+    }
+
+    /**
+     * Account for a mirror that timed out or answered with an error
+     */
+    public static void recordFailure(Context context, String mirror) {
+        Log.i(TAG, "Mirror " + mirror + " failed");
+        update(context, mirror + RTT_SUFFIX, FAILURE_RTT);
+    }
+
+    /**
+     * Measure the round trip time of the mirrors nothing recent is known
+     * about, so they can be ranked. Blocks until done, call it off the main
+     * thread.
+     */
+    public static void probe(final Context context, BuildEnvironment env,
+            final String userAgent) {
+        SharedPreferences stats = getStats(context);
+        List<Callable<Void>> probes = new ArrayList<Callable<Void>>();
+        for (final String mirror : getAll(context, env)) {
+            if (!isStale(stats, mirror + RTT_SUFFIX)) {
+                continue;
+            }
+            probes.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    probe(context, mirror, userAgent);
+                    return null;
+                }
+            });
+        }
+        if (probes.isEmpty()) {
+            return;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(
+                Math.min(PARALLEL_PROBES, probes.size()));
+        try {
+            pool.invokeAll(probes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static void probe(Context context, String mirror, String userAgent) {
+        Http.Response response = null;
+        long start = SystemClock.elapsedRealtime();
+        try {
+            response = new Http.Call(mirror)
+                    .method("HEAD")
+                    .header("User-Agent", userAgent)
+                    .timeouts(PROBE_TIMEOUT, PROBE_TIMEOUT)
+                    .execute();
+            if (response.getCode() >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+                recordFailure(context, mirror);
+            } else {
+                recordResponse(context, mirror, SystemClock.elapsedRealtime() - start);
+            }
+        } catch (IOException e) {
+            recordFailure(context, mirror);
+        } finally {
+            if (response != null) {
+                response.close();
+            }
+        }
+    }
+
+    private static List<String> getAll(Context context, BuildEnvironment env) {
+        Set<String> mirrors = new LinkedHashSet<String>();
+        mirrors.add(normalize(env.getBaseServerUrl()));
+        for (String url : env.getMirrorUrls()) {
+            mirrors.add(normalize(url));
+        }
+        String announced = PreferenceManager.getDefaultSharedPreferences(context)
+                .getString(Constants.ANNOUNCED_MIRRORS, "");
+        for (String url : announced.split(" ")) {
+            if (!url.isEmpty()) {
+                mirrors.add(url);
+            }
+        }
+        return new ArrayList<String>(mirrors);
+    }
+
+    private static String findBase(List<String> mirrors, String url) {
+        String base = null;
+        for (String mirror : mirrors) {
+            if (url.startsWith(mirror) && (base == null || mirror.length() > base.length())) {
+                base = mirror;
+            }
+        }
+        return base;
+    }
+
+    private static String normalize(String url) {
+        return url.endsWith("/") ? url : url + "/";
+    }
+
+    private static float getCost(SharedPreferences stats, String mirror) {
+        float rtt = stats.getFloat(mirror + RTT_SUFFIX, DEFAULT_RTT);
+        float throughput = stats.getFloat(mirror + THROUGHPUT_SUFFIX, DEFAULT_THROUGHPUT);
+        return rtt + REFERENCE_SIZE * 1000f / throughput;
+    }
+
+    /**
+     * Move the average stored at key towards the sample. The first sample sets
+     * it, and so does one that follows a stale average.
+     */
+    private static synchronized void update(Context context, String key, float sample) {
+        SharedPreferences stats = getStats(context);
+        float average = sample;
+        if (!isStale(stats, key)) {
+            average = stats.getFloat(key, sample);
+            average += ALPHA * (sample - average);
+        }
+        stats.edit()
+                .putFloat(key, average)
+                .putLong(key + TIME_SUFFIX, System.currentTimeMillis())
+                .apply();
+    }
+
+    private static boolean isStale(SharedPreferences stats, String key) {
+        if (!stats.contains(key)) {
+            return true;
+        }
+        long age = System.currentTimeMillis() - stats.getLong(key + TIME_SUFFIX, 0);
+        return age < 0 || age > PROBE_INTERVAL;
+    }
+
+    static SharedPreferences getStats(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
@@ -0,0 +1,886 @@
+/*
+ * Copyright (C) 2015 The TeamEos Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package org.teameos.updater.utils;
+
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downloads a file over HTTP into a .partial file, resuming interrupted
+ * transfers with Range requests. The confirmed byte offsets are synced to disk
+ * and recorded in a small checkpoint file next to the partial file, so a
+ * transfer can also be picked up again after the process died.
+ *
+ * If the server advertises byte ranges and the file is large enough, it is
+ * split into segments that are fetched over parallel connections straight into
+ * a preallocated partial file.
+ *
+ * The MD5 of the file is computed while it is written and kept in the
+ * checkpoint, so it is known as soon as the transfer completes. Segments past
+ * the hashed prefix are read back on a separate thread until the prefix
+ * catches up with their writer, which then feeds it directly. Neither that
+ * read nor syncing the file holds up the writers.
+ *
+ * The file may be given as several URLs, the same file on different mirrors.
+ * When one of them fails for good the transfer moves on to the next, keeping
+ * what was downloaded. The validators If-Range sends are only meaningful to the
+ * server that issued them, so on another mirror the transfer only continues
+ * on a file of the same size and the MD5 check decides in the end.
+ */
+public class RangeDownloader {
+    private static final String TAG = "RangeDownloader";
+
+    public static final int RESULT_SUCCESS = 0;
+    public static final int RESULT_FAILED = 1;
+    public static final int RESULT_CANCELLED = 2;
+    // the server stopped honoring ranges, segments have to be given up
+    private static final int RESULT_RANGES_IGNORED = 3;
+
+    private static final String CHECKPOINT_SUFFIX = ".resume";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long CHECKPOINT_INTERVAL = 4 * 1024 * 1024;
+
+    // Give up after this many attempts in a row that made no progress
+    private static final int MAX_RETRIES = 6;
+    // ... or after this many if there is another mirror to fail over to
+    private static final int MIRROR_RETRIES = 2;
+    private static final long RETRY_BASE_DELAY = 1000;
+    private static final long RETRY_MAX_DELAY = 60000;
+
+    public interface ProgressListener {
+        void onProgress(long downloaded, long total);
+    }
+
+    private final List<String> mUrls;
+    private final List<String> mFailedUrls = new ArrayList<String>();
+    // The URL the transfer currently uses
+    private volatile String mUrl;
+    private volatile int mUrlIndex = 0;
+    private final File mDestination;
+    private final File mCheckpointFile;
+    private final String mUserAgent;
+    private final int mMaxConnections;
+    private final long mMinSegmentSize;
+
+    private volatile boolean mCancelled = false;
+    // set when one segment failed for good and the others should stop
+    private volatile boolean mAborted = false;
+    private final Set<Http.Call> mCalls = new HashSet<Http.Call>();
+
+    private Checkpoint mCheckpoint;
+    private FileChannel mChannel;
+    private ProgressListener mListener;
+    private volatile long mLastCheckpoint;
+    // Serializes checkpoint saves, which must not block the writers
+    private final Object mSaveLock = new Object();
+    // Reads back what was written ahead of the hashed prefix
+    private ExecutorService mHasher;
+    private boolean mHashing = false;
+    private final byte[] mHashBuffer = new byte[BUFFER_SIZE];
+    private String mMD5;
+    private long mTransferred = 0;
+
+    public RangeDownloader(String url, File destination, String userAgent) {
+        this(url, destination, userAgent, 1, 0);
+    }
+
+    /**
+     * @param maxConnections upper bound of parallel segment connections
+     * @param minSegmentSize segments are never smaller than this
+     */
+    public RangeDownloader(String url, File destination, String userAgent,
+            int maxConnections, long minSegmentSize) {
+        this(Collections.singletonList(url), destination, userAgent, maxConnections,
+                minSegmentSize);
+    }
+
+    /**
+     * @param urls the file on every mirror that has it, in the order to try them
+     */
+    public RangeDownloader(List<String> urls, File destination, String userAgent,
+            int maxConnections, long minSegmentSize) {
+        mUrls = new ArrayList<String>(urls);
+        mUrl = mUrls.get(0);
+        mDestination = destination;
+        mCheckpointFile = getCheckpointFile(destination);
+        mUserAgent = userAgent;
+        mMaxConnections = Math.max(1, maxConnections);
+        mMinSegmentSize = Math.max(BUFFER_SIZE, minSegmentSize);
+    }
+
+    public static File getCheckpointFile(File destination) {
+        return new File(destination.getPath() + CHECKPOINT_SUFFIX);
+    }
+
+    /**
+     * Remove a partial download together with its checkpoint
+     */
+    public static void discard(File destination) {
+        destination.delete();
+        getCheckpointFile(destination).delete();
+    }
+
+    /**
+     * Run the transfer on the calling thread until it completes, fails for good
+     * or is cancelled. Interrupted transfers are retried with exponential backoff.
+     */
+    public int download(ProgressListener listener) {
+        mListener = listener;
+
+        Checkpoint cp = Checkpoint.load(mCheckpointFile);
+        if (cp == null || !mUrls.contains(cp.url) || !cp.matches(mDestination.length())) {
+            cp = plan();
+        } else {
+            Log.i(TAG, "Resuming " + mDestination.getName() + " at " + cp.getDownloaded()
+                    + " in " + cp.segments.size() + " segment(s)");
+            cp = moveTo(cp);
+        }
+
+        RandomAccessFile file = null;
+        int result;
+        try {
+            file = new RandomAccessFile(mDestination, "rw");
+            if (cp.segments.size() > 1 && file.length() != cp.total) {
+                file.setLength(cp.total);
+            }
+            mChannel = file.getChannel();
+            mHasher = Executors.newSingleThreadExecutor();
+
+            mCheckpoint = cp;
+            result = runWithFallback();
+            while (result == RESULT_FAILED && mUrlIndex < mUrls.size() - 1) {
+                mFailedUrls.add(mUrl);
+                mUrl = mUrls.get(++mUrlIndex);
+                Log.i(TAG, "Failing over to " + mUrl);
+                mAborted = false;
+                mCheckpoint = moveTo(mCheckpoint);
+                result = runWithFallback();
+            }
+            if (result == RESULT_FAILED) {
+                mFailedUrls.add(mUrl);
+            }
+            stopHasher();
+            if (result == RESULT_SUCCESS) {
+                // Hash whatever the hasher did not get to, nothing writes any more
+                synchronized (this) {
+                    catchUp(mCheckpoint.md5, mChannel.size());
+                    mMD5 = MD5.toHex(mCheckpoint.md5.digest());
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open " + mDestination, e);
+            result = RESULT_FAILED;
+        } finally {
+            stopHasher();
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    // ignored
+                }
+            }
+        }
+
+        if (result == RESULT_SUCCESS) {
+            mCheckpointFile.delete();
+        }
+        return result;
+    }
+
+    /**
+     * The URL the transfer went to last, the one that worked if it succeeded
+     */
+    public String getUrl() {
+        return mUrl;
+    }
+
+    /**
+     * The URLs that were given up on
+     */
+    public List<String> getFailedUrls() {
+        return mFailedUrls;
+    }
+
+    /**
+     * Bytes written to the file by this transfer, not counting resumed ones
+     */
+    public synchronized long getTransferredBytes() {
+        return mTransferred;
+    }
+
+    /**
+     * MD5 of the downloaded file as lowercase hex, null unless the download succeeded
+     */
+    public String getMD5() {
+        return mMD5;
+    }
+
+    /**
+     * Abort the transfer, may be called from any thread
+     */
+    public void cancel() {
+        mCancelled = true;
+        disconnectAll();
+    }
+
+    private boolean isStopped() {
+        return mCancelled || mAborted;
+    }
+
+    private void disconnectAll() {
+        synchronized (mCalls) {
+            for (Http.Call call : mCalls) {
+                call.cancel();
+            }
+        }
+    }
+
+    /**
+     * Ask the server about the file and lay out the segments. Anything that
+     * goes wrong here just means a single connection download.
+     */
+    private Checkpoint plan() {
+        Checkpoint cp = new Checkpoint(mUrl);
+        if (mMaxConnections < 2) {
+            return cp;
+        }
+
+        Http.Response response = null;
+        try {
+            response = newCall().method("HEAD").execute();
+            if (response.getCode() != HttpURLConnection.HTTP_OK) {
+                return cp;
+            }
+            String acceptRanges = response.getHeader("Accept-Ranges");
+            long total = parseLong(response.getHeader("Content-Length"));
+            if (acceptRanges == null || !acceptRanges.contains("bytes")
+                    || total < 2 * mMinSegmentSize) {
+                return cp;
+            }
+
+            int count = (int) Math.min(mMaxConnections, total / mMinSegmentSize);
+            long size = total / count;
+            cp.total = total;
+            cp.validator = getValidator(response);
+            cp.segments.clear();
+            for (int i = 0; i < count; i++) {
+                long start = i * size;
+                long end = i == count - 1 ? total : start + size;
+                cp.segments.add(new Segment(start, end, start));
+            }
+            Log.i(TAG, "Downloading " + total + " bytes in " + count + " segments");
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to probe " + mUrl, e);
+        } finally {
+            if (response != null) {
+                response.close();
+            }
+        }
+        return cp;
+    }
+
+    /**
+     * Continue the checkpoint on mUrl. A single stream drops the validator and
+     * checks the size in the responses. Segments need the new mirror to serve
+     * a file of the same size, or they are given up for a single stream that
+     * starts over.
+     */
+    private Checkpoint moveTo(Checkpoint cp) {
+        if (mUrl.equals(cp.url)) {
+            return cp;
+        }
+        cp.url = mUrl;
+        cp.validator = null;
+        if (cp.segments.size() == 1) {
+            return cp;
+        }
+
+        Http.Response response = null;
+        try {
+            response = newCall().method("HEAD").execute();
+            if (response.getCode() == HttpURLConnection.HTTP_OK
+                    && parseLong(response.getHeader("Content-Length")) == cp.total) {
+                cp.validator = getValidator(response);
+                return cp;
+            }
+            Log.i(TAG, mUrl + " serves a different file, starting over");
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to probe " + mUrl, e);
+        } finally {
+            if (response != null) {
+                response.close();
+            }
+        }
+        return new Checkpoint(mUrl);
+    }
+
+    /**
+     * Run the current checkpoint, falling back to one connection if the server
+     * turns out to ignore ranges
+     */
+    private int runWithFallback() {
+        int result = run(mCheckpoint);
+        if (result == RESULT_RANGES_IGNORED) {
+            Log.i(TAG, "Server ignored the range request, falling back to one connection");
+            mAborted = false;
+            mCheckpoint = new Checkpoint(mUrl);
+            result = run(mCheckpoint);
+        }
+        return result;
+    }
+
+    private int run(final Checkpoint cp) {
+        mLastCheckpoint = cp.getDownloaded();
+        if (cp.segments.size() == 1) {
+            return runSegment(cp, cp.segments.get(0));
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(cp.segments.size());
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        for (final Segment seg : cp.segments) {
+            results.add(pool.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    int result = runSegment(cp, seg);
+                    if (result != RESULT_SUCCESS && !isStopped()) {
+                        // No point in going on with the other segments
+                        mAborted = true;
+                        disconnectAll();
+                    }
+                    return result;
+                }
+            }));
+        }
+        pool.shutdown();
+
+        int result = RESULT_SUCCESS;
+        for (Future<Integer> future : results) {
+            int segmentResult;
+            try {
+                segmentResult = future.get();
+            } catch (InterruptedException e) {
+                cancel();
+                segmentResult = RESULT_CANCELLED;
+            } catch (ExecutionException e) {
+                Log.e(TAG, "Segment download crashed", e);
+                segmentResult = RESULT_FAILED;
+            }
+            if (segmentResult == RESULT_RANGES_IGNORED
+                    || (segmentResult == RESULT_FAILED && result != RESULT_RANGES_IGNORED)) {
+                result = segmentResult;
+            }
+        }
+        if (mCancelled) {
+            return RESULT_CANCELLED;
+        }
+        return result;
+    }
+
+    private int runSegment(Checkpoint cp, Segment seg) {
+        int failures = 0;
+        while (!isStopped()) {
+            long before = seg.offset;
+            try {
+                if (transfer(cp, seg)) {
+                    return RESULT_SUCCESS;
+                }
+            } catch (RangesIgnoredException e) {
+                return RESULT_RANGES_IGNORED;
+            } catch (IOException e) {
+                Log.w(TAG, "Transfer interrupted at " + seg.offset, e);
+            }
+
+            if (isStopped()) {
+                break;
+            }
+            if (seg.offset > before) {
+                failures = 0;
+            }
+            int maxRetries = mUrlIndex < mUrls.size() - 1 ? MIRROR_RETRIES : MAX_RETRIES;
+            if (++failures > maxRetries) {
+                Log.e(TAG, "Giving up on " + mUrl + " after " + maxRetries + " retries");
+                return RESULT_FAILED;
+            }
+
+            long delay = Math.min(RETRY_BASE_DELAY << (failures - 1), RETRY_MAX_DELAY);
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        return RESULT_CANCELLED;
+    }
+
+    private Http.Call newCall() {
+        // Byte ranges refer to the stored representation, never let it be encoded
+        return new Http.Call(mUrl)
+                .header("User-Agent", mUserAgent)
+                .header("Accept-Encoding", "identity");
+    }
+
+    private boolean transfer(Checkpoint cp, Segment seg) throws IOException {
+        final boolean segmented = cp.segments.size() > 1;
+        if (seg.end >= 0 && seg.offset >= seg.end) {
+            return true;
+        }
+
+        Http.Call call = newCall();
+        if (segmented || seg.offset > 0) {
+            call.header("Range", "bytes=" + seg.offset + "-"
+                    + (seg.end >= 0 ? String.valueOf(seg.end - 1) : ""));
+            call.header("If-Range", cp.validator);
+        }
+        synchronized (mCalls) {
+            if (isStopped()) {
+                return false;
+            }
+            mCalls.add(call);
+        }
+        Http.Response response = null;
+        boolean wrote = false;
+        try {
+            response = call.execute();
+            int code = response.getCode();
+            if (code == 416 && !segmented) {
+                if (cp.total > 0 && seg.offset >= cp.total) {
+                    // We already have everything
+                    return true;
+                }
+                // The remote file no longer matches what we have, start over
+                resetSingle(cp);
+                throw new IOException("Requested range not satisfiable");
+            }
+
+            if (code == HttpURLConnection.HTTP_PARTIAL) {
+                long[] range = parseContentRange(response.getHeader("Content-Range"));
+                if (range == null || range[0] != seg.offset
+                        || (segmented && range[1] != cp.total)) {
+                    throw new IOException("Unexpected Content-Range "
+                            + response.getHeader("Content-Range"));
+                }
+                if (!segmented) {
+                    if (cp.total > 0 && range[1] > 0 && range[1] != cp.total) {
+                        // Not the file we have a part of, which a validator can't tell
+                        // after a mirror switch
+                        resetSingle(cp);
+                        throw new IOException("Remote file size changed to " + range[1]);
+                    }
+                    cp.total = range[1];
+                }
+            } else if (code == HttpURLConnection.HTTP_OK) {
+                if (segmented) {
+                    throw new RangesIgnoredException();
+                }
+                if (seg.offset > 0) {
+                    Log.i(TAG, "Server ignored the range request, restarting");
+                }
+                resetSingle(cp);
+                cp.total = parseLong(response.getHeader("Content-Length"));
+            } else {
+                throw new IOException("Unexpected HTTP status " + code);
+            }
+
+            if (!segmented) {
+                seg.end = cp.total;
+                cp.validator = getValidator(response);
+                // Anything past the last checkpoint has not been confirmed, drop it
+                mChannel.truncate(seg.offset);
+            }
+            wrote = true;
+
+            InputStream in = response.getBody();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+            try {
+                while (!isStopped()) {
+                    int max = BUFFER_SIZE;
+                    if (seg.end >= 0) {
+                        max = (int) Math.min(max, seg.end - seg.offset);
+                        if (max == 0) {
+                            break;
+                        }
+                    }
+                    int read = in.read(buffer, 0, max);
+                    if (read < 0) {
+                        break;
+                    }
+                    wrapped.clear();
+                    wrapped.limit(read);
+                    long position = seg.offset;
+                    while (wrapped.hasRemaining()) {
+                        position += mChannel.write(wrapped, position);
+                    }
+                    onBytesWritten(seg, buffer, read);
+                }
+            } finally {
+                in.close();
+            }
+
+            if (isStopped()) {
+                return false;
+            }
+            if (seg.end >= 0 && seg.offset != seg.end) {
+                throw new IOException("Connection closed at " + seg.offset + " of " + seg.end);
+            }
+            return true;
+        } finally {
+            synchronized (mCalls) {
+                mCalls.remove(call);
+            }
+            if (response != null) {
+                response.close();
+            }
+            if (wrote) {
+                try {
+                    // Everything counted in the offsets has been written, make it durable
+                    saveCheckpoint();
+                } catch (IOException e) {
+                    Log.w(TAG, "Unable to store checkpoint", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Start the single stream over, together with its hash
+     */
+    private synchronized void resetSingle(Checkpoint cp) {
+        cp.segments.get(0).offset = 0;
+        cp.validator = null;
+        cp.md5 = new ResumableMD5();
+    }
+
+    /**
+     * Account for bytes that were just written at the segment offset. The hash
+     * and the offsets only change together under the lock, so a checkpoint
+     * never records a hash that runs ahead of the confirmed data.
+     */
+    private void onBytesWritten(Segment seg, byte[] buffer, int len) throws IOException {
+        long downloaded;
+        long total;
+        synchronized (this) {
+            ResumableMD5 md5 = mCheckpoint.md5;
+            if (md5.getCount() == seg.offset) {
+                md5.update(buffer, 0, len);
+            }
+            seg.offset += len;
+            mTransferred += len;
+            if (!mHashing && getHashLimit() > md5.getCount()) {
+                // The hash reached data written earlier, read that back
+                mHashing = true;
+                mHasher.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        hashAhead();
+                    }
+                });
+            }
+
+            downloaded = mCheckpoint.getDownloaded();
+            total = mCheckpoint.total;
+            if (mListener != null) {
+                mListener.onProgress(downloaded, total);
+            }
+        }
+        if (downloaded - mLastCheckpoint >= CHECKPOINT_INTERVAL) {
+            saveCheckpoint();
+        }
+    }
+
+    /**
+     * End of the written data that directly follows the hashed prefix
+     */
+    private long getHashLimit() {
+        long count = mCheckpoint.md5.getCount();
+        for (Segment seg : mCheckpoint.segments) {
+            if (seg.start <= count && count < seg.offset) {
+                return seg.offset;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Move the hashed prefix over data that was written ahead of it, until it
+     * meets a writer. The file is read outside the lock.
+     */
+    private void hashAhead() {
+        ByteBuffer wrapped = ByteBuffer.wrap(mHashBuffer);
+        try {
+            while (!mCancelled) {
+                ResumableMD5 md5;
+                long count;
+                synchronized (this) {
+                    md5 = mCheckpoint.md5;
+                    count = md5.getCount();
+                    long limit = getHashLimit();
+                    if (limit <= count) {
+                        break;
+                    }
+                    wrapped.clear();
+                    wrapped.limit((int) Math.min(BUFFER_SIZE, limit - count));
+                }
+                int read = mChannel.read(wrapped, count);
+                if (read <= 0) {
+                    throw new IOException("Unexpected end of " + mDestination);
+                }
+                synchronized (this) {
+                    // A restarted stream may have replaced the hash meanwhile
+                    if (md5 == mCheckpoint.md5 && md5.getCount() == count) {
+                        md5.update(mHashBuffer, 0, read);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read back " + mDestination, e);
+        }
+        synchronized (this) {
+            mHashing = false;
+        }
+    }
+
+    /**
+     * Wait for the hasher to be done, it must not touch the file after this
+     */
+    private void stopHasher() {
+        if (mHasher == null) {
+            return;
+        }
+        mHasher.shutdown();
+        try {
+            while (!mHasher.awaitTermination(1, TimeUnit.SECONDS)) {
+                // keep waiting, a read in progress always ends
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Hash the file from the end of the hashed prefix up to the given position
+     */
+    private void catchUp(ResumableMD5 md5, long position) throws IOException {
+        ByteBuffer wrapped = ByteBuffer.wrap(mHashBuffer);
+        while (md5.getCount() < position) {
+            wrapped.clear();
+            wrapped.limit((int) Math.min(BUFFER_SIZE, position - md5.getCount()));
+            int read = mChannel.read(wrapped, md5.getCount());
+            if (read <= 0) {
+                throw new IOException("Unexpected end of " + mDestination);
+            }
+            md5.update(mHashBuffer, 0, read);
+        }
+    }
+
+    private void saveCheckpoint() throws IOException {
+        synchronized (mSaveLock) {
+            // Snapshot before syncing, so we never record bytes that are not on disk yet
+            Checkpoint snapshot;
+            synchronized (this) {
+                snapshot = mCheckpoint.copy();
+            }
+            mChannel.force(false);
+            snapshot.save(mCheckpointFile);
+            mLastCheckpoint = snapshot.getDownloaded();
+        }
+    }
+
+    /**
+     * Prefer a strong ETag, If-Range does not allow weak ones
+     */
+    private static String getValidator(Http.Response response) {
+        String etag = response.getHeader("ETag");
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return response.getHeader("Last-Modified");
+    }
+
+    /**
+     * Parse "bytes first-last/total" into { first, total }, total is -1 if unknown
+     */
+    static long[] parseContentRange(String value) {
+        if (value == null || !value.startsWith("bytes ")) {
+            return null;
+        }
+        int dash = value.indexOf('-');
+        int slash = value.indexOf('/');
+        if (dash < 0 || slash < dash) {
+            return null;
+        }
+        try {
+            long first = Long.parseLong(value.substring(6, dash).trim());
+            String total = value.substring(slash + 1).trim();
+            return new long[] { first, "*".equals(total) ? -1 : Long.parseLong(total) };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static long parseLong(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static final class RangesIgnoredException extends IOException {
+    }
+
+    private static final class Segment {
+        final long start;
+        // exclusive, -1 while the size is unknown
+        volatile long end;
+        volatile long offset;
+
+        Segment(long start, long end, long offset) {
+            this.start = start;
+            this.end = end;
+            this.offset = offset;
+        }
+    }
+
+    private static final class Checkpoint {
+        private static final int VERSION = 3;
+
+        String url;
+        volatile String validator;
+        volatile long total = -1;
+        final List<Segment> segments = new ArrayList<Segment>();
+        // covers a prefix of the file that is always within the confirmed data
+        ResumableMD5 md5 = new ResumableMD5();
+
+        Checkpoint(String url) {
+            this.url = url;
+            segments.add(new Segment(0, -1, 0));
+        }
+
+        long getDownloaded() {
+            long downloaded = 0;
+            for (Segment seg : segments) {
+                downloaded += seg.offset - seg.start;
+            }
+            return downloaded;
+        }
+
+        /**
+         * Check the checkpoint against the partial file on disk
+         */
+        boolean matches(long fileLength) {
+            if (segments.size() == 1) {
+                return segments.get(0).offset <= fileLength;
+            }
+            return total > 0 && fileLength == total;
+        }
+
+        Checkpoint copy() {
+            Checkpoint cp = new Checkpoint(url);
+            cp.validator = validator;
+            cp.total = total;
+            cp.segments.clear();
+            for (Segment seg : segments) {
+                cp.segments.add(new Segment(seg.start, seg.end, seg.offset));
+            }
+            cp.md5 = md5.copy();
+            return cp;
+        }
+
+        static Checkpoint load(File file) {
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new FileInputStream(file));
+                if (in.readInt() != VERSION) {
+                    return null;
+                }
+                Checkpoint cp = new Checkpoint(in.readUTF());
+                cp.validator = in.readBoolean() ? in.readUTF() : null;
+                cp.total = in.readLong();
+                cp.segments.clear();
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    cp.segments.add(new Segment(in.readLong(), in.readLong(), in.readLong()));
+                }
+                cp.md5 = new ResumableMD5(in);
+                return cp.segments.isEmpty() ? null : cp;
+            } catch (FileNotFoundException e) {
+                return null;
+            } catch (IOException e) {
+                Log.w(TAG, "Ignoring unreadable checkpoint " + file, e);
+                return null;
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        // ignored
+                    }
+                }
+            }
+        }
+
+        void save(File file) throws IOException {
+            File tmp = new File(file.getPath() + ".tmp");
+            FileOutputStream fos = new FileOutputStream(tmp);
+            try {
+                DataOutputStream out = new DataOutputStream(fos);
+                out.writeInt(VERSION);
+                out.writeUTF(url);
+                out.writeBoolean(validator != null);
+                if (validator != null) {
+                    out.writeUTF(validator);
+                }
+                out.writeLong(total);
+                out.writeInt(segments.size());
+                for (Segment seg : segments) {
+                    out.writeLong(seg.start);
+                    out.writeLong(seg.end);
+                    out.writeLong(seg.offset);
+                }
+                md5.writeState(out);
+                out.flush();
+                fos.getFD().sync();
+            } finally {
+                fos.close();
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Unable to replace " + file);
+            }
+        }
+    }
+}
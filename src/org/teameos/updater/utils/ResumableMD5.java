@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2015 The TeamEos Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package org.teameos.updater.utils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * MD5 (RFC 1321) whose intermediate state can be written out and restored.
+ * MessageDigest can't be persisted, but a download checkpoint has to carry the
+ * hash of everything confirmed so far to hash the file while it arrives.
+ */
+public class ResumableMD5 {
+    private static final int[] S = {
+            7, 12, 17, 22, 5, 9, 14, 20, 4, 11, 16, 23, 6, 10, 15, 21
+    };
+
+    private static final int[] K = new int[64];
+
+    static {
+        for (int i = 0; i < 64; i++) {
+            K[i] = (int) (long) ((1L << 32) * Math.abs(Math.sin(i + 1)));
+        }
+    }
+
+    private int mA = 0x67452301;
+    private int mB = 0xefcdab89;
+    private int mC = 0x98badcfe;
+    private int mD = 0x10325476;
+    private long mCount = 0;
+    private final byte[] mBlock = new byte[64];
+    private final int[] mWords = new int[16];
+
+    public ResumableMD5() {
+    }
+
+    /**
+     * Restore a state written by writeState()
+     */
+    public ResumableMD5(DataInput in) throws IOException {
+        mA = in.readInt();
+        mB = in.readInt();
+        mC = in.readInt();
+        mD = in.readInt();
+        mCount = in.readLong();
+        if (mCount < 0) {
+            throw new IOException("Bad MD5 state");
+        }
+        in.readFully(mBlock, 0, (int) (mCount & 63));
+    }
+
+    public void writeState(DataOutput out) throws IOException {
+        out.writeInt(mA);
+        out.writeInt(mB);
+        out.writeInt(mC);
+        out.writeInt(mD);
+        out.writeLong(mCount);
+        out.write(mBlock, 0, (int) (mCount & 63));
+    }
+
+    /**
+     * Number of bytes hashed so far
+     */
+    public long getCount() {
+        return mCount;
+    }
+
+    public ResumableMD5 copy() {
+        ResumableMD5 md5 = new ResumableMD5();
+        md5.mA = mA;
+        md5.mB = mB;
+        md5.mC = mC;
+        md5.mD = mD;
+        md5.mCount = mCount;
+        System.arraycopy(mBlock, 0, md5.mBlock, 0, 64);
+        return md5;
+    }
+
+    public void update(byte[] input, int offset, int len) {
+        int used = (int) (mCount & 63);
+        mCount += len;
+
+        if (used > 0) {
+            int n = Math.min(64 - used, len);
+            System.arraycopy(input, offset, mBlock, used, n);
+            offset += n;
+            len -= n;
+            if (used + n < 64) {
+                return;
+            }
+            transform(mBlock, 0);
+        }
+        while (len >= 64) {
+            transform(input, offset);
+            offset += 64;
+            len -= 64;
+        }
+        System.arraycopy(input, offset, mBlock, 0, len);
+    }
+
+    /**
+     * Finish a copy of the state, so hashing may go on afterwards
+     */
+    public byte[] digest() {
+        ResumableMD5 md5 = copy();
+        long bits = mCount << 3;
+        byte[] padding = new byte[(int) (((mCount & 63) < 56 ? 56 : 120) - (mCount & 63))];
+        padding[0] = (byte) 0x80;
+        md5.update(padding, 0, padding.length);
+        byte[] length = new byte[8];
+        for (int i = 0; i < 8; i++) {
+            length[i] = (byte) (bits >>> (8 * i));
+        }
+        md5.update(length, 0, 8);
+
+        byte[] out = new byte[16];
+        int[] state = { md5.mA, md5.mB, md5.mC, md5.mD };
+        for (int i = 0; i < 16; i++) {
+            out[i] = (byte) (state[i >> 2] >>> (8 * (i & 3)));
+        }
+        return out;
+    }
+
+    private void transform(byte[] block, int offset) {
+        int[] x = mWords;
+        for (int i = 0; i < 16; i++, offset += 4) {
+            x[i] = (block[offset] & 0xff) | (block[offset + 1] & 0xff) << 8
+                    | (block[offset + 2] & 0xff) << 16 | (block[offset + 3] & 0xff) << 24;
+        }
+
+        int a = mA;
+        int b = mB;
+        int c = mC;
+        int d = mD;
+        for (int i = 0; i < 64; i++) {
+            int f;
+            int g;
+            if (i < 16) {
+                f = (b & c) | (~b & d);
+                g = i;
+            } else if (i < 32) {
+                f = (d & b) | (~d & c);
+                g = (5 * i + 1) & 15;
+            } else if (i < 48) {
+                f = b ^ c ^ d;
+                g = (3 * i + 5) & 15;
+            } else {
+                f = c ^ (b | ~d);
+                g = (7 * i) & 15;
+            }
+            int tmp = d;
+            d = c;
+            c = b;
+            b += Integer.rotateLeft(a + f + K[i] + x[g], S[(i >> 4) << 2 | (i & 3)]);
+            a = tmp;
+        }
+        mA += a;
+        mB += b;
+        mC += c;
+        mD += d;
+    }
+}
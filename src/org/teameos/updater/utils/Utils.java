@@ -9,11 +9,9 @@
 
 package org.teameos.updater.utils;
 
-import android.app.AlarmManager;
+import android.app.Notification;
 import android.app.NotificationManager;
-import android.app.PendingIntent;
 import android.content.Context;
-import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
@@ -36,18 +34,18 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.InputStreamReader;
+import java.io.StringReader;
 
-import java.net.URL;
-import java.net.MalformedURLException;
-
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.Set;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.teameos.updater.misc.Constants;
 import org.teameos.updater.misc.Logger;
 import org.teameos.updater.misc.UpdateInfo;
-import org.teameos.updater.service.UpdateCheckService;
 
 public class Utils {
     private Utils() {
@@ -63,23 +61,115 @@ public class Utils {
         final NotificationManager nm =
                 (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
         nm.cancel(R.string.not_new_updates_found_title);
-        nm.cancel(R.string.not_download_success);
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        Set<String> tags = prefs.getStringSet(Constants.DOWNLOAD_RESULT_NOTIFICATIONS, null);
+        if (tags != null) {
+            for (String tag : tags) {
+                nm.cancel(tag, R.string.not_download_success);
+            }
+            prefs.edit().remove(Constants.DOWNLOAD_RESULT_NOTIFICATIONS).apply();
+        }
+    }
+
+    /**
+     * Show the outcome of a queued download, tagged with its id so that
+     * downloads finishing close together don't replace each other
+     */
+    public static void notifyDownloadResult(Context context, long id, Notification notification) {
+        final NotificationManager nm =
+                (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+        String tag = String.valueOf(id);
+        nm.notify(tag, R.string.not_download_success, notification);
+
+        // Remember it for cancelNotification
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        Set<String> tags = new HashSet<String>(prefs.getStringSet(
+                Constants.DOWNLOAD_RESULT_NOTIFICATIONS, Collections.<String>emptySet()));
+        tags.add(tag);
+        prefs.edit().putStringSet(Constants.DOWNLOAD_RESULT_NOTIFICATIONS, tags).apply();
+    }
+
+    /**
+     * Use the in-app resumable downloader instead of DownloadManager
+     */
+    public static boolean useInternalDownloader() {
+        return SystemProperties.getBoolean("eos.updater.internal_downloader", false);
     }
 
-    public static String getDeviceType() {
-        return SystemProperties.get("ro.eos.device");
+    /**
+     * Maximum number of parallel connections of the in-app downloader
+     */
+    public static int getDownloadConnections() {
+        return SystemProperties.getInt("eos.updater.dl_connections", 4);
     }
 
-    public static String getInstalledVersion() {
-        return SystemProperties.get("ro.eos.version");
+    /**
+     * Maximum number of queued downloads that transfer at the same time
+     */
+    public static int getMaxActiveDownloads() {
+        return SystemProperties.getInt("eos.updater.dl_max_active", 2);
     }
 
-    public static int getInstalledApiLevel() {
-        return SystemProperties.getInt("ro.build.version.sdk", 0);
+    /**
+     * Files are only split into segments of at least this many bytes
+     */
+    public static long getDownloadMinSegmentSize() {
+        return SystemProperties.getLong("eos.updater.dl_min_segment", 16 * 1024 * 1024);
     }
 
-    public static long getInstalledBuildDate() {
-        return SystemProperties.getLong("ro.build.date.utc", 0);
+    /**
+     * Run scheduled update checks as JobScheduler jobs instead of wakeup alarms
+     */
+    public static boolean useJobScheduler() {
+        return SystemProperties.getBoolean("eos.updater.check_jobs", false);
+    }
+
+    /**
+     * Scheduled check jobs wait for an unmetered network
+     */
+    public static boolean checkJobRequiresUnmetered() {
+        return SystemProperties.getBoolean("eos.updater.check_unmetered", true);
+    }
+
+    /**
+     * Scheduled check jobs wait for the device to be charging
+     */
+    public static boolean checkJobRequiresCharging() {
+        return SystemProperties.getBoolean("eos.updater.check_charging", false);
+    }
+
+    /**
+     * Scheduled check jobs wait for the device to be idle
+     */
+    public static boolean checkJobRequiresIdle() {
+        return SystemProperties.getBoolean("eos.updater.check_idle", false);
+    }
+
+    /**
+     * Size of the windows MD5 maps when it hashes a file from disk. 0 reads
+     * the file through a stream instead, as older versions did.
+     */
+    public static int getHashWindowSize() {
+        return SystemProperties.getInt("eos.updater.hash_window", 8 * 1024 * 1024);
+    }
+
+    /**
+     * Get the zip a delta of the update applies to, or null if the update has
+     * no delta for the installed build or that zip isn't around anymore
+     */
+    public static File getDeltaBase(Context context, UpdateInfo ui) {
+        if (ui.getDeltaUrl() == null || ui.getDeltaSourceDate()
+                != BuildEnvironment.get().getInstalledBuildDate()) {
+            return null;
+        }
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String fileName = prefs.getString(Constants.LAST_APPLIED_UPDATE, null);
+        if (fileName == null) {
+            return null;
+        }
+        File base = new File(makeUpdateFolder(), fileName);
+        return base.isFile() ? base : null;
     }
 
     public static String getUserAgentString(Context context) {
@@ -101,26 +191,12 @@ public class Utils {
         return false;
     }
 
-    public static void scheduleUpdateService(Context context, int updateFrequency) {
-        // Load the required settings from preferences
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        long lastCheck = prefs.getLong(Constants.LAST_UPDATE_CHECK_PREF, 0);
-
-        // Get the intent ready
-        Intent i = new Intent(context, UpdateCheckService.class);
-        i.setAction(UpdateCheckService.ACTION_CHECK);
-        PendingIntent pi = PendingIntent.getService(context, 0, i, PendingIntent.FLAG_UPDATE_CURRENT);
-
-        // Clear any old alarms and schedule the new alarm
-        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
-        am.cancel(pi);
-
-        if (updateFrequency != Constants.UPDATE_FREQ_NONE) {
-            am.setRepeating(AlarmManager.RTC_WAKEUP, lastCheck + updateFrequency, updateFrequency, pi);
-        }
-    }
-
     public static void triggerUpdate(Context context, String updateFileName) throws IOException {
+        // Keep track of the zip we are about to install, deltas of the next build apply to it
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .putString(Constants.LAST_APPLIED_UPDATE, updateFileName)
+                .commit();
+
         /*
          * Should perform the following steps.
          * 1.- mkdir -p /cache/recovery
@@ -195,38 +271,30 @@ public class Utils {
 
     public static LinkedList<String> readMultilineFile(String urlstr) {
         LinkedList<String> ret = new LinkedList<String>();
-        try {
-            // Create a URL for the desired page
-            URL url = new URL(urlstr);
-
-            // Read all the text returned by the server
-            BufferedReader in = new BufferedReader(new InputStreamReader(url.openStream()));
+        String content = Http.fetchString(urlstr, null);
+        if (content != null) {
+            BufferedReader in = new BufferedReader(new StringReader(content));
             String str;
-            while ((str = in.readLine()) != null) {
-                // str is one line of text; readLine() strips the newline character(s)
-                ret.add(str);
+            try {
+                while ((str = in.readLine()) != null) {
+                    // str is one line of text; readLine() strips the newline character(s)
+                    ret.add(str);
+                }
+            } catch (IOException e) {
+                // can't happen, the content is in memory
             }
-            in.close();
-        } catch (MalformedURLException e) {
-        } catch (IOException e) {
         }
         return ret;
     }
 
     public static String readFile(String urlstr) {
-        String ret = null;
-        try {
-            // Create a URL for the desired page
-            URL url = new URL(urlstr);
-
-            // Read all the text returned by the server
-            BufferedReader in = new BufferedReader(new InputStreamReader(url.openStream()));
-            ret = in.readLine();
-            in.close();
-        } catch (MalformedURLException e) {
-        } catch (IOException e) {
+        String content = Http.fetchString(urlstr, null);
+        if (content == null) {
+            return null;
         }
-        return ret;
+        // Only the first line is of interest
+        int newline = content.indexOf('\n');
+        return newline >= 0 ? content.substring(0, newline).replace("\r", "") : content;
     }
 
     public static String convertStreamToString(InputStream is) {
@@ -250,27 +318,23 @@ public class Utils {
         return sb.toString();
     }
 
-    public static String getBaseServerUrl() {
-        return SystemProperties.get("ro.eos.updater.url", "http://api.teameos.org/");
-    }
-
-    public static String getFileListPath() {
-        return SystemProperties.get("ro.eos.updater.file_path", "v1/files/file_list/");
-    }
-
-    public static String getFullFileListUrl() {
-        return getBaseServerUrl() + getFileListPath();
-    }
-
-    public static String getQueryUrl() {
+    /**
+     * Query for a page of the file list, pages count from 1
+     *
+     * @param baseUrl the server or mirror to ask
+     */
+    public static String getQueryUrl(BuildEnvironment env, String baseUrl, int page) {
         StringBuilder b = new StringBuilder();
-        b.append(getFullFileListUrl());
+        b.append(baseUrl);
+        b.append(env.getFileListPath());
         b.append("?owner=");
         b.append("eos");
         b.append("&size=");
-        b.append(1);
+        b.append(Constants.UPDATE_MAX_FILE_HISTORY);
+        b.append("&page=");
+        b.append(page);
         b.append("&device=");
-        b.append(Utils.getDeviceType());
+        b.append(env.getDeviceType());
         if (Logger.DEBUG) {
             b.append("&info=device,id,date,epoch,owner,name,version,url,size,download_count,md5sum,old_version");
         } else {
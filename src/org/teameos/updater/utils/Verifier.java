@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2015 The TeamEos Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package org.teameos.updater.utils;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import org.teameos.updater.misc.UpdateInfo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Checks a file against every digest the server published for it. All digests
+ * that still have to be calculated are computed in a single pass over the file.
+ *
+ * Downloads only hash MD5 as the bytes arrive, since that state has to survive
+ * in the checkpoint and only ResumableMD5 can be persisted. A published
+ * SHA-256 or SHA-512 therefore costs one read of the finished file here.
+ */
+public class Verifier {
+    private static final String TAG = "Verifier";
+
+    public static final String ALGORITHM_MD5 = "MD5";
+    public static final String ALGORITHM_SHA256 = "SHA-256";
+    public static final String ALGORITHM_SHA512 = "SHA-512";
+
+    // Window size that reads the file through a stream, as older versions did
+    public static final int STREAM = 0;
+
+    private static final int MIN_WINDOW_SIZE = 64 * 1024;
+    private static final int STREAM_BUFFER_SIZE = 8192;
+
+    public interface ProgressListener {
+        void onProgress(long hashed, long total);
+    }
+
+    private final Map<String, String> mExpected = new LinkedHashMap<String, String>();
+    private ProgressListener mListener;
+    private volatile boolean mCancelled = false;
+
+    /**
+     * Expect the digests the server sent for the update
+     */
+    public static Verifier forUpdate(UpdateInfo ui) {
+        return new Verifier()
+                .expect(ALGORITHM_SHA512, ui.getSHA512Sum())
+                .expect(ALGORITHM_SHA256, ui.getSHA256Sum())
+                .expect(ALGORITHM_MD5, ui.getMD5Sum());
+    }
+
+    /**
+     * Add an expected digest, empty values are ignored
+     */
+    public Verifier expect(String algorithm, String hexDigest) {
+        if (!TextUtils.isEmpty(hexDigest)) {
+            mExpected.put(algorithm, hexDigest.trim().toLowerCase(Locale.US));
+        }
+        return this;
+    }
+
+    public boolean hasDigests() {
+        return !mExpected.isEmpty();
+    }
+
+    /**
+     * Get told how far the pass over the file got, called on the verifying thread
+     */
+    public void setProgressListener(ProgressListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Stop a running verification, which then fails. May be called from any thread.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    public boolean verify(File file) {
+        return verify(file, null);
+    }
+
+    /**
+     * @param known digests that were calculated already, e.g. while the file was
+     *              downloaded, keyed by algorithm. May be null.
+     */
+    public boolean verify(File file, Map<String, String> known) {
+        if (mExpected.isEmpty() || file == null) {
+            Log.e(TAG, "No digest to check or file null");
+            return false;
+        }
+
+        Map<String, String> calculated = new LinkedHashMap<String, String>();
+        int pending = 0;
+        for (String algorithm : mExpected.keySet()) {
+            String digest = known != null ? known.get(algorithm) : null;
+            calculated.put(algorithm, digest);
+            if (digest == null) {
+                pending++;
+            }
+        }
+
+        if (pending > 0) {
+            String[] algorithms = new String[pending];
+            int i = 0;
+            for (Map.Entry<String, String> entry : calculated.entrySet()) {
+                if (entry.getValue() == null) {
+                    algorithms[i++] = entry.getKey();
+                }
+            }
+            String[] digests = calculate(file, algorithms, Utils.getHashWindowSize(), this);
+            if (digests == null) {
+                return false;
+            }
+            for (i = 0; i < algorithms.length; i++) {
+                calculated.put(algorithms[i], digests[i]);
+            }
+        }
+
+        for (Map.Entry<String, String> entry : mExpected.entrySet()) {
+            String digest = calculated.get(entry.getKey());
+            Log.v(TAG, entry.getKey() + " calculated: " + digest + ", provided: "
+                    + entry.getValue());
+            if (!entry.getValue().equalsIgnoreCase(digest)) {
+                Log.e(TAG, entry.getKey() + " mismatch for " + file);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Calculate several digests in one pass, mapping the file in windows of the
+     * given size. Falls back to reading the channel into a direct buffer of the
+     * same size if mapping fails. A size of STREAM reads the file through a
+     * FileInputStream instead, to compare against.
+     *
+     * @return lowercase hex digests in the order of the algorithms, or null on error
+     */
+    public static String[] calculate(File file, String[] algorithms, int windowSize) {
+        return calculate(file, algorithms, windowSize, null);
+    }
+
+    private static String[] calculate(File file, String[] algorithms, int windowSize,
+            Verifier owner) {
+        MessageDigest[] digests = new MessageDigest[algorithms.length];
+        try {
+            for (int i = 0; i < algorithms.length; i++) {
+                digests[i] = MessageDigest.getInstance(algorithms[i]);
+            }
+        } catch (NoSuchAlgorithmException e) {
+            Log.e(TAG, "Exception while getting digest", e);
+            return null;
+        }
+
+        FileInputStream is = null;
+        try {
+            is = new FileInputStream(file);
+            FileChannel channel = is.getChannel();
+            long size = channel.size();
+            long position = 0;
+            if (windowSize == STREAM) {
+                byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+                int read;
+                while ((read = is.read(buffer)) > 0) {
+                    if (!onProgress(owner, position, size)) {
+                        return null;
+                    }
+                    for (MessageDigest digest : digests) {
+                        digest.update(buffer, 0, read);
+                    }
+                    position += read;
+                }
+                return finish(owner, digests, size);
+            }
+
+            windowSize = Math.max(windowSize, MIN_WINDOW_SIZE);
+            try {
+                while (position < size) {
+                    if (!onProgress(owner, position, size)) {
+                        return null;
+                    }
+                    long length = Math.min(windowSize, size - position);
+                    update(digests, channel.map(FileChannel.MapMode.READ_ONLY, position, length));
+                    position += length;
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to map " + file + ", reading it instead", e);
+                ByteBuffer buffer = ByteBuffer.allocateDirect(windowSize);
+                while (channel.read(buffer, position) > 0) {
+                    if (!onProgress(owner, position, size)) {
+                        return null;
+                    }
+                    buffer.flip();
+                    position += buffer.remaining();
+                    update(digests, buffer);
+                    buffer.clear();
+                }
+            }
+
+            return finish(owner, digests, size);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to process " + file, e);
+            return null;
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Exception on closing input stream", e);
+                }
+            }
+        }
+    }
+
+    private static String[] finish(Verifier owner, MessageDigest[] digests, long size) {
+        onProgress(owner, size, size);
+        String[] result = new String[digests.length];
+        for (int i = 0; i < digests.length; i++) {
+            result[i] = MD5.toHex(digests[i].digest());
+        }
+        return result;
+    }
+
+    /**
+     * @return false if the owner got cancelled
+     */
+    private static boolean onProgress(Verifier owner, long position, long size) {
+        if (owner == null) {
+            return true;
+        }
+        if (owner.mCancelled) {
+            Log.i(TAG, "Verification cancelled");
+            return false;
+        }
+        if (owner.mListener != null) {
+            owner.mListener.onProgress(position, size);
+        }
+        return true;
+    }
+
+    private static void update(MessageDigest[] digests, ByteBuffer buffer) {
+        int position = buffer.position();
+        for (MessageDigest digest : digests) {
+            buffer.position(position);
+            digest.update(buffer);
+        }
+    }
+}
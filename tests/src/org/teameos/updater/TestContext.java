@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2015 The TeamEos Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package org.teameos.updater;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.SharedPreferences;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Keeps what the code under test stores apart from the data of the app: the
+ * files and cache directories point to a scratch directory and shared
+ * preferences get a prefix. delete() removes all of it.
+ */
+public class TestContext extends ContextWrapper {
+    private static final String PREFS_PREFIX = "test_";
+
+    private final File mRoot;
+    private final Set<String> mPrefs = new HashSet<String>();
+
+    public TestContext(Context base) {
+        super(base);
+        mRoot = new File(base.getCacheDir(), "test-" + System.nanoTime());
+    }
+
+    @Override
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    @Override
+    public File getFilesDir() {
+        return getDir("files");
+    }
+
+    @Override
+    public File getCacheDir() {
+        return getDir("cache");
+    }
+
+    @Override
+    public synchronized SharedPreferences getSharedPreferences(String name, int mode) {
+        mPrefs.add(name);
+        return super.getSharedPreferences(PREFS_PREFIX + name, mode);
+    }
+
+    public synchronized void delete() {
+        for (String name : mPrefs) {
+            super.getSharedPreferences(PREFS_PREFIX + name, MODE_PRIVATE).edit().clear().commit();
+        }
+        mPrefs.clear();
+        delete(mRoot);
+    }
+
+    private File getDir(String name) {
+        File dir = new File(mRoot, name);
+        dir.mkdirs();
+        return dir;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2015 The TeamEos Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package org.teameos.updater;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Stand-in for the update server in the network tests. Listens on localhost
+ * and serves the same body for every path, one request per connection. It
+ * honours single byte ranges, If-Range and If-None-Match, and can be made to
+ * answer slowly, fail, or cut responses short at random points.
+ */
+public class TestServer {
+    private final ServerSocket mSocket;
+    private final byte[] mBody;
+    private final Random mRandom = new Random(0);
+
+    private volatile String mETag;
+    private volatile int mLatency = 0;
+    private volatile int mStatus = 0;
+    private volatile boolean mRanges = true;
+    private volatile float mKillProbability = 0;
+
+    private int mRequests = 0;
+    private int mKills = 0;
+    private Map<String, String> mLastHeaders = new HashMap<String, String>();
+
+    public TestServer(byte[] body) throws IOException {
+        mBody = body;
+        mSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread acceptor = new Thread("TestServer") {
+            @Override
+            public void run() {
+                while (true) {
+                    final Socket socket;
+                    try {
+                        socket = mSocket.accept();
+                    } catch (IOException e) {
+                        return;
+                    }
+                    new Thread() {
+                        @Override
+                        public void run() {
+                            handle(socket);
+                        }
+                    }.start();
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Base URL of the server, with a trailing slash
+     */
+    public String getUrl() {
+        return "http://127.0.0.1:" + mSocket.getLocalPort() + "/";
+    }
+
+    /**
+     * Send an ETag and answer If-None-Match for it with 304
+     */
+    public void setETag(String etag) {
+        mETag = etag;
+    }
+
+    /**
+     * Wait this long before answering each request
+     */
+    public void setLatency(int millis) {
+        mLatency = millis;
+    }
+
+    /**
+     * Answer every request with this status and no body, 0 to serve normally
+     */
+    public void setStatus(int status) {
+        mStatus = status;
+    }
+
+    public void setRanges(boolean ranges) {
+        mRanges = ranges;
+    }
+
+    /**
+     * Drop this share of the responses at a random point of the body
+     */
+    public void setKillProbability(float probability) {
+        mKillProbability = probability;
+    }
+
+    public synchronized int getRequestCount() {
+        return mRequests;
+    }
+
+    public synchronized int getKillCount() {
+        return mKills;
+    }
+
+    /**
+     * A header of the last request, null if it had none
+     */
+    public synchronized String getLastHeader(String name) {
+        return mLastHeaders.get(name.toLowerCase(Locale.US));
+    }
+
+    public void shutdown() throws IOException {
+        mSocket.close();
+    }
+
+    private void handle(Socket socket) {
+        try {
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+            String requestLine = in.readLine();
+            if (requestLine == null) {
+                return;
+            }
+            String method = requestLine.split(" ")[0];
+            Map<String, String> headers = new HashMap<String, String>();
+            String line;
+            while ((line = in.readLine()) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                            line.substring(colon + 1).trim());
+                }
+            }
+            boolean kill;
+            synchronized (this) {
+                mRequests++;
+                mLastHeaders = headers;
+                kill = mRandom.nextFloat() < mKillProbability;
+            }
+            if (mLatency > 0) {
+                Thread.sleep(mLatency);
+            }
+
+            OutputStream out = socket.getOutputStream();
+            String etag = mETag;
+            if (mStatus != 0) {
+                writeHead(out, mStatus, "Content-Length: 0\r\n");
+                return;
+            }
+            if (etag != null && etag.equals(headers.get("if-none-match"))) {
+                writeHead(out, 304, "ETag: " + etag + "\r\n");
+                return;
+            }
+
+            long start = 0;
+            long end = mBody.length - 1;
+            int status = 200;
+            StringBuilder extra = new StringBuilder();
+            String range = headers.get("range");
+            String ifRange = headers.get("if-range");
+            if (mRanges && range != null && range.startsWith("bytes=")
+                    && (ifRange == null || ifRange.equals(etag))) {
+                String[] bounds = range.substring(6).split("-", -1);
+                start = Long.parseLong(bounds[0]);
+                if (!bounds[1].isEmpty()) {
+                    end = Math.min(Long.parseLong(bounds[1]), end);
+                }
+                status = 206;
+                extra.append("Content-Range: bytes ").append(start).append('-').append(end)
+                        .append('/').append(mBody.length).append("\r\n");
+            }
+            if (mRanges) {
+                extra.append("Accept-Ranges: bytes\r\n");
+            }
+            if (etag != null) {
+                extra.append("ETag: ").append(etag).append("\r\n");
+            }
+            long length = end - start + 1;
+            extra.append("Content-Length: ").append(length).append("\r\n");
+            writeHead(out, status, extra.toString());
+            if ("HEAD".equals(method)) {
+                return;
+            }
+
+            long killAt = kill ? (long) (mRandom.nextFloat() * length) : length;
+            int offset = (int) start;
+            int left = (int) Math.min(length, killAt);
+            while (left > 0) {
+                int n = Math.min(8192, left);
+                out.write(mBody, offset, n);
+                offset += n;
+                left -= n;
+            }
+            out.flush();
+            if (killAt < length) {
+                synchronized (this) {
+                    mKills++;
+                }
+                // Reset the connection instead of closing it in order
+                socket.setSoLinger(true, 0);
+            }
+        } catch (IOException e) {
+            // The client went away
+        } catch (InterruptedException e) {
+            // Shutting down
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignored
+            }
+        }
+    }
+
+    private static void writeHead(OutputStream out, int status, String headers)
+            throws IOException {
+        String head = "HTTP/1.1 " + status + " Test\r\n" + headers + "Connection: close\r\n\r\n";
+        out.write(head.getBytes("ISO-8859-1"));
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2015 The TeamEos Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package org.teameos.updater;
+
+import org.teameos.updater.misc.UpdateInfo;
+
+import java.util.LinkedList;
+
+/**
+ * Nightlies to feed the code under test. Update i is a day older than update
+ * i - 1, so lists come out newest first the way the server hands them out.
+ */
+public final class TestUpdates {
+    private static final long NEWEST_DATE = 1434843521L;
+    private static final long DAY = 86400L;
+
+    private TestUpdates() {
+    }
+
+    public static String name(int i) {
+        return "eos-shamu-" + (20150621 - i) + ".zip";
+    }
+
+    public static String md5(int i) {
+        return String.format("%032x", i);
+    }
+
+    public static UpdateInfo create(int i) {
+        return create(i, 0, md5(i));
+    }
+
+    /**
+     * @param dateOffset seconds added to the date of update i
+     * @param md5 digest in place of the usual one, e.g. for a rebuilt file
+     */
+    public static UpdateInfo create(int i, long dateOffset, String md5) {
+        String name = name(i);
+        return new UpdateInfo(name, NEWEST_DATE - i * DAY + dateOffset, 22,
+                "http://api.teameos.org/files/" + name, md5, UpdateInfo.Type.NIGHTLY);
+    }
+
+    /**
+     * Updates first to first + count - 1
+     */
+    public static LinkedList<UpdateInfo> createUpdates(int first, int count) {
+        LinkedList<UpdateInfo> updates = new LinkedList<UpdateInfo>();
+        for (int i = first; i < first + count; i++) {
+            updates.add(create(i));
+        }
+        return updates;
+    }
+
+    /**
+     * Updates 0 to count - 1 with every optional field set on some of them:
+     * a SHA-256 digest, a delta and a changelog
+     */
+    public static LinkedList<UpdateInfo> createDetailed(int count) {
+        LinkedList<UpdateInfo> updates = new LinkedList<UpdateInfo>();
+        for (int i = 0; i < count; i++) {
+            String name = name(i);
+            UpdateInfo ui = new UpdateInfo(name, NEWEST_DATE - i * DAY, 22,
+                    "http://api.teameos.org/files/" + name, md5(i),
+                    i % 2 == 0 ? String.format("%064x", i) : null, null,
+                    UpdateInfo.Type.NIGHTLY);
+            if (i % 3 == 0) {
+                ui.setDelta("http://api.teameos.org/files/" + name + ".eosdiff",
+                        ui.getDate() - DAY, md5(i + 1));
+            }
+            if (i % 4 == 0) {
+                ui.setChangeLogUrl("http://api.teameos.org/files/" + name + ".changelog");
+            }
+            updates.add(ui);
+        }
+        return updates;
+    }
+}
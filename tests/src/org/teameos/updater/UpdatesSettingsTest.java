@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2015 The TeamEos Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package org.teameos.updater;
+
+import android.os.Debug;
+import android.preference.PreferenceCategory;
+import android.test.ActivityInstrumentationTestCase2;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import org.teameos.updater.misc.UpdateInfo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Allocations and time of refreshing a history of 200 builds, against
+ * rebuilding every row the way older versions did. Results go to the log.
+ */
+@LargeTest
+public class UpdatesSettingsTest extends ActivityInstrumentationTestCase2<UpdatesSettings> {
+    private static final String TAG = "UpdatesSettingsTest";
+
+    private static final int UPDATES = 200;
+    private static final int ROUNDS = 20;
+
+    public UpdatesSettingsTest() {
+        super(UpdatesSettings.class);
+    }
+
+    public void testRefreshBenchmark() throws Exception {
+        final UpdatesSettings activity = getActivity();
+        final PreferenceCategory list =
+                (PreferenceCategory) activity.findPreference("updates_category");
+        // Every load hands out new but equal UpdateInfos, as if read again
+        final List<List<UpdateInfo>> loads = new ArrayList<List<UpdateInfo>>();
+        for (int i = 0; i < 2 * ROUNDS + 1; i++) {
+            loads.add(TestUpdates.createUpdates(0, UPDATES));
+        }
+        final long[] reuse = new long[2];
+        final long[] rebuild = new long[2];
+
+        getInstrumentation().waitForIdleSync();
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                activity.refreshPreferences(loads.get(0));
+                measure(reuse, new Runnable() {
+                    int mLoad = 1;
+
+                    @Override
+                    public void run() {
+                        activity.refreshPreferences(loads.get(mLoad++));
+                    }
+                });
+                assertEquals(UPDATES, list.getPreferenceCount());
+                measure(rebuild, new Runnable() {
+                    int mLoad = ROUNDS + 1;
+
+                    @Override
+                    public void run() {
+                        list.removeAll();
+                        activity.refreshPreferences(loads.get(mLoad++));
+                    }
+                });
+                assertEquals(UPDATES, list.getPreferenceCount());
+            }
+        });
+
+        Log.i(TAG, ROUNDS + " refreshes of " + UPDATES + " rows: reusing rows "
+                + reuse[0] + " allocations, " + reuse[1] / 1000 + " us; rebuilding "
+                + rebuild[0] + " allocations, " + rebuild[1] / 1000 + " us");
+        assertTrue(reuse[0] < rebuild[0]);
+    }
+
+    /**
+     * Run the refresh ROUNDS times, storing the allocations and nanoseconds it took
+     */
+    private static void measure(long[] result, Runnable refresh) {
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            refresh.run();
+        }
+        result[1] = System.nanoTime() - start;
+        Debug.stopAllocCounting();
+        result[0] = Debug.getThreadAllocCount();
+    }
+}
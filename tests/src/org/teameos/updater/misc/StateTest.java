@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2015 The TeamEos Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package org.teameos.updater.misc;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import org.teameos.updater.TestContext;
+import org.teameos.updater.TestUpdates;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.LinkedList;
+
+public class StateTest extends AndroidTestCase {
+    private static final String TAG = "StateTest";
+
+    private TestContext mContext;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = new TestContext(getContext());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.delete();
+        super.tearDown();
+    }
+
+    public void testRoundTrip() throws Exception {
+        LinkedList<UpdateInfo> updates = TestUpdates.createDetailed(20);
+        State.saveState(mContext, updates);
+        LinkedList<UpdateInfo> loaded = State.loadState(mContext);
+
+        assertEquals(updates, loaded);
+        for (int i = 0; i < updates.size(); i++) {
+            UpdateInfo expected = updates.get(i);
+            UpdateInfo actual = loaded.get(i);
+            assertEquals(expected.getName(), actual.getName());
+            assertEquals(expected.getDownloadUrl(), actual.getDownloadUrl());
+            assertEquals(expected.getDeltaUrl(), actual.getDeltaUrl());
+            assertEquals(expected.getDeltaSourceDate(), actual.getDeltaSourceDate());
+            assertEquals(expected.getDeltaMD5Sum(), actual.getDeltaMD5Sum());
+            assertEquals(expected.getChangeLogUrl(), actual.getChangeLogUrl());
+        }
+    }
+
+    public void testNothingStored() {
+        assertTrue(State.loadState(mContext).isEmpty());
+    }
+
+    public void testCorruptFile() throws Exception {
+        State.saveState(mContext, TestUpdates.createDetailed(5));
+        File file = new File(mContext.getCacheDir(), "eosupdater.bin");
+        byte[] garbage = new byte[(int) file.length()];
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(garbage);
+        } finally {
+            out.close();
+        }
+        assertTrue(State.loadState(mContext).isEmpty());
+    }
+
+    public void testTruncatedFile() throws Exception {
+        State.saveState(mContext, TestUpdates.createDetailed(5));
+        File file = new File(mContext.getCacheDir(), "eosupdater.bin");
+        byte[] data = readFile(file);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data, 0, data.length - 10);
+        } finally {
+            out.close();
+        }
+        assertTrue(State.loadState(mContext).isEmpty());
+    }
+
+    /**
+     * Entries written by the first version lack every field added since
+     */
+    public void testVersion1() throws Exception {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(
+                new File(mContext.getCacheDir(), "eosupdater.bin")));
+        try {
+            out.writeInt(0x454f5355);
+            out.writeInt(1);
+            out.writeInt(1);
+            ByteArrayOutputStream entry = new ByteArrayOutputStream();
+            DataOutputStream entryOut = new DataOutputStream(entry);
+            writeString(entryOut, "20150621");
+            writeString(entryOut, "eos-shamu-20150621.zip");
+            entryOut.writeByte(UpdateInfo.Type.NIGHTLY.ordinal());
+            entryOut.writeInt(22);
+            entryOut.writeLong(1434843521);
+            writeString(entryOut, "http://api.teameos.org/eos-shamu-20150621.zip");
+            writeString(entryOut, "2b8fd4fa9a4cd2e4a8e5b6e3c1d0f9a7");
+            out.writeInt(entry.size());
+            entry.writeTo(out);
+        } finally {
+            out.close();
+        }
+
+        LinkedList<UpdateInfo> loaded = State.loadState(mContext);
+        assertEquals(1, loaded.size());
+        UpdateInfo ui = loaded.getFirst();
+        assertEquals("eos-shamu-20150621.zip", ui.getFileName());
+        assertEquals(1434843521, ui.getDate());
+        assertEquals("2b8fd4fa9a4cd2e4a8e5b6e3c1d0f9a7", ui.getMD5Sum());
+        assertNull(ui.getSHA256Sum());
+        assertNull(ui.getDeltaUrl());
+        assertNull(ui.getChangeLogUrl());
+    }
+
+    public void testLegacyMigration() throws Exception {
+        LinkedList<UpdateInfo> updates = TestUpdates.createDetailed(5);
+        File legacy = new File(mContext.getCacheDir(), "eosupdater.state");
+        writeSerialized(legacy, updates);
+
+        assertEquals(updates, State.loadState(mContext));
+        assertFalse(legacy.exists());
+        assertTrue(new File(mContext.getCacheDir(), "eosupdater.bin").exists());
+        assertEquals(updates, State.loadState(mContext));
+    }
+
+    /**
+     * Save and load times and file sizes against java.io serialization, which
+     * older versions used. Results go to the log.
+     */
+    @LargeTest
+    public void testBenchmark() throws Exception {
+        File serialized = new File(mContext.getCacheDir(), "serialized.state");
+        File file = new File(mContext.getCacheDir(), "eosupdater.bin");
+        for (int count : new int[] {
+                5, 500, 50000
+        }) {
+            LinkedList<UpdateInfo> updates = TestUpdates.createDetailed(count);
+            // Warm up both paths so the first size doesn't pay for class loading
+            State.saveState(mContext, updates);
+            State.loadState(mContext);
+            writeSerialized(serialized, updates);
+            readSerialized(serialized);
+
+            long start = System.nanoTime();
+            State.saveState(mContext, updates);
+            long saved = System.nanoTime();
+            LinkedList<UpdateInfo> loaded = State.loadState(mContext);
+            long loadedAt = System.nanoTime();
+            assertEquals(count, loaded.size());
+
+            writeSerialized(serialized, updates);
+            long serializedAt = System.nanoTime();
+            assertEquals(count, readSerialized(serialized).size());
+            long deserializedAt = System.nanoTime();
+
+            Log.i(TAG, count + " entries: save " + (saved - start) / 1000 + " us, load "
+                    + (loadedAt - saved) / 1000 + " us, " + file.length() + " bytes; "
+                    + "java.io save " + (serializedAt - loadedAt) / 1000 + " us, load "
+                    + (deserializedAt - serializedAt) / 1000 + " us, "
+                    + serialized.length() + " bytes");
+            assertTrue(file.length() < serialized.length());
+        }
+    }
+
+    private static void writeSerialized(File file, LinkedList<UpdateInfo> updates)
+            throws IOException {
+        ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(file));
+        try {
+            out.writeObject(updates);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static LinkedList<?> readSerialized(File file) throws Exception {
+        ObjectInputStream in = new ObjectInputStream(new FileInputStream(file));
+        try {
+            return (LinkedList<?>) in.readObject();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < data.length) {
+                offset += in.read(data, offset, data.length - offset);
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(true);
+        out.writeUTF(value);
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2015 The TeamEos Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package org.teameos.updater.misc;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import org.teameos.updater.TestContext;
+import org.teameos.updater.TestUpdates;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class UpdateCatalogTest extends AndroidTestCase {
+    private static final String TAG = "UpdateCatalogTest";
+    private static final int PAGE = Constants.UPDATE_MAX_FILE_HISTORY;
+
+    private TestContext mContext;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = new TestContext(getContext());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.delete();
+        super.tearDown();
+    }
+
+    public void testDiff() {
+        List<UpdateInfo> oldUpdates = TestUpdates.createUpdates(0, 10);
+        List<UpdateInfo> newUpdates = TestUpdates.createUpdates(2, 10);
+        // Listed again with a new date
+        UpdateInfo changed = TestUpdates.create(5, 1, TestUpdates.md5(5));
+        newUpdates.set(3, changed);
+        // Rebuilt under the same name
+        UpdateInfo rebuilt = TestUpdates.create(7, 0, "1");
+        newUpdates.set(5, rebuilt);
+
+        UpdateCatalog.Diff diff = UpdateCatalog.Diff.compute(oldUpdates, newUpdates);
+        // In the order of the new list
+        assertEquals(3, diff.getAdded().size());
+        assertSame(rebuilt, diff.getAdded().get(0));
+        assertEquals(TestUpdates.name(10), diff.getAdded().get(1).getFileName());
+        assertEquals(TestUpdates.name(11), diff.getAdded().get(2).getFileName());
+
+        Set<String> removed = new HashSet<String>(names(diff.getRemoved()));
+        assertEquals(3, removed.size());
+        assertTrue(removed.contains(TestUpdates.name(0)));
+        assertTrue(removed.contains(TestUpdates.name(1)));
+        assertTrue(removed.contains(TestUpdates.name(7)));
+
+        assertEquals(1, diff.getChanged().size());
+        assertSame(changed, diff.getChanged().get(0));
+        assertFalse(diff.isEmpty());
+    }
+
+    /**
+     * Equal updates from another mirror are no change
+     */
+    public void testDiffSameList() {
+        List<UpdateInfo> oldUpdates = TestUpdates.createUpdates(0, 100);
+        List<UpdateInfo> newUpdates = new ArrayList<UpdateInfo>();
+        for (UpdateInfo ui : oldUpdates) {
+            newUpdates.add(new UpdateInfo(ui.getFileName(), ui.getDate(), 22,
+                    "http://mirror.example.org/" + ui.getFileName(), ui.getMD5Sum(),
+                    UpdateInfo.Type.NIGHTLY));
+        }
+        assertTrue(UpdateCatalog.Diff.compute(oldUpdates, newUpdates).isEmpty());
+        assertTrue(UpdateCatalog.Diff.compute(newUpdates, new ArrayList<UpdateInfo>())
+                .getAdded().isEmpty());
+    }
+
+    public void testDiffAgainstCatalog() {
+        UpdateCatalog catalog = new UpdateCatalog(mContext);
+        catalog.mergePage(1, TestUpdates.createUpdates(0, 5), false);
+        UpdateCatalog.Diff diff = catalog.diff(TestUpdates.createUpdates(1, 5));
+        assertEquals(1, diff.getAdded().size());
+        assertEquals(1, diff.getRemoved().size());
+        assertTrue(catalog.contains(TestUpdates.create(4)));
+        assertFalse(catalog.contains(TestUpdates.create(4, 0, "1")));
+    }
+
+    /**
+     * Long histories must diff in linear time, quadrupling the size may not
+     * take anywhere near sixteen times as long
+     */
+    @LargeTest
+    public void testDiffScaling() {
+        long[] times = new long[3];
+        int[] sizes = {
+                10000, 20000, 40000
+        };
+        for (int i = 0; i < sizes.length; i++) {
+            int size = sizes[i];
+            List<UpdateInfo> oldUpdates = TestUpdates.createUpdates(0, size);
+            List<UpdateInfo> newUpdates = TestUpdates.createUpdates(size / 10, size);
+            times[i] = Long.MAX_VALUE;
+            for (int run = 0; run < 5; run++) {
+                long start = System.nanoTime();
+                UpdateCatalog.Diff diff = UpdateCatalog.Diff.compute(oldUpdates, newUpdates);
+                times[i] = Math.min(times[i], System.nanoTime() - start);
+                assertEquals(size / 10, diff.getAdded().size());
+                assertEquals(size / 10, diff.getRemoved().size());
+            }
+            Log.i(TAG, "Diff of " + size + " updates: " + times[i] / 1000 + " us");
+        }
+        assertTrue(times[2] < 8 * times[0]);
+    }
+
+    public void testFirstPage() {
+        UpdateCatalog catalog = new UpdateCatalog(mContext);
+        assertTrue(catalog.getUpdates().isEmpty());
+        assertEquals(1, catalog.getNextPage());
+
+        int version = catalog.getVersion();
+        catalog.mergePage(1, TestUpdates.createUpdates(0, PAGE), false);
+        assertEquals(names(TestUpdates.createUpdates(0, PAGE)), names(catalog.getUpdates()));
+        assertTrue(catalog.getVersion() != version);
+        assertTrue(catalog.hasMoreHistory());
+        assertEquals(2, catalog.getNextPage());
+    }
+
+    public void testOnlyPage() {
+        UpdateCatalog catalog = new UpdateCatalog(mContext);
+        catalog.mergePage(1, TestUpdates.createUpdates(0, 3), true);
+        assertEquals(3, catalog.getUpdates().size());
+        assertFalse(catalog.hasMoreHistory());
+    }
+
+    /**
+     * History is fetched until the page limit, older pages go to the end
+     */
+    public void testHistoryPages() {
+        UpdateCatalog catalog = new UpdateCatalog(mContext);
+        for (int page = 1; page <= Constants.UPDATE_MAX_HISTORY_PAGES; page++) {
+            assertTrue(catalog.hasMoreHistory());
+            assertEquals(page, catalog.getNextPage());
+            catalog.mergePage(page, TestUpdates.createUpdates((page - 1) * PAGE, PAGE), false);
+        }
+        assertEquals(names(TestUpdates.createUpdates(0, PAGE * Constants.UPDATE_MAX_HISTORY_PAGES)),
+                names(catalog.getUpdates()));
+        assertFalse(catalog.hasMoreHistory());
+    }
+
+    public void testShortPageEndsHistory() {
+        UpdateCatalog catalog = new UpdateCatalog(mContext);
+        catalog.mergePage(1, TestUpdates.createUpdates(0, PAGE), false);
+        catalog.mergePage(2, TestUpdates.createUpdates(PAGE, 2), true);
+        assertEquals(PAGE + 2, catalog.getUpdates().size());
+        assertFalse(catalog.hasMoreHistory());
+    }
+
+    /**
+     * A server that ignores the page parameter hands out the first page again,
+     * which must not be asked for over and over
+     */
+    public void testRepeatedPageEndsHistory() {
+        UpdateCatalog catalog = new UpdateCatalog(mContext);
+        catalog.mergePage(1, TestUpdates.createUpdates(0, PAGE), false);
+        catalog.mergePage(2, TestUpdates.createUpdates(0, PAGE), false);
+        assertEquals(names(TestUpdates.createUpdates(0, PAGE)), names(catalog.getUpdates()));
+        assertFalse(catalog.hasMoreHistory());
+    }
+
+    /**
+     * A check fetches the first page only, the history it had stays
+     */
+    public void testCheckKeepsHistory() {
+        UpdateCatalog catalog = new UpdateCatalog(mContext);
+        catalog.mergePage(1, TestUpdates.createUpdates(0, PAGE), false);
+        catalog.mergePage(2, TestUpdates.createUpdates(PAGE, PAGE), false);
+        catalog.mergePage(3, TestUpdates.createUpdates(2 * PAGE, PAGE), false);
+
+        // A new build moved the first page on by one
+        catalog.mergePage(1, TestUpdates.createUpdates(-1, PAGE), false);
+        assertEquals(names(TestUpdates.createUpdates(-1, 3 * PAGE + 1)),
+                names(catalog.getUpdates()));
+        assertTrue(catalog.hasMoreHistory());
+        assertEquals(4, catalog.getNextPage());
+    }
+
+    /**
+     * Builds newer than the page's oldest that it doesn't list were pulled
+     */
+    public void testPulledBuildDropped() {
+        UpdateCatalog catalog = new UpdateCatalog(mContext);
+        catalog.mergePage(1, TestUpdates.createUpdates(0, PAGE), false);
+        catalog.mergePage(2, TestUpdates.createUpdates(PAGE, PAGE), false);
+
+        List<UpdateInfo> page = TestUpdates.createUpdates(0, PAGE + 1);
+        page.remove(2);
+        catalog.mergePage(1, page, false);
+        List<String> expected = names(TestUpdates.createUpdates(0, 2 * PAGE));
+        expected.remove(2);
+        assertEquals(expected, names(catalog.getUpdates()));
+    }
+
+    public void testLimit() {
+        UpdateCatalog catalog = new UpdateCatalog(mContext);
+        int max = PAGE * Constants.UPDATE_MAX_HISTORY_PAGES;
+        for (int page = 1; page <= Constants.UPDATE_MAX_HISTORY_PAGES; page++) {
+            catalog.mergePage(page, TestUpdates.createUpdates((page - 1) * PAGE, PAGE), false);
+        }
+        catalog.mergePage(1, TestUpdates.createUpdates(-PAGE, PAGE), false);
+        assertEquals(names(TestUpdates.createUpdates(-PAGE, max)), names(catalog.getUpdates()));
+    }
+
+    /**
+     * A new process picks up where the last one left the history
+     */
+    public void testReload() {
+        UpdateCatalog catalog = new UpdateCatalog(mContext);
+        catalog.mergePage(1, TestUpdates.createUpdates(0, PAGE), false);
+        catalog.mergePage(2, TestUpdates.createUpdates(PAGE, PAGE), false);
+
+        UpdateCatalog reloaded = new UpdateCatalog(mContext);
+        assertEquals(names(catalog.getUpdates()), names(reloaded.getUpdates()));
+        assertEquals(3, reloaded.getNextPage());
+        assertTrue(reloaded.hasMoreHistory());
+    }
+
+    /**
+     * The saved list is read on first use only, later reads come from memory
+     */
+    public void testLoadedOnce() {
+        State.saveState(mContext, TestUpdates.createUpdates(0, 5));
+        UpdateCatalog catalog = new UpdateCatalog(mContext);
+        assertTrue(catalog.contains(TestUpdates.create(2)));
+        List<UpdateInfo> updates = catalog.getUpdates();
+        assertEquals(names(TestUpdates.createUpdates(0, 5)), names(updates));
+
+        State.saveState(mContext, TestUpdates.createUpdates(10, 2));
+        assertSame(updates, catalog.getUpdates());
+        assertTrue(catalog.contains(TestUpdates.create(2)));
+        assertFalse(catalog.contains(TestUpdates.create(10)));
+        assertEquals(2, catalog.getNextPage());
+    }
+
+    /**
+     * Reads leave the version alone, every merge moves it on
+     */
+    public void testVersion() {
+        State.saveState(mContext, TestUpdates.createUpdates(0, 5));
+        UpdateCatalog catalog = new UpdateCatalog(mContext);
+        int version = catalog.getVersion();
+        catalog.getUpdates();
+        catalog.contains(TestUpdates.create(0));
+        catalog.diff(TestUpdates.createUpdates(1, 5));
+        catalog.hasMoreHistory();
+        catalog.getNextPage();
+        assertEquals(version, catalog.getVersion());
+
+        catalog.mergePage(1, TestUpdates.createUpdates(0, 5), true);
+        assertEquals(version + 1, catalog.getVersion());
+        // Even an unchanged list is a new one for whoever shows it
+        catalog.mergePage(1, TestUpdates.createUpdates(0, 5), true);
+        assertEquals(version + 2, catalog.getVersion());
+        catalog.getUpdates();
+        assertEquals(version + 2, catalog.getVersion());
+    }
+
+    /**
+     * Listed means the same name and the same digests
+     */
+    public void testContains() {
+        UpdateCatalog catalog = new UpdateCatalog(mContext);
+        assertFalse(catalog.contains(TestUpdates.create(0)));
+        catalog.mergePage(1, TestUpdates.createUpdates(0, 5), true);
+        assertTrue(catalog.contains(TestUpdates.create(0)));
+        // The date and URL don't matter
+        UpdateInfo ui = TestUpdates.create(0);
+        assertTrue(catalog.contains(new UpdateInfo(ui.getFileName(), ui.getDate() + 1, 22,
+                "http://mirror.example.org/" + ui.getFileName(), ui.getMD5Sum(),
+                UpdateInfo.Type.NIGHTLY)));
+
+        assertFalse(catalog.contains(TestUpdates.create(0, 0, "1")));
+        assertFalse(catalog.contains(TestUpdates.create(5)));
+        assertFalse(catalog.contains(new UpdateInfo(ui.getFileName(), ui.getDate(), 22,
+                ui.getDownloadUrl(), ui.getMD5Sum(), "0a", null, UpdateInfo.Type.NIGHTLY)));
+    }
+
+    private static List<String> names(List<UpdateInfo> updates) {
+        List<String> names = new ArrayList<String>();
+        for (UpdateInfo ui : updates) {
+            names.add(ui.getFileName());
+        }
+        return names;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2015 The TeamEos Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package org.teameos.updater.misc;
+
+import junit.framework.TestCase;
+
+import org.teameos.updater.utils.BuildEnvironment;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+public class UpdateInfoTest extends TestCase {
+
+    public void testEqualsAndHashCode() {
+        UpdateInfo a = create("eos-shamu-20150621.zip", 1434843521, "http://a/", "0a");
+        UpdateInfo b = create("eos-shamu-20150621.zip", 1434843521, "http://a/", "0a");
+        assertEquals(a, b);
+        assertEquals(a.hashCode(), b.hashCode());
+
+        assertFalse(a.equals(create("eos-shamu-20150622.zip", 1434843521, "http://a/", "0a")));
+        assertFalse(a.equals(create("eos-shamu-20150621.zip", 1434843522, "http://a/", "0a")));
+        assertFalse(a.equals(create("eos-shamu-20150621.zip", 1434843521, "http://a/", "0b")));
+        assertFalse(a.equals(null));
+    }
+
+    /**
+     * Mirrors list the same build under different URLs
+     */
+    public void testUrlIgnored() {
+        UpdateInfo a = create("eos-shamu-20150621.zip", 1434843521, "http://a/", "0a");
+        UpdateInfo b = create("eos-shamu-20150621.zip", 1434843521, "http://b/", "0a");
+        assertEquals(a, b);
+        assertEquals(a.hashCode(), b.hashCode());
+    }
+
+    public void testNullFields() {
+        UpdateInfo a = new UpdateInfo("eos-shamu-20150621.zip");
+        UpdateInfo b = new UpdateInfo("eos-shamu-20150621.zip");
+        assertEquals(a, b);
+        assertEquals(a.hashCode(), b.hashCode());
+        assertFalse(a.equals(create("eos-shamu-20150621.zip", 0, null, "0a")));
+    }
+
+    public void testHashSet() {
+        Set<UpdateInfo> set = new HashSet<UpdateInfo>();
+        for (int i = 0; i < 10000; i++) {
+            set.add(create("eos-shamu-" + i + ".zip", i, "http://a/", "0a"));
+        }
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(set.contains(create("eos-shamu-" + i + ".zip", i, "http://b/", "0a")));
+        }
+        assertFalse(set.contains(create("eos-shamu-1.zip", 2, "http://a/", "0a")));
+    }
+
+    /**
+     * Name and age are judged against the environment the update was created with
+     */
+    public void testEnvironment() {
+        BuildEnvironment env = new BuildEnvironment("flo+", "eos-flo+-20150621", 22,
+                1434843521, "http://a.example/", "v1/files/file_list/",
+                Collections.<String> emptyList());
+        UpdateInfo newer = new UpdateInfo(env, "eos-flo+-20150622.zip", 1434929921, 22,
+                null, "0a", null, null, UpdateInfo.Type.NIGHTLY);
+        assertEquals("eos20150622", newer.getName());
+        assertTrue(newer.isNewerThanInstalled());
+
+        UpdateInfo older = new UpdateInfo(env, "eos-flo+-20150620.zip", 1434757121, 22,
+                null, "0a", null, null, UpdateInfo.Type.NIGHTLY);
+        assertEquals("eos20150620", older.getName());
+        assertFalse(older.isNewerThanInstalled());
+
+        UpdateInfo nextApi = new UpdateInfo(env, "eos-flo+-20150620.zip", 1434757121, 23,
+                null, "0a", null, null, UpdateInfo.Type.NIGHTLY);
+        assertTrue(nextApi.isNewerThanInstalled());
+    }
+
+    private static UpdateInfo create(String name, long date, String url, String md5) {
+        return new UpdateInfo(name, date, 22, url != null ? url + name : null, md5,
+                UpdateInfo.Type.NIGHTLY);
+    }
+}
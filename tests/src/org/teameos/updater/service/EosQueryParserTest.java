@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2015 The TeamEos Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package org.teameos.updater.service;
+
+import junit.framework.TestCase;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.teameos.updater.misc.UpdateInfo;
+import org.teameos.updater.utils.BuildEnvironment;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class EosQueryParserTest extends TestCase {
+    private static final String BASE_URL = "http://mirror.example.org/";
+
+    // A file_list response as a debug build receives it, with info fields the parser skips
+    private static final String FIXTURE = "{"
+            + "\"data\": {"
+            + "  \"message\": \"ok\","
+            + "  \"mirrors\": [\"http://one.example.org/\", null, \"http://two.example.org/\"],"
+            + "  \"file_list\": ["
+            + "    {\"epoch\": 1434843521, \"name\": \"eos-shamu-20150621.zip\","
+            + "     \"url\": \"files/shamu/eos-shamu-20150621.zip\","
+            + "     \"md5sum\": \"2b8fd4fa9a4cd2e4a8e5b6e3c1d0f9a7\","
+            + "     \"sha256sum\": \"8f4c1a0e6f2b3d5c7a9e1b3d5f7a9c1e3b5d7f9a1c3e5b7d9f1a3c5e7b9d1f3a\","
+            + "     \"size\": 312456789, \"info\": {\"builder\": \"jenkins\", \"tags\": [1, 2]},"
+            + "     \"delta\": {\"source_epoch\": 1434757121,"
+            + "                 \"url\": \"files/shamu/eos-shamu-20150620-20150621.eosdiff\","
+            + "                 \"md5sum\": \"0c2e4a6c8e0a2c4e6a8c0e2a4c6e8a0c\", \"size\": 1048576},"
+            + "     \"changelog\": \"files/shamu/eos-shamu-20150621.changelog\"},"
+            + "    {\"epoch\": 1434757121, \"name\": \"eos-shamu-20150620.zip\","
+            + "     \"url\": \"files/shamu/eos-shamu-20150620.zip\","
+            + "     \"md5sum\": \"7c0d9e2f4a6b8c0d2e4f6a8b0c2d4e6f\", \"changelog\": null}"
+            + "  ]"
+            + "},"
+            + "\"result\": \"success\""
+            + "}";
+
+    private BuildEnvironment mEnv;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mEnv = new BuildEnvironment("shamu", "eos-shamu-20150601", 22, 1433116800,
+                BASE_URL, "v1/files/file_list/", new ArrayList<String>());
+    }
+
+    public void testMatchesTreeParser() throws Exception {
+        EosQueryParser parser = new EosQueryParser(mEnv, BASE_URL);
+        Collector collector = new Collector();
+        assertTrue(parser.parse(stream(FIXTURE), collector));
+        List<UpdateInfo> updates = collector.mUpdates;
+        assertEquals("success", parser.getResult());
+        assertEquals("ok", parser.getMessage());
+        assertEquals(Arrays.asList("http://one.example.org/", "http://two.example.org/"),
+                parser.getMirrors());
+        assertEquals(2, parser.getCount());
+
+        // What the JSONObject based parser of older versions made of the same document
+        JSONArray fileList = new JSONObject(FIXTURE).getJSONObject("data")
+                .getJSONArray("file_list");
+        assertEquals(fileList.length(), updates.size());
+        for (int i = 0; i < fileList.length(); i++) {
+            JSONObject file = fileList.getJSONObject(i);
+            UpdateInfo ui = updates.get(i);
+            assertEquals(file.getString("name"), ui.getFileName());
+            assertEquals(file.getLong("epoch"), ui.getDate());
+            assertEquals(BASE_URL + file.getString("url"), ui.getDownloadUrl());
+            assertEquals(file.getString("md5sum"), ui.getMD5Sum());
+            assertEquals(file.has("sha256sum") ? file.getString("sha256sum") : null,
+                    ui.getSHA256Sum());
+            assertNull(ui.getSHA512Sum());
+            assertEquals(UpdateInfo.Type.NIGHTLY, ui.getType());
+
+            JSONObject delta = file.optJSONObject("delta");
+            if (delta != null) {
+                assertEquals(BASE_URL + delta.getString("url"), ui.getDeltaUrl());
+                assertEquals(delta.getLong("source_epoch"), ui.getDeltaSourceDate());
+                assertEquals(delta.getString("md5sum"), ui.getDeltaMD5Sum());
+            } else {
+                assertNull(ui.getDeltaUrl());
+            }
+            if (!file.isNull("changelog")) {
+                assertEquals(BASE_URL + file.getString("changelog"), ui.getChangeLogUrl());
+            } else {
+                assertNull(ui.getChangeLogUrl());
+            }
+        }
+    }
+
+    public void testResultAfterFailedData() throws Exception {
+        EosQueryParser parser = new EosQueryParser(mEnv, BASE_URL);
+        assertFalse(parser.parse(stream(
+                "{\"data\": {\"message\": \"maintenance\"}, \"result\": \"failed\"}"),
+                new Collector()));
+        assertEquals("maintenance", parser.getMessage());
+        assertNull(parser.getMirrors());
+        assertEquals(0, parser.getCount());
+    }
+
+    public void testEmptyFileList() throws Exception {
+        EosQueryParser parser = new EosQueryParser(mEnv, BASE_URL);
+        assertTrue(parse(parser, "{\"result\": \"success\", \"data\": {\"file_list\": []}}")
+                .isEmpty());
+    }
+
+    public void testMissingResult() throws Exception {
+        assertRejected("{\"data\": {\"file_list\": []}}");
+    }
+
+    public void testNonNumericEpoch() throws Exception {
+        assertBadEpoch(entry("\"epoch\": \"yesterday\""));
+        assertBadEpoch(entry("\"epoch\": 1434843521.5"));
+        assertBadEpoch(entry("\"epoch\": [1434843521]"));
+        assertBadEpoch(entry("\"epoch\": 1434843521, \"delta\": {\"source_epoch\": true,"
+                + " \"url\": \"d.eosdiff\"}"));
+    }
+
+    public void testIncompleteEntry() throws Exception {
+        assertRejected(fileList("{\"name\": \"a.zip\", \"url\": \"a.zip\", \"md5sum\": \"0\"}"));
+        assertRejected(fileList("{\"epoch\": 1, \"url\": \"a.zip\", \"md5sum\": \"0\"}"));
+        assertRejected(fileList("{\"epoch\": 1, \"name\": \"a.zip\", \"md5sum\": \"0\"}"));
+        assertRejected(fileList("{\"epoch\": 1, \"name\": \"a.zip\", \"url\": \"a.zip\","
+                + " \"md5sum\": null}"));
+    }
+
+    public void testWrongTypes() throws Exception {
+        assertRejected(entry("\"epoch\": 1, \"name\": {\"a\": 1}"));
+        assertRejected(fileList("\"a.zip\""));
+        assertRejected("[]");
+        assertRejected("{\"result\": [\"success\"], \"data\": {}}");
+    }
+
+    public void testTruncated() throws Exception {
+        assertRejected(FIXTURE.substring(0, FIXTURE.length() / 2));
+        assertRejected("");
+    }
+
+    /**
+     * A document with a single file entry, the given fields followed by the
+     * required ones
+     */
+    private static String entry(String fields) {
+        return fileList("{" + fields + ", \"name\": \"a.zip\", \"url\": \"a.zip\","
+                + " \"md5sum\": \"0\"}");
+    }
+
+    private static String fileList(String entries) {
+        return "{\"result\": \"success\", \"data\": {\"file_list\": [" + entries + "]}}";
+    }
+
+    /**
+     * Malformed responses must fail the check with what the service catches:
+     * an IOException, or the IllegalStateException JsonReader throws for
+     * values of the wrong type
+     */
+    private void assertRejected(String json) {
+        try {
+            parse(new EosQueryParser(mEnv, BASE_URL), json);
+            fail("Accepted " + json);
+        } catch (IOException e) {
+            // expected
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Unlike other values of the wrong type, bad epochs must not escape as
+     * unchecked exceptions
+     */
+    private void assertBadEpoch(String json) {
+        try {
+            parse(new EosQueryParser(mEnv, BASE_URL), json);
+            fail("Accepted " + json);
+        } catch (IOException e) {
+            assertEquals("Bad epoch in file_list entry", e.getMessage());
+        }
+    }
+
+    private static List<UpdateInfo> parse(EosQueryParser parser, String json)
+            throws IOException {
+        Collector collector = new Collector();
+        parser.parse(stream(json), collector);
+        return collector.mUpdates;
+    }
+
+    private static ByteArrayInputStream stream(String json) throws IOException {
+        return new ByteArrayInputStream(json.getBytes("UTF-8"));
+    }
+
+    private static final class Collector implements EosQueryParser.OnUpdateParsedListener {
+        final List<UpdateInfo> mUpdates = new ArrayList<UpdateInfo>();
+
+        @Override
+        public void onUpdateParsed(UpdateInfo info) {
+            mUpdates.add(info);
+        }
+    }
+}
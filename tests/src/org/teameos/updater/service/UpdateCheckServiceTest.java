@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2015 The TeamEos Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package org.teameos.updater.service;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import org.teameos.updater.TestContext;
+import org.teameos.updater.TestServer;
+import org.teameos.updater.UpdateApplication;
+import org.teameos.updater.misc.UpdateCatalog;
+import org.teameos.updater.misc.UpdateInfo;
+import org.teameos.updater.utils.BuildEnvironment;
+import org.teameos.updater.utils.Mirrors;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the file list query of UpdateCheckService against local servers
+ */
+public class UpdateCheckServiceTest extends AndroidTestCase {
+    private static final String FILE_LIST = "{\"result\": \"success\", \"data\": {\"file_list\": ["
+            + "{\"epoch\": 1434843521, \"name\": \"eos-shamu-20150621.zip\","
+            + " \"url\": \"files/eos-shamu-20150621.zip\","
+            + " \"md5sum\": \"2b8fd4fa9a4cd2e4a8e5b6e3c1d0f9a7\"},"
+            + "{\"epoch\": 1434757121, \"name\": \"eos-shamu-20150620.zip\","
+            + " \"url\": \"files/eos-shamu-20150620.zip\","
+            + " \"md5sum\": \"7c0d9e2f4a6b8c0d2e4f6a8b0c2d4e6f\"}"
+            + "]}}";
+
+    private TestContext mContext;
+    private SharedPreferences mPrefs;
+    private List<TestServer> mServers = new ArrayList<TestServer>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = new TestContext(getContext());
+        mPrefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (TestServer server : mServers) {
+            server.shutdown();
+        }
+        mContext.delete();
+        super.tearDown();
+    }
+
+    /**
+     * A mirror with a server error is charged for it and the next one answers
+     */
+    public void testFailover() throws Exception {
+        TestServer failing = createServer();
+        failing.setStatus(503);
+        TestServer good = createServer();
+        BuildEnvironment env = createEnvironment(failing, good);
+        // Measured, so the query asks the failing one first and nothing is probed
+        Mirrors.recordResponse(mContext, failing.getUrl(), 10);
+        Mirrors.recordResponse(mContext, good.getUrl(), 100);
+
+        List<UpdateInfo> updates = new TestService(env, mContext).getUpdateInfo(mPrefs, 1, false);
+        assertAnsweredBy(good, updates);
+        assertEquals(1, failing.getRequestCount());
+        assertEquals(Arrays.asList(good.getUrl(), failing.getUrl()),
+                Mirrors.getRanked(mContext, env));
+    }
+
+    /**
+     * A missing file list is not the mirror's fault, it keeps its place
+     */
+    public void testNotFound() throws Exception {
+        TestServer missing = createServer();
+        missing.setStatus(404);
+        TestServer good = createServer();
+        BuildEnvironment env = createEnvironment(missing, good);
+        Mirrors.recordResponse(mContext, missing.getUrl(), 10);
+        Mirrors.recordResponse(mContext, good.getUrl(), 100);
+
+        List<UpdateInfo> updates = new TestService(env, mContext).getUpdateInfo(mPrefs, 1, false);
+        assertAnsweredBy(good, updates);
+        assertEquals(Arrays.asList(missing.getUrl(), good.getUrl()),
+                Mirrors.getRanked(mContext, env));
+    }
+
+    /**
+     * A mirror that doesn't answer in time is left for the next one
+     */
+    @LargeTest
+    public void testTimeout() throws Exception {
+        TestServer slow = createServer();
+        slow.setLatency(20000);
+        TestServer good = createServer();
+        BuildEnvironment env = createEnvironment(slow, good);
+        Mirrors.recordResponse(mContext, slow.getUrl(), 10);
+        Mirrors.recordResponse(mContext, good.getUrl(), 100);
+
+        long start = System.currentTimeMillis();
+        List<UpdateInfo> updates = new TestService(env, mContext).getUpdateInfo(mPrefs, 1, false);
+        assertTrue(System.currentTimeMillis() - start < 15000);
+        assertAnsweredBy(good, updates);
+        assertEquals(good.getUrl(), Mirrors.getRanked(mContext, env).get(0));
+    }
+
+    public void testAllFailing() throws Exception {
+        TestServer first = createServer();
+        first.setStatus(503);
+        TestServer second = createServer();
+        second.setStatus(502);
+        BuildEnvironment env = createEnvironment(first, second);
+        Mirrors.recordResponse(mContext, first.getUrl(), 10);
+        Mirrors.recordResponse(mContext, second.getUrl(), 100);
+
+        try {
+            new TestService(env, mContext).getUpdateInfo(mPrefs, 1, false);
+            fail("No mirror answered, yet the query succeeded");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(1, first.getRequestCount());
+        assertEquals(1, second.getRequestCount());
+    }
+
+    /**
+     * A 304 leaves the catalog as it is, the updates it returns are the ones
+     * the catalog already had rather than parsed again
+     */
+    public void testNotModified() throws Exception {
+        TestServer server = createServer();
+        server.setETag("\"v1\"");
+        BuildEnvironment env = new BuildEnvironment("shamu", "eos-shamu-20150601", 22,
+                1433116800, server.getUrl(), "v1/files/file_list/", new ArrayList<String>());
+        // Measured, so no probe goes to the server in between
+        Mirrors.recordResponse(mContext, server.getUrl(), 10);
+        TestService service = new TestService(env, mContext);
+        UpdateCatalog catalog = service.getCatalog();
+
+        List<UpdateInfo> updates = service.getAvailableUpdatesAndFillIntent(new Intent());
+        assertAnsweredBy(server, updates);
+        List<UpdateInfo> cached = catalog.getUpdates();
+        int version = catalog.getVersion();
+
+        Intent intent = new Intent();
+        updates = service.getAvailableUpdatesAndFillIntent(intent);
+        assertEquals("\"v1\"", server.getLastHeader("If-None-Match"));
+        assertEquals(2, server.getRequestCount());
+        assertEquals(version, catalog.getVersion());
+        assertEquals(cached.size(), updates.size());
+        for (int i = 0; i < cached.size(); i++) {
+            assertSame(cached.get(i), updates.get(i));
+        }
+        assertEquals(2, intent.getIntExtra(UpdateCheckService.EXTRA_UPDATE_COUNT, -1));
+        assertEquals(0, intent.getIntExtra(UpdateCheckService.EXTRA_NEW_UPDATE_COUNT, -1));
+    }
+
+    private static void assertAnsweredBy(TestServer server, List<UpdateInfo> updates) {
+        assertEquals(2, updates.size());
+        for (UpdateInfo ui : updates) {
+            assertTrue(ui.getDownloadUrl(), ui.getDownloadUrl().startsWith(server.getUrl()));
+        }
+    }
+
+    private TestServer createServer() throws IOException {
+        TestServer server = new TestServer(FILE_LIST.getBytes("UTF-8"));
+        mServers.add(server);
+        return server;
+    }
+
+    private static BuildEnvironment createEnvironment(TestServer server, TestServer mirror) {
+        return new BuildEnvironment("shamu", "eos-shamu-20150601", 22, 1433116800,
+                server.getUrl(), "v1/files/file_list/", Arrays.asList(mirror.getUrl()));
+    }
+
+    /**
+     * The service running in the test's context instead of being started
+     */
+    private static class TestService extends UpdateCheckService {
+        private final TestApplication mApplication;
+
+        TestService(BuildEnvironment env, Context base) {
+            super(env);
+            attachBaseContext(base);
+            mApplication = new TestApplication(base);
+        }
+
+        @Override
+        public Context getApplicationContext() {
+            return mApplication;
+        }
+
+        UpdateCatalog getCatalog() {
+            return mApplication.getCatalog();
+        }
+    }
+
+    private static class TestApplication extends UpdateApplication {
+        TestApplication(Context base) {
+            attachBaseContext(base);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2015 The TeamEos Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package org.teameos.updater.utils;
+
+import junit.framework.TestCase;
+
+import java.util.Collections;
+
+public class BuildEnvironmentTest extends TestCase {
+    private static final long BUILD_DATE = 1434843521L;
+
+    public void testUiName() {
+        BuildEnvironment env = create("shamu");
+        assertEquals("eos20150621", env.extractUiName("eos-shamu-20150621.zip"));
+        assertEquals("eos", env.extractUiName("eos-shamu.zip"));
+        assertEquals("eos-hammerhead-20150621",
+                env.extractUiName("eos-hammerhead-20150621.zip"));
+        // Only the extension at the end goes
+        assertEquals("eos.zip20150621", env.extractUiName("eos.zip-shamu-20150621"));
+    }
+
+    /**
+     * The device type is matched literally, not as a pattern
+     */
+    public void testUiNameQuoted() {
+        BuildEnvironment env = create("flo+");
+        assertEquals("eos20150621", env.extractUiName("eos-flo+-20150621.zip"));
+        assertEquals("eos-floo-20150621", env.extractUiName("eos-floo-20150621.zip"));
+
+        env = create("m.ko");
+        assertEquals("eos20150621", env.extractUiName("eos-m.ko-20150621.zip"));
+        assertEquals("eos-mako-20150621", env.extractUiName("eos-mako-20150621.zip"));
+    }
+
+    public void testNewerThanInstalled() {
+        BuildEnvironment env = create("shamu");
+        assertTrue(env.isNewerThanInstalled(22, BUILD_DATE + 1));
+        assertFalse(env.isNewerThanInstalled(22, BUILD_DATE));
+        assertFalse(env.isNewerThanInstalled(22, BUILD_DATE - 1));
+
+        // A different API level decides regardless of the date
+        assertTrue(env.isNewerThanInstalled(23, BUILD_DATE - 1));
+        assertFalse(env.isNewerThanInstalled(21, BUILD_DATE + 1));
+
+        // Unknown API level, only the date counts
+        assertTrue(env.isNewerThanInstalled(0, BUILD_DATE + 1));
+        assertFalse(env.isNewerThanInstalled(0, BUILD_DATE - 1));
+    }
+
+    private static BuildEnvironment create(String device) {
+        return new BuildEnvironment(device, "eos-" + device + "-20150621", 22, BUILD_DATE,
+                "http://a.example/", "v1/files/file_list/", Collections.<String> emptyList());
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2015 The TeamEos Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package org.teameos.updater.utils;
+
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.test.AndroidTestCase;
+
+import org.teameos.updater.TestContext;
+import org.teameos.updater.misc.Constants;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+public class CheckSchedulerTest extends AndroidTestCase {
+    private static final long MINUTE = 60 * 1000;
+    private static final long HOUR = 60 * MINUTE;
+    private static final long DAY = 24 * HOUR;
+    private static final long WEEK = 7 * DAY;
+
+    // An arbitrary point in time the last check happened at
+    private static final long LAST = 1434843521000L;
+
+    private TestContext mContext;
+    private SharedPreferences mPrefs;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = new TestContext(getContext());
+        mPrefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.delete();
+        super.tearDown();
+    }
+
+    /**
+     * A period after the last check, late by at most a tenth of it or two hours
+     */
+    public void testJitter() {
+        mPrefs.edit().putLong(Constants.LAST_UPDATE_CHECK_PREF, LAST).apply();
+        for (float seed : new float[] {
+                0f, 0.25f, 0.5f, 0.999f
+        }) {
+            setSeed(seed);
+            for (long period : new long[] {
+                    HOUR, 12 * HOUR, DAY, WEEK
+            }) {
+                long jitter = CheckScheduler.getNextCheckTime(mPrefs, period) - LAST - period;
+                long max = Math.min(period / 10, 2 * HOUR);
+                assertTrue("seed " + seed + ": " + jitter, jitter >= 0 && jitter < max);
+                assertTrue(Math.abs((long) (seed * max) - jitter) < 1000);
+            }
+        }
+    }
+
+    /**
+     * Devices pick their offset once and keep it
+     */
+    public void testSeedStored() {
+        mPrefs.edit().putLong(Constants.LAST_UPDATE_CHECK_PREF, LAST).apply();
+        long next = CheckScheduler.getNextCheckTime(mPrefs, DAY);
+        float seed = mPrefs.getFloat(Constants.CHECK_JITTER_SEED, -1f);
+        assertTrue(seed >= 0f && seed < 1f);
+        assertEquals(next, CheckScheduler.getNextCheckTime(mPrefs, DAY));
+
+        // An out of range seed is replaced
+        setSeed(1.5f);
+        CheckScheduler.getNextCheckTime(mPrefs, DAY);
+        seed = mPrefs.getFloat(Constants.CHECK_JITTER_SEED, -1f);
+        assertTrue(seed >= 0f && seed < 1f);
+    }
+
+    /**
+     * Retries start at 15 minutes and double, each lands in the second half
+     * of its backoff
+     */
+    public void testBackoffDoubles() {
+        setSeed(0.3f);
+        long backoff = 15 * MINUTE;
+        for (int failures = 1; failures <= 6; failures++) {
+            setFailures(failures);
+            long delay = CheckScheduler.getNextCheckTime(mPrefs, WEEK) - LAST;
+            assertTrue(failures + " failures: " + delay,
+                    delay >= backoff / 2 && delay <= backoff);
+            backoff *= 2;
+        }
+    }
+
+    /**
+     * The backoff never exceeds 12 hours, nor the period itself
+     */
+    public void testBackoffCap() {
+        setSeed(0.99f);
+        for (int failures : new int[] {
+                7, 10, 20, 1000
+        }) {
+            setFailures(failures);
+            long delay = CheckScheduler.getNextCheckTime(mPrefs, WEEK) - LAST;
+            assertTrue(failures + " failures: " + delay,
+                    delay >= 6 * HOUR && delay <= 12 * HOUR);
+            delay = CheckScheduler.getNextCheckTime(mPrefs, 2 * HOUR) - LAST;
+            assertTrue(failures + " failures: " + delay, delay >= HOUR && delay <= 2 * HOUR);
+        }
+    }
+
+    public void testRetryAfterSeconds() {
+        long before = System.currentTimeMillis();
+        CheckScheduler.setRetryAfter(mContext, " 3600 ");
+        long notBefore = mPrefs.getLong(Constants.CHECK_NOT_BEFORE, 0);
+        assertTrue(notBefore >= before + HOUR && notBefore <= System.currentTimeMillis() + HOUR);
+    }
+
+    public void testRetryAfterDate() {
+        long when = (System.currentTimeMillis() + DAY) / 1000 * 1000;
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz",
+                Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        CheckScheduler.setRetryAfter(mContext, format.format(new Date(when)));
+        assertEquals(when, mPrefs.getLong(Constants.CHECK_NOT_BEFORE, 0));
+    }
+
+    /**
+     * A server can't put checks off for more than a week
+     */
+    public void testRetryAfterCap() {
+        long before = System.currentTimeMillis();
+        CheckScheduler.setRetryAfter(mContext, String.valueOf(365 * DAY / 1000));
+        long notBefore = mPrefs.getLong(Constants.CHECK_NOT_BEFORE, 0);
+        assertTrue(notBefore >= before + WEEK && notBefore <= System.currentTimeMillis() + WEEK);
+    }
+
+    public void testRetryAfterIgnored() {
+        CheckScheduler.setRetryAfter(mContext, null);
+        CheckScheduler.setRetryAfter(mContext, "soon");
+        assertFalse(mPrefs.contains(Constants.CHECK_NOT_BEFORE));
+    }
+
+    /**
+     * Neither a regular check nor a retry undercuts a Retry-After
+     */
+    public void testRetryAfterHonored() {
+        setSeed(0f);
+        mPrefs.edit()
+                .putLong(Constants.LAST_UPDATE_CHECK_PREF, LAST)
+                .putLong(Constants.CHECK_NOT_BEFORE, LAST + 3 * DAY)
+                .apply();
+        assertEquals(LAST + 3 * DAY, CheckScheduler.getNextCheckTime(mPrefs, DAY));
+        // A later check time stands
+        assertEquals(LAST + WEEK, CheckScheduler.getNextCheckTime(mPrefs, WEEK));
+
+        setFailures(1);
+        assertEquals(LAST + 3 * DAY, CheckScheduler.getNextCheckTime(mPrefs, DAY));
+    }
+
+    private void setSeed(float seed) {
+        mPrefs.edit().putFloat(Constants.CHECK_JITTER_SEED, seed).apply();
+    }
+
+    private void setFailures(int failures) {
+        mPrefs.edit()
+                .putInt(Constants.CHECK_FAILURES, failures)
+                .putLong(Constants.LAST_CHECK_FAILURE, LAST)
+                .apply();
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2015 The TeamEos Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package org.teameos.updater.utils;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class DeltaPatchTest extends TestCase {
+    private File mOld;
+    private File mPatch;
+    private File mTarget;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mOld = File.createTempFile("old", ".zip");
+        mPatch = File.createTempFile("delta", ".eosdiff");
+        mTarget = File.createTempFile("new", ".zip");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mOld.delete();
+        mPatch.delete();
+        mTarget.delete();
+        super.tearDown();
+    }
+
+    /**
+     * Two builds that share most entries, the way consecutive nightlies do
+     */
+    public void testConsecutiveBuilds() throws Exception {
+        byte[] oldZip = createZip(200, 0);
+        byte[] newZip = createZip(230, 7);
+        assertRoundTrip(oldZip, newZip, new Random(7));
+    }
+
+    public void testIdentical() throws Exception {
+        byte[] zip = createZip(20, 0);
+        assertRoundTrip(zip, zip, new Random(8));
+    }
+
+    public void testEmptyTarget() throws Exception {
+        assertRoundTrip(createZip(5, 0), new byte[0], new Random(9));
+    }
+
+    /**
+     * Records reaching outside the old file treat its bytes as zero
+     */
+    public void testOutsideOldFile() throws Exception {
+        byte[] oldData = new byte[1000];
+        new Random(10).nextBytes(oldData);
+        byte[] newData = new byte[5000];
+        new Random(11).nextBytes(newData);
+        writeFile(mOld, oldData);
+        writePatch(newData, oldData, new long[][] {
+                {
+                        100, 0, -300
+                }, {
+                        600, 50, 1500
+                }, {
+                        4250, 0, 0
+                }
+        });
+        assertEquals(md5(newData), new DeltaPatch(mOld, mPatch).apply(mTarget));
+        assertTrue(Arrays.equals(newData, readFile(mTarget)));
+    }
+
+    public void testBadMagic() throws Exception {
+        writeFile(mOld, new byte[10]);
+        writeFile(mPatch, "BSDIFF40\0\0\0\0\0\0\0\0".getBytes("US-ASCII"));
+        assertRejected();
+    }
+
+    public void testCorruptRecord() throws Exception {
+        byte[] oldData = new byte[100];
+        byte[] newData = new byte[100];
+        writeFile(mOld, oldData);
+        // The record claims more than the new file holds
+        writePatch(newData, oldData, new long[][] {
+                {
+                        90, 20, 0
+                }
+        });
+        assertRejected();
+    }
+
+    public void testTruncated() throws Exception {
+        byte[] oldZip = createZip(20, 0);
+        byte[] newZip = createZip(20, 3);
+        writeFile(mOld, oldZip);
+        writePatch(newZip, oldZip, createRecords(newZip.length, new Random(12)));
+        byte[] patch = readFile(mPatch);
+        writeFile(mPatch, Arrays.copyOf(patch, patch.length / 2));
+        assertRejected();
+    }
+
+    public void testCorruptStream() throws Exception {
+        byte[] oldZip = createZip(20, 0);
+        byte[] newZip = createZip(20, 3);
+        writeFile(mOld, oldZip);
+        writePatch(newZip, oldZip, createRecords(newZip.length, new Random(13)));
+        RandomAccessFile patch = new RandomAccessFile(mPatch, "rw");
+        try {
+            patch.seek(20);
+            patch.write(patch.read() ^ 0x55);
+        } finally {
+            patch.close();
+        }
+        assertRejected();
+    }
+
+    public void testCancel() throws Exception {
+        byte[] oldZip = createZip(20, 0);
+        writeFile(mOld, oldZip);
+        writePatch(oldZip, oldZip, createRecords(oldZip.length, new Random(14)));
+        DeltaPatch patch = new DeltaPatch(mOld, mPatch);
+        patch.cancel();
+        assertTrue(patch.isCancelled());
+        try {
+            patch.apply(mTarget);
+            fail("Cancelled patch applied");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private void assertRoundTrip(byte[] oldData, byte[] newData, Random random)
+            throws Exception {
+        writeFile(mOld, oldData);
+        writePatch(newData, oldData, createRecords(newData.length, random));
+        assertEquals(md5(newData), new DeltaPatch(mOld, mPatch).apply(mTarget));
+        assertTrue(Arrays.equals(newData, readFile(mTarget)));
+    }
+
+    private void assertRejected() {
+        try {
+            new DeltaPatch(mOld, mPatch).apply(mTarget);
+            fail("Applied a bad patch");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Random records covering the new file, with seeks both ways
+     */
+    private static long[][] createRecords(int newSize, Random random) {
+        List<long[]> records = new ArrayList<long[]>();
+        int position = 0;
+        while (position < newSize || records.isEmpty()) {
+            int diff = Math.min(newSize - position, 1 + random.nextInt(150000));
+            int extra = Math.min(newSize - position - diff, random.nextInt(50));
+            long seek = random.nextInt(200) - 100;
+            records.add(new long[] {
+                    diff, extra, seek
+            });
+            position += diff + extra;
+        }
+        return records.toArray(new long[records.size()][]);
+    }
+
+    /**
+     * Write a patch from oldData to newData with the given diff length, extra
+     * length and seek records. Records reaching past newData pad it with zeros.
+     */
+    private void writePatch(byte[] newData, byte[] oldData, long[][] records)
+            throws IOException {
+        DataOutputStream header = new DataOutputStream(new FileOutputStream(mPatch));
+        header.write("EOSDIFF1".getBytes("US-ASCII"));
+        header.writeLong(newData.length);
+        DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(header));
+        try {
+            int newPos = 0;
+            long oldPos = 0;
+            for (long[] record : records) {
+                int diff = (int) record[0];
+                int extra = (int) record[1];
+                out.writeLong(diff);
+                out.writeLong(extra);
+                out.writeLong(record[2]);
+                for (int i = 0; i < diff; i++) {
+                    long pos = oldPos + i;
+                    int old = pos >= 0 && pos < oldData.length ? oldData[(int) pos] : 0;
+                    byte value = newPos + i < newData.length ? newData[newPos + i] : 0;
+                    out.write(value - old);
+                }
+                for (int i = 0; i < extra; i++) {
+                    out.write(newPos + diff + i < newData.length ? newData[newPos + diff + i] : 0);
+                }
+                newPos += diff + extra;
+                oldPos += diff + record[2];
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * A zip of pseudo random entries; entries divisible by every are changed
+     */
+    private static byte[] createZip(int entries, int every) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream zip = new ZipOutputStream(bytes);
+        try {
+            for (int i = 0; i < entries; i++) {
+                zip.putNextEntry(new ZipEntry("system/app/" + i + ".apk"));
+                byte[] data = new byte[2000 + i * 100];
+                new Random(i).nextBytes(data);
+                if (every > 0 && i % every == 0) {
+                    data[5] ^= 1;
+                }
+                zip.write(data);
+                zip.closeEntry();
+            }
+        } finally {
+            zip.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    private static String md5(byte[] data) throws Exception {
+        return MD5.toHex(MessageDigest.getInstance("MD5").digest(data));
+    }
+
+    private static void writeFile(File file, byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < data.length) {
+                offset += in.read(data, offset, data.length - offset);
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2015 The TeamEos Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package org.teameos.updater.utils;
+
+import junit.framework.TestCase;
+
+import org.teameos.updater.TestServer;
+
+import java.net.HttpURLConnection;
+
+public class HttpTest extends TestCase {
+    private static final String BODY = "{\"result\": \"success\", \"data\": {\"file_list\": []}}";
+
+    private TestServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new TestServer(BODY.getBytes("UTF-8"));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    /**
+     * The check sends the validators of the last response back; an unchanged
+     * list costs a 304 without a body, so there is nothing to parse
+     */
+    public void testNotModified() throws Exception {
+        mServer.setETag("\"list-1\"");
+        Http.Response response = new Http.Call(mServer.getUrl() + "query").execute();
+        String etag;
+        try {
+            assertEquals(HttpURLConnection.HTTP_OK, response.getCode());
+            assertEquals(BODY, response.readString());
+            etag = response.getHeader("ETag");
+            assertEquals("\"list-1\"", etag);
+        } finally {
+            response.close();
+        }
+
+        response = new Http.Call(mServer.getUrl() + "query")
+                .header("If-None-Match", etag)
+                .execute();
+        try {
+            assertEquals(etag, mServer.getLastHeader("If-None-Match"));
+            assertEquals(HttpURLConnection.HTTP_NOT_MODIFIED, response.getCode());
+            assertEquals(0, response.getDecodedBytes());
+            assertEquals(-1, response.getBody().read());
+            assertEquals(0, response.getTransferredBytes());
+        } finally {
+            response.close();
+        }
+        assertEquals(2, mServer.getRequestCount());
+    }
+
+    public void testModified() throws Exception {
+        mServer.setETag("\"list-2\"");
+        Http.Response response = new Http.Call(mServer.getUrl() + "query")
+                .header("If-None-Match", "\"list-1\"")
+                .execute();
+        try {
+            assertEquals(HttpURLConnection.HTTP_OK, response.getCode());
+            assertEquals(BODY, response.readString());
+            assertEquals(BODY.length(), response.getDecodedBytes());
+        } finally {
+            response.close();
+        }
+    }
+
+    public void testNullHeaderIgnored() throws Exception {
+        new Http.Call(mServer.getUrl()).header("If-Modified-Since", null).execute().close();
+        assertNull(mServer.getLastHeader("If-Modified-Since"));
+    }
+
+    public void testRange() throws Exception {
+        Http.Response response = new Http.Call(mServer.getUrl())
+                .header("Range", "bytes=10-")
+                .execute();
+        try {
+            assertEquals(HttpURLConnection.HTTP_PARTIAL, response.getCode());
+            assertEquals(BODY.substring(10), response.readString());
+        } finally {
+            response.close();
+        }
+    }
+
+    public void testErrorBody() throws Exception {
+        mServer.setStatus(HttpURLConnection.HTTP_UNAVAILABLE);
+        Http.Response response = new Http.Call(mServer.getUrl()).execute();
+        try {
+            assertEquals(HttpURLConnection.HTTP_UNAVAILABLE, response.getCode());
+            assertEquals("", response.readString());
+        } finally {
+            response.close();
+        }
+    }
+}
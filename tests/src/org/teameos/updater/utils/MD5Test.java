@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2015 The TeamEos Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package org.teameos.updater.utils;
+
+import android.os.SystemProperties;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Random;
+
+public class MD5Test extends TestCase {
+    private static final String TAG = "MD5Test";
+
+    private static final int KB = 1024;
+    private static final int MB = 1024 * KB;
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = File.createTempFile("md5", ".zip");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    /**
+     * Sizes around the window boundaries, where a mapping ends and the next begins
+     */
+    public void testMatchesMessageDigest() throws Exception {
+        int[] windows = {
+                64 * KB, MB
+        };
+        int[] sizes = {
+                0, 1, 64 * KB - 1, 64 * KB, 64 * KB + 1, MB - 1, MB, MB + 1, 3 * MB + 4321
+        };
+        Random random = new Random(5);
+        for (int size : sizes) {
+            byte[] data = new byte[size];
+            random.nextBytes(data);
+            writeFile(mFile, data);
+            String expected = MD5.toHex(MessageDigest.getInstance("MD5").digest(data));
+            assertEquals("size " + size + " stream", expected,
+                    MD5.calculateMD5(mFile, Verifier.STREAM));
+            for (int window : windows) {
+                assertEquals("size " + size + " window " + window, expected,
+                        MD5.calculateMD5(mFile, window));
+            }
+        }
+    }
+
+    public void testMissingFile() {
+        mFile.delete();
+        assertNull(MD5.calculateMD5(mFile, MB));
+        assertFalse(MD5.checkMD5("d41d8cd98f00b204e9800998ecf8427e", mFile));
+    }
+
+    public void testToHex() {
+        assertEquals("", MD5.toHex(new byte[0]));
+        // Leading zeros must be kept, the digests are compared as strings
+        assertEquals("000fa0ff", MD5.toHex(new byte[] {
+                0x00, 0x0f, (byte) 0xa0, (byte) 0xff
+        }));
+        char[] out = new char[6];
+        MD5.toHex(new byte[] {
+                0x12, 0x34
+        }, out);
+        assertEquals("1234", new String(out, 0, 4));
+    }
+
+    public void testCheckMD5() throws Exception {
+        writeFile(mFile, new byte[0]);
+        assertTrue(MD5.checkMD5("d41d8cd98f00b204e9800998ecf8427e", mFile));
+        assertTrue(MD5.checkMD5(" D41D8CD98F00B204E9800998ECF8427E\n", mFile));
+        assertFalse(MD5.checkMD5("d41d8cd98f00b204e9800998ecf8427f", mFile));
+        assertFalse(MD5.checkMD5("d41d8cd9", mFile));
+        assertFalse(MD5.checkMD5("", mFile));
+        assertFalse(MD5.checkMD5("d41d8cd98f00b204e9800998ecf8427e", (String) null));
+    }
+
+    /**
+     * Hash files of the sizes listed in MB in debug.eos.md5_bench, 100 MB to
+     * 2 GB unless set, through the stream of older versions and through
+     * windows of several sizes. Results go to the log. The largest size is
+     * above the RAM of most devices and shows the cost of a cold page cache.
+     */
+    @LargeTest
+    public void testBenchmark() throws Exception {
+        String sizes = SystemProperties.get("debug.eos.md5_bench", "100,500,1000,2000");
+        for (String size : sizes.split(",")) {
+            long length = Long.parseLong(size.trim()) * MB;
+            writeFile(mFile, length);
+
+            long start = System.nanoTime();
+            String expected = MD5.calculateMD5(mFile, Verifier.STREAM);
+            Log.i(TAG, size + " MB: stream " + (System.nanoTime() - start) / 1000000 + " ms");
+
+            for (int window : new int[] {
+                    MB, 8 * MB, 64 * MB
+            }) {
+                start = System.nanoTime();
+                assertEquals(expected, MD5.calculateMD5(mFile, window));
+                Log.i(TAG, size + " MB: " + window / MB + " MB windows "
+                        + (System.nanoTime() - start) / 1000000 + " ms");
+            }
+        }
+    }
+
+    private static void writeFile(File file, byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeFile(File file, long length) throws IOException {
+        byte[] buffer = new byte[MB];
+        Random random = new Random(6);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            for (long written = 0; written < length; written += buffer.length) {
+                random.nextBytes(buffer);
+                out.write(buffer, 0, (int) Math.min(buffer.length, length - written));
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2015 The TeamEos Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package org.teameos.updater.utils;
+
+import android.content.SharedPreferences;
+import android.test.AndroidTestCase;
+
+import org.teameos.updater.TestContext;
+import org.teameos.updater.TestServer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class MirrorsTest extends AndroidTestCase {
+    private static final String A = "http://a.example/";
+    private static final String B = "http://b.example/";
+    private static final String C = "http://c.example/eos/";
+
+    private TestContext mContext;
+    private List<TestServer> mServers = new ArrayList<TestServer>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = new TestContext(getContext());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (TestServer server : mServers) {
+            server.shutdown();
+        }
+        mContext.delete();
+        super.tearDown();
+    }
+
+    /**
+     * Before anything is measured the configured order holds
+     */
+    public void testConfiguredOrder() {
+        BuildEnvironment env = createEnvironment("http://a.example", "http://b.example/",
+                "http://c.example/eos", "http://a.example/");
+        assertEquals(Arrays.asList(A, B, C), Mirrors.getRanked(mContext, env));
+    }
+
+    public void testResponseTimes() {
+        BuildEnvironment env = createEnvironment(A, B, C);
+        Mirrors.recordResponse(mContext, A, 2000);
+        Mirrors.recordResponse(mContext, B, 400);
+        Mirrors.recordResponse(mContext, C, 50);
+        assertEquals(Arrays.asList(C, B, A), Mirrors.getRanked(mContext, env));
+    }
+
+    public void testThroughput() {
+        BuildEnvironment env = createEnvironment(A, B);
+        Mirrors.recordResponse(mContext, A, 100);
+        Mirrors.recordResponse(mContext, B, 100);
+        // Too small to say anything about the throughput
+        Mirrors.recordTransfer(mContext, B, 1024, 1);
+        assertEquals(Arrays.asList(A, B), Mirrors.getRanked(mContext, env));
+
+        Mirrors.recordTransfer(mContext, B, 8 * 1024 * 1024, 1000);
+        assertEquals(Arrays.asList(B, A), Mirrors.getRanked(mContext, env));
+    }
+
+    /**
+     * A failure drops a mirror to the end. While the average is recent, one
+     * quick answer doesn't undo it.
+     */
+    public void testFailure() {
+        BuildEnvironment env = createEnvironment(A, B, C);
+        for (String mirror : Arrays.asList(A, B, C)) {
+            Mirrors.recordResponse(mContext, mirror, 100);
+        }
+        Mirrors.recordFailure(mContext, A);
+        assertEquals(Arrays.asList(B, C, A), Mirrors.getRanked(mContext, env));
+
+        Mirrors.recordResponse(mContext, A, 50);
+        assertEquals(A, Mirrors.getRanked(mContext, env).get(2));
+        int responses = 1;
+        while (!A.equals(Mirrors.getRanked(mContext, env).get(0))) {
+            assertTrue("Mirror never recovered", responses < 30);
+            Mirrors.recordResponse(mContext, A, 50);
+            responses++;
+        }
+    }
+
+    public void testCandidates() {
+        BuildEnvironment env = createEnvironment(A, B, C);
+        Mirrors.recordResponse(mContext, A, 1000);
+        Mirrors.recordResponse(mContext, B, 500);
+        Mirrors.recordResponse(mContext, C, 100);
+
+        assertEquals(Arrays.asList(C + "files/eos.zip", B + "files/eos.zip", A + "files/eos.zip"),
+                Mirrors.getCandidates(mContext, env, A + "files/eos.zip"));
+        assertEquals(Collections.singletonList("http://d.example/files/eos.zip"),
+                Mirrors.getCandidates(mContext, env, "http://d.example/files/eos.zip"));
+
+        assertEquals(C, Mirrors.getMirror(mContext, env, C + "files/eos.zip"));
+        assertNull(Mirrors.getMirror(mContext, env, "http://d.example/files/eos.zip"));
+    }
+
+    /**
+     * Mirrors nested below another one take the URLs below them
+     */
+    public void testNestedMirror() {
+        BuildEnvironment env = createEnvironment("http://c.example/", C);
+        assertEquals(C, Mirrors.getMirror(mContext, env, C + "eos.zip"));
+        assertEquals("http://c.example/",
+                Mirrors.getMirror(mContext, env, "http://c.example/other.zip"));
+    }
+
+    public void testAnnounced() {
+        BuildEnvironment env = createEnvironment(A);
+        Mirrors.setAnnounced(mContext, Arrays.asList("http://b.example", "ftp://d.example/",
+                A, C));
+        assertEquals(Arrays.asList(A, B, C), Mirrors.getRanked(mContext, env));
+
+        // A later announcement replaces the earlier one
+        Mirrors.setAnnounced(mContext, Collections.singletonList(C));
+        assertEquals(Arrays.asList(A, C), Mirrors.getRanked(mContext, env));
+        Mirrors.setAnnounced(mContext, Collections.<String> emptyList());
+        assertEquals(Arrays.asList(A), Mirrors.getRanked(mContext, env));
+    }
+
+    public void testProbe() throws Exception {
+        TestServer slow = createServer();
+        slow.setLatency(400);
+        TestServer fast = createServer();
+        TestServer failing = createServer();
+        failing.setStatus(503);
+        TestServer gone = createServer();
+        gone.shutdown();
+
+        BuildEnvironment env = createEnvironment(gone.getUrl(), slow.getUrl(), failing.getUrl(),
+                fast.getUrl());
+        Mirrors.probe(mContext, env, "EOSUpdater/test");
+        // Both failures count the same, so the configured order decides between them
+        assertEquals(Arrays.asList(fast.getUrl(), slow.getUrl(), gone.getUrl(),
+                failing.getUrl()), Mirrors.getRanked(mContext, env));
+        assertEquals("EOSUpdater/test", fast.getLastHeader("User-Agent"));
+
+        // Measured mirrors are left alone by later probes
+        Mirrors.probe(mContext, env, "EOSUpdater/test");
+        assertEquals(1, fast.getRequestCount());
+        assertEquals(1, slow.getRequestCount());
+        assertEquals(1, failing.getRequestCount());
+    }
+
+    /**
+     * A mirror that failed is probed again once its average went stale, and
+     * takes its place back if it answers
+     */
+    public void testRecovery() throws Exception {
+        TestServer first = createServer();
+        first.setStatus(503);
+        TestServer second = createServer();
+        second.setLatency(200);
+        BuildEnvironment env = createEnvironment(first.getUrl(), second.getUrl());
+        Mirrors.probe(mContext, env, "EOSUpdater/test");
+        assertEquals(Arrays.asList(second.getUrl(), first.getUrl()),
+                Mirrors.getRanked(mContext, env));
+
+        first.setStatus(0);
+        Mirrors.probe(mContext, env, "EOSUpdater/test");
+        assertEquals(1, first.getRequestCount());
+        assertEquals(second.getUrl(), Mirrors.getRanked(mContext, env).get(0));
+
+        // Still failing when probed again, it stays down
+        first.setStatus(503);
+        ageSamples();
+        Mirrors.probe(mContext, env, "EOSUpdater/test");
+        assertEquals(2, first.getRequestCount());
+        assertEquals(2, second.getRequestCount());
+        assertEquals(second.getUrl(), Mirrors.getRanked(mContext, env).get(0));
+
+        first.setStatus(0);
+        ageSamples();
+        Mirrors.probe(mContext, env, "EOSUpdater/test");
+        assertEquals(3, first.getRequestCount());
+        assertEquals(Arrays.asList(first.getUrl(), second.getUrl()),
+                Mirrors.getRanked(mContext, env));
+    }
+
+    /**
+     * Make every average look older than the probe interval
+     */
+    private void ageSamples() {
+        SharedPreferences stats = Mirrors.getStats(mContext);
+        SharedPreferences.Editor editor = stats.edit();
+        long old = System.currentTimeMillis() - Mirrors.PROBE_INTERVAL - 1;
+        for (String key : stats.getAll().keySet()) {
+            if (key.endsWith(Mirrors.TIME_SUFFIX)) {
+                editor.putLong(key, old);
+            }
+        }
+        editor.apply();
+    }
+
+    private TestServer createServer() throws Exception {
+        TestServer server = new TestServer(new byte[16]);
+        mServers.add(server);
+        return server;
+    }
+
+    private static BuildEnvironment createEnvironment(String baseUrl, String... mirrors) {
+        return new BuildEnvironment("shamu", "20150621", 22, 1434843521L, baseUrl,
+                "api/v1/files", Arrays.asList(mirrors));
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2015 The TeamEos Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package org.teameos.updater.utils;
+
+import android.test.suitebuilder.annotation.LargeTest;
+
+import junit.framework.TestCase;
+
+import org.teameos.updater.TestServer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * Downloads from a local server that cuts connections at random points. A
+ * cut costs a retry delay, so these take a few seconds each.
+ */
+@LargeTest
+public class RangeDownloaderTest extends TestCase {
+    private static final int SIZE = 3 * 1024 * 1024 + 12345;
+
+    private byte[] mData;
+    private TestServer mServer;
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mData = new byte[SIZE];
+        new Random(3).nextBytes(mData);
+        mServer = new TestServer(mData);
+        mServer.setETag("\"v1\"");
+        mFile = File.createTempFile("download", ".partial");
+        RangeDownloader.discard(mFile);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        RangeDownloader.discard(mFile);
+        super.tearDown();
+    }
+
+    public void testSingleConnection() throws Exception {
+        mServer.setKillProbability(0.75f);
+        RangeDownloader downloader = new RangeDownloader(getUrl(), mFile, "test");
+        assertEquals(RangeDownloader.RESULT_SUCCESS, downloader.download(null));
+        assertTrue(mServer.getKillCount() > 0);
+        assertDownloaded(downloader);
+    }
+
+    public void testSegments() throws Exception {
+        mServer.setKillProbability(0.3f);
+        RangeDownloader downloader = new RangeDownloader(getUrl(), mFile, "test", 4, 0);
+        assertEquals(RangeDownloader.RESULT_SUCCESS, downloader.download(null));
+        assertDownloaded(downloader);
+    }
+
+    /**
+     * Without ranges there is one connection, and a cut one starts over
+     */
+    public void testNoRanges() throws Exception {
+        mServer.setRanges(false);
+        mServer.setKillProbability(0.5f);
+        RangeDownloader downloader = new RangeDownloader(getUrl(), mFile, "test", 4, 0);
+        assertEquals(RangeDownloader.RESULT_SUCCESS, downloader.download(null));
+        assertDownloaded(downloader);
+    }
+
+    /**
+     * A cancelled download goes on from its checkpoint, the MD5 covers the whole file
+     */
+    public void testResume() throws Exception {
+        final RangeDownloader first = new RangeDownloader(getUrl(), mFile, "test");
+        assertEquals(RangeDownloader.RESULT_CANCELLED, first.download(
+                new RangeDownloader.ProgressListener() {
+                    @Override
+                    public void onProgress(long downloaded, long total) {
+                        if (downloaded > SIZE / 2) {
+                            first.cancel();
+                        }
+                    }
+                }));
+        assertNull(first.getMD5());
+        assertTrue(RangeDownloader.getCheckpointFile(mFile).exists());
+
+        RangeDownloader second = new RangeDownloader(getUrl(), mFile, "test");
+        assertEquals(RangeDownloader.RESULT_SUCCESS, second.download(null));
+        assertTrue(second.getTransferredBytes() < SIZE);
+        assertDownloaded(second);
+    }
+
+    /**
+     * Segments that ran ahead of the hash are read back, also across a resume
+     */
+    public void testSegmentsResume() throws Exception {
+        mServer.setLatency(20);
+        final RangeDownloader first = new RangeDownloader(getUrl(), mFile, "test", 4, 0);
+        assertEquals(RangeDownloader.RESULT_CANCELLED, first.download(
+                new RangeDownloader.ProgressListener() {
+                    @Override
+                    public void onProgress(long downloaded, long total) {
+                        if (downloaded > SIZE / 2) {
+                            first.cancel();
+                        }
+                    }
+                }));
+
+        mServer.setKillProbability(0.3f);
+        RangeDownloader second = new RangeDownloader(getUrl(), mFile, "test", 4, 0);
+        assertEquals(RangeDownloader.RESULT_SUCCESS, second.download(null));
+        assertTrue(second.getTransferredBytes() < SIZE);
+        assertDownloaded(second);
+    }
+
+    public void testChangedFile() throws Exception {
+        final RangeDownloader first = new RangeDownloader(getUrl(), mFile, "test");
+        first.download(new RangeDownloader.ProgressListener() {
+            @Override
+            public void onProgress(long downloaded, long total) {
+                if (downloaded > SIZE / 2) {
+                    first.cancel();
+                }
+            }
+        });
+
+        // Same size and a new validator, the part we have is of no use
+        new Random(4).nextBytes(mData);
+        mServer.setETag("\"v2\"");
+        RangeDownloader second = new RangeDownloader(getUrl(), mFile, "test");
+        assertEquals(RangeDownloader.RESULT_SUCCESS, second.download(null));
+        assertDownloaded(second);
+    }
+
+    /**
+     * A mirror that keeps failing is given up on for the next one
+     */
+    public void testMirrorFailover() throws Exception {
+        TestServer failing = new TestServer(mData);
+        failing.setStatus(503);
+        try {
+            String bad = failing.getUrl() + "eos.zip";
+            RangeDownloader downloader = new RangeDownloader(Arrays.asList(bad, getUrl()),
+                    mFile, "test", 4, 0);
+            assertEquals(RangeDownloader.RESULT_SUCCESS, downloader.download(null));
+            assertEquals(getUrl(), downloader.getUrl());
+            assertEquals(Collections.singletonList(bad), downloader.getFailedUrls());
+            assertDownloaded(downloader);
+        } finally {
+            failing.shutdown();
+        }
+    }
+
+    private String getUrl() {
+        return mServer.getUrl() + "eos.zip";
+    }
+
+    private void assertDownloaded(RangeDownloader downloader) throws Exception {
+        assertEquals(SIZE, mFile.length());
+        assertTrue(Arrays.equals(mData, readFile(mFile)));
+        assertEquals(MD5.toHex(MessageDigest.getInstance("MD5").digest(mData)),
+                downloader.getMD5());
+        assertFalse(RangeDownloader.getCheckpointFile(mFile).exists());
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < data.length) {
+                offset += in.read(data, offset, data.length - offset);
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+}
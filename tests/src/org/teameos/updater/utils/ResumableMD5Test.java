@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2015 The TeamEos Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package org.teameos.updater.utils;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Random;
+
+public class ResumableMD5Test extends TestCase {
+
+    public void testKnownDigests() throws Exception {
+        assertEquals("d41d8cd98f00b204e9800998ecf8427e", hash(""));
+        assertEquals("900150983cd24fb0d6963f7d28e17f72", hash("abc"));
+        assertEquals("9e107d9d372bb6826bd81d3542a419d6",
+                hash("The quick brown fox jumps over the lazy dog"));
+    }
+
+    /**
+     * Every length around the block and padding boundaries, fed in uneven pieces
+     */
+    public void testMatchesMessageDigest() throws Exception {
+        Random random = new Random(1);
+        for (int length = 0; length <= 300; length++) {
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+            ResumableMD5 md5 = new ResumableMD5();
+            int offset = 0;
+            while (offset < length) {
+                int n = Math.min(length - offset, 1 + random.nextInt(70));
+                md5.update(data, offset, n);
+                offset += n;
+            }
+            assertEquals("length " + length, reference(data), MD5.toHex(md5.digest()));
+            assertEquals(length, md5.getCount());
+        }
+    }
+
+    /**
+     * A state written at any point and read back carries on where it left off
+     */
+    public void testSaveRestore() throws Exception {
+        Random random = new Random(2);
+        byte[] data = new byte[10000];
+        random.nextBytes(data);
+        String expected = reference(data);
+        for (int split = 0; split <= data.length; split += 1 + random.nextInt(97)) {
+            ResumableMD5 md5 = new ResumableMD5();
+            md5.update(data, 0, split);
+
+            ByteArrayOutputStream state = new ByteArrayOutputStream();
+            md5.writeState(new DataOutputStream(state));
+            ResumableMD5 restored = new ResumableMD5(
+                    new DataInputStream(new ByteArrayInputStream(state.toByteArray())));
+            assertEquals(split, restored.getCount());
+
+            restored.update(data, split, data.length - split);
+            assertEquals("split at " + split, expected, MD5.toHex(restored.digest()));
+        }
+    }
+
+    public void testDigestLeavesStateAlone() throws Exception {
+        byte[] data = "The quick brown fox jumps over the lazy dog".getBytes("US-ASCII");
+        ResumableMD5 md5 = new ResumableMD5();
+        md5.update(data, 0, 10);
+        ResumableMD5 copy = md5.copy();
+        md5.digest();
+        md5.update(data, 10, data.length - 10);
+        assertEquals(reference(data), MD5.toHex(md5.digest()));
+
+        copy.update(data, 10, data.length - 10);
+        assertEquals(reference(data), MD5.toHex(copy.digest()));
+    }
+
+    public void testBadState() throws Exception {
+        ByteArrayOutputStream state = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(state);
+        out.write(new byte[16]);
+        out.writeLong(-1);
+        try {
+            new ResumableMD5(new DataInputStream(new ByteArrayInputStream(state.toByteArray())));
+            fail("Accepted a negative count");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private static String hash(String text) throws Exception {
+        byte[] data = text.getBytes("US-ASCII");
+        ResumableMD5 md5 = new ResumableMD5();
+        md5.update(data, 0, data.length);
+        return MD5.toHex(md5.digest());
+    }
+
+    private static String reference(byte[] data) throws Exception {
+        return MD5.toHex(MessageDigest.getInstance("MD5").digest(data));
+    }
+}